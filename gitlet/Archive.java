@@ -0,0 +1,184 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes the files of a commit as a tar or zip archive, in path order,
+ * straight from the object store: nothing is checked out, and the working
+ * directory and the index are left alone.
+ *
+ * tar (POSIX ustar, with a pax header for names over 100 bytes or files of
+ * 8 GiB and more) stores files as they are, so every blob or chunk goes from
+ * the store to the output with ObjectStore.transferTo, which for a file
+ * store and a file or pipe as output lets the OS do the copying. zip
+ * deflates, so blobs are streamed through the compressor one buffer at a
+ * time. Either way memory use doesn't depend on the size of the files; a zip
+ * still keeps a small central directory entry per file until the end.
+ *
+ * Every entry gets mode 644 and the date of the commit as its time.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Archive {
+    private static final int BLOCK = 512;
+    /** tar output is padded to a whole record of this many bytes. */
+    private static final int RECORD = 20 * BLOCK;
+    /** Largest size the 11 octal digits of a ustar header can hold. */
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final File gitletDir;
+    private final Commit commit;
+    private final WritableByteChannel out;
+    private long written;
+
+    private Archive(File gitletDir, Commit commit, WritableByteChannel out) {
+        this.gitletDir = gitletDir;
+        this.commit = commit;
+        this.out = out;
+    }
+
+    /** Returns true if FORMAT is an archive format we can write. */
+    static boolean isFormat(String format) {
+        return format.equals("tar") || format.equals("zip");
+    }
+
+    /** Writes the files of COMMIT of the repository in GITLETDIR to OUT as
+     *  an archive in FORMAT, tar or zip. Doesn't close OUT. */
+    static void write(File gitletDir, Commit commit, String format,
+                      WritableByteChannel out) throws IOException {
+        Archive archive = new Archive(gitletDir, commit, out);
+        if (format.equals("zip")) {
+            archive.zip();
+        } else {
+            archive.tar();
+        }
+    }
+
+    private void tar() throws IOException {
+        long mtime = commit.getDate().getTime() / 1000;
+        for (Map.Entry<String, String> e : commit.getFiles().entrySet()) {
+            String path = e.getKey();
+            long size = Blobs.size(gitletDir, e.getValue());
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 100 || size > MAX_USTAR_SIZE) {
+                StringBuilder pax = new StringBuilder();
+                if (name.length > 100) {
+                    pax.append(paxRecord("path", path));
+                }
+                if (size > MAX_USTAR_SIZE) {
+                    pax.append(paxRecord("size", Long.toString(size)));
+                }
+                byte[] records = pax.toString()
+                        .getBytes(StandardCharsets.UTF_8);
+                write(header("pax_header", records.length, mtime, 'x'));
+                write(ByteBuffer.wrap(records));
+                pad(BLOCK);
+            }
+            write(header(path, size > MAX_USTAR_SIZE ? 0 : size, mtime,
+                    '0'));
+            Blobs.transferTo(gitletDir, e.getValue(), out);
+            written += size;
+            pad(BLOCK);
+        }
+        write(ByteBuffer.allocate(2 * BLOCK));
+        pad(RECORD);
+    }
+
+    private void zip() throws IOException {
+        OutputStream stream = new BufferedOutputStream(
+                Channels.newOutputStream(out), 1 << 16) {
+            @Override
+            public void close() throws IOException {
+                flush();  // the caller closes OUT
+            }
+        };
+        try (ZipOutputStream zip = new ZipOutputStream(stream)) {
+            long time = commit.getDate().getTime();
+            for (Map.Entry<String, String> e : commit.getFiles().entrySet()) {
+                ZipEntry entry = new ZipEntry(e.getKey());
+                entry.setTime(time);
+                zip.putNextEntry(entry);
+                try (InputStream in = Blobs.open(gitletDir, e.getValue())) {
+                    in.transferTo(zip);
+                }
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /** A ustar header block for a file NAME of SIZE bytes and TYPE, last
+     *  modified at MTIME (seconds since the epoch). */
+    private static ByteBuffer header(String name, long size, long mtime,
+                                     char type) {
+        byte[] h = new byte[BLOCK];
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, h, 0, Math.min(bytes.length, 100));
+        octal(h, 100, 8, 0644);
+        octal(h, 108, 8, 0);
+        octal(h, 116, 8, 0);
+        octal(h, 124, 12, size);
+        octal(h, 136, 12, mtime);
+        for (int i = 148; i < 156; i++) {
+            h[i] = ' ';
+        }
+        h[156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII),
+                0, h, 257, 8);
+        long sum = 0;
+        for (byte b : h) {
+            sum += b & 0xff;
+        }
+        octal(h, 148, 7, sum);
+        return ByteBuffer.wrap(h);
+    }
+
+    /** Writes VALUE into the WIDTH bytes of H at OFFSET as zero padded
+     *  octal digits followed by a NUL. */
+    private static void octal(byte[] h, int offset, int width, long value) {
+        String digits = Long.toOctalString(value);
+        int pad = width - 1 - digits.length();
+        for (int i = 0; i < width - 1; i++) {
+            h[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+        }
+        h[offset + width - 1] = 0;
+    }
+
+    /** A pax extended header record, "LENGTH KEY=VALUE\n", LENGTH counting
+     *  the whole record including its own digits. */
+    private static String paxRecord(String key, String value) {
+        int body = (" " + key + "=" + value + "\n")
+                .getBytes(StandardCharsets.UTF_8).length;
+        int length = body + Integer.toString(body).length();
+        if (Integer.toString(length).length()
+                > Integer.toString(body).length()) {
+            length++;
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        written += buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** Writes zeros up to the next multiple of SIZE. */
+    private void pad(int size) throws IOException {
+        int rest = (int) (written % size);
+        if (rest != 0) {
+            write(ByteBuffer.allocate(size - rest));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/**
+ * Finds, for every line of a file in a commit, the commit that introduced
+ * it.
+ *
+ * The lines start out pending at the commit blame is asked about. Commits
+ * are then visited newest first. A visited commit hands each pending line on
+ * to the first of its parents (first parent, then merge parent) that has the
+ * line too, as told by a diff of the two versions of the file; the lines no
+ * parent has were introduced by that commit. The walk stops as soon as no
+ * line is pending anymore, so it only goes as deep into history as the
+ * oldest line of the file.
+ *
+ * Blob pairs are diffed once per run however many commits they show up
+ * between. The result for a (commit, path) is cached in .gitlet/blame, and
+ * when a walk reaches a commit whose result is cached the lines pending there
+ * are resolved from it without going any further. Blaming a file again after
+ * a new commit therefore costs one diff.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Blame {
+    /** Directory of the blame cache inside the .gitlet directory. */
+    static final String CACHE_DIR = "blame";
+
+    /** Where a line of the blamed file comes from: line LINE (0 based) of
+     *  the file in commit COMMIT. */
+    static class Origin {
+        final String commit;
+        final int line;
+
+        Origin(String commit, int line) {
+            this.commit = commit;
+            this.line = line;
+        }
+    }
+
+    /** Lines waiting at a commit: FINAL[i] is a line of the blamed file
+     *  that is line LOCAL[i] of the commit's version of the file. */
+    private static class Pending {
+        private final List<Integer> finals = new ArrayList<>();
+        private final List<Integer> locals = new ArrayList<>();
+
+        void add(int finalLine, int localLine) {
+            finals.add(finalLine);
+            locals.add(localLine);
+        }
+    }
+
+    private final File gitletDir;
+    private final String path;
+    private final Map<String, String[]> lines = new HashMap<>();
+    private final Map<String, int[]> diffs = new HashMap<>();
+
+    Blame(File gitletDir, String path) {
+        this.gitletDir = gitletDir;
+        this.path = path;
+    }
+
+    /** The origin of every line of PATH in commit ID, or null if the commit
+     *  has no such file. */
+    Origin[] run(String id) {
+        Commit start = Repository.checkOutCommit(id);
+        String startBlob = start.getFiles().get(path);
+        if (startBlob == null) {
+            return null;
+        }
+        Origin[] result = cached(start.getId());
+        if (result != null) {
+            return result;
+        }
+        int n = lines(startBlob).length;
+        result = new Origin[n];
+
+        Map<String, Pending> pending = new HashMap<>();
+        Map<String, Commit> commits = new HashMap<>();
+        PriorityQueue<Commit> queue = new PriorityQueue<>(
+                (a, b) -> b.getDate().compareTo(a.getDate()));
+        Pending all = new Pending();
+        for (int i = 0; i < n; i++) {
+            all.add(i, i);
+        }
+        pending.put(start.getId(), all);
+        commits.put(start.getId(), start);
+        queue.add(start);
+
+        while (!queue.isEmpty()) {
+            Commit c = queue.poll();
+            Pending here = pending.remove(c.getId());
+            if (here == null) {
+                continue;
+            }
+            Origin[] known = c == start ? null : cached(c.getId());
+            if (known != null) {
+                for (int i = 0; i < here.finals.size(); i++) {
+                    result[here.finals.get(i)] = known[here.locals.get(i)];
+                }
+                continue;
+            }
+            String blob = c.getFiles().get(path);
+            boolean[] passed = new boolean[here.finals.size()];
+            for (String parentId
+                    : new String[] {c.getParent(), c.getMergeParent()}) {
+                if (parentId == null) {
+                    continue;
+                }
+                Commit parent = commits.computeIfAbsent(parentId,
+                        Repository::checkOutCommit);
+                String parentBlob = parent.getFiles().get(path);
+                if (parentBlob == null) {
+                    continue;
+                }
+                int[] toParent = diff(parentBlob, blob);
+                Pending there = null;
+                for (int i = 0; i < passed.length; i++) {
+                    int local = toParent[here.locals.get(i)];
+                    if (!passed[i] && local >= 0) {
+                        if (there == null) {
+                            there = pending.get(parentId);
+                            if (there == null) {
+                                there = new Pending();
+                                pending.put(parentId, there);
+                                queue.add(parent);
+                            }
+                        }
+                        there.add(here.finals.get(i), local);
+                        passed[i] = true;
+                    }
+                }
+            }
+            for (int i = 0; i < passed.length; i++) {
+                if (!passed[i]) {
+                    result[here.finals.get(i)] =
+                            new Origin(c.getId(), here.locals.get(i));
+                }
+            }
+        }
+        store(start.getId(), result);
+        return result;
+    }
+
+    /** The lines of blob SHA. */
+    String[] lines(String sha) {
+        return lines.computeIfAbsent(sha, s -> {
+            String contents = Blobs.readAsString(s);
+            if (contents.isEmpty()) {
+                return new String[0];
+            }
+            String[] split = contents.split("\n", -1);
+            return contents.endsWith("\n")
+                    ? Arrays.copyOf(split, split.length - 1) : split;
+        });
+    }
+
+    /**
+     * For every line of blob NEW, the line of blob OLD it is unchanged from,
+     * or -1 for lines NEW added. Computed once per pair of blobs.
+     */
+    private int[] diff(String oldSha, String newSha) {
+        return diffs.computeIfAbsent(oldSha + newSha,
+                k -> LineDiff.match(lines(oldSha), lines(newSha)));
+    }
+
+    private File cacheFile(String commit) {
+        return join(gitletDir, CACHE_DIR, sha1(commit, path));
+    }
+
+    /** The cached result for COMMIT, or null. */
+    private Origin[] cached(String commit) {
+        File file = cacheFile(commit);
+        if (!file.isFile()) {
+            return null;
+        }
+        String contents = readContentsAsString(file);
+        if (contents.isEmpty()) {
+            return new Origin[0];
+        }
+        String[] entries = contents.split("\n");
+        Origin[] result = new Origin[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            int space = entries[i].indexOf(' ');
+            result[i] = new Origin(entries[i].substring(0, space),
+                    Integer.parseInt(entries[i].substring(space + 1)));
+        }
+        return result;
+    }
+
+    private void store(String commit, Origin[] result) {
+        StringBuilder out = new StringBuilder();
+        for (Origin o : result) {
+            out.append(o.commit).append(' ').append(o.line).append('\n');
+        }
+        Transaction.publish(cacheFile(commit), out.toString());
+    }
+}
@@ -0,0 +1,307 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static gitlet.Utils.*;
+
+/**
+ * Storage of file contents (blobs).
+ *
+ * A blob is named by the SHA-1 of the file's contents, as it always was.
+ * Small files are stored whole, as a BLOB object. Files larger than
+ * CHUNK_THRESHOLD are cut into content defined chunks with a FastCDC style
+ * rolling (gear) hash: cut points depend only on the bytes around them, so
+ * appending to or editing a large file changes only the chunks around the
+ * edit and every other chunk is shared with the previous version. Each chunk
+ * is stored once as a CHUNK object named by its own sha and the blob itself
+ * becomes a MANIFEST object listing its chunks in order.
+ *
+ * Files are read and written as streams, one chunk at a time, so memory use
+ * doesn't depend on how large they are.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Blobs {
+    /** Files up to this size are stored whole. */
+    static final int CHUNK_THRESHOLD = 256 * 1024;
+    static final int MIN_CHUNK = 16 * 1024;
+    static final int AVG_CHUNK = 64 * 1024;
+    static final int MAX_CHUNK = 256 * 1024;
+
+    /** Normalized chunking: harder to cut before the average size, easier
+     *  after it, which keeps chunk sizes close to AVG_CHUNK. */
+    private static final long MASK_S = ((1L << 18) - 1) << (64 - 18);
+    private static final long MASK_L = ((1L << 14) - 1) << (64 - 14);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Returns true if the repository in GITLETDIR has blob SHA. */
+    static boolean exists(File gitletDir, String sha) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        return store.contains(ObjectStore.Kind.BLOB, sha)
+                || store.contains(ObjectStore.Kind.MANIFEST, sha);
+    }
+
+    /**
+     * Stores the contents of FILE as a blob of this repository through TX and
+     * returns its id. Only chunks that aren't stored yet are written.
+     */
+    static String store(File file, Transaction tx) {
+        if (file.length() <= CHUNK_THRESHOLD) {
+            return store(readContents(file), tx);
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            return storeChunked(in, tx);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stores CONTENTS as a blob of this repository through TX, chunked if
+     *  they are large, and returns its id. */
+    static String storeAny(byte[] contents, Transaction tx) {
+        if (contents.length <= CHUNK_THRESHOLD) {
+            return store(contents, tx);
+        }
+        try {
+            return storeChunked(new ByteArrayInputStream(contents), tx);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Stores what IN holds, cut into chunks, as a blob of this repository
+     *  through TX and returns its id. */
+    private static String storeChunked(InputStream in, Transaction tx)
+            throws IOException {
+        MessageDigest whole = digest();
+        StringBuilder manifest = new StringBuilder();
+        byte[] buf = new byte[2 * MAX_CHUNK];
+        int start = 0;
+        int end = 0;
+        boolean eof = false;
+        while (true) {
+            if (!eof && end - start < MAX_CHUNK) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                while (end < buf.length) {
+                    int n = in.read(buf, end, buf.length - end);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    end += n;
+                }
+            }
+            if (start == end) {
+                break;
+            }
+            int len = cut(buf, start, end - start);
+            whole.update(buf, start, len);
+            MessageDigest md = digest();
+            md.update(buf, start, len);
+            String chunkSha = toHex(md.digest());
+            byte[] chunk = new byte[len];
+            System.arraycopy(buf, start, chunk, 0, len);
+            tx.writeObject(ObjectStore.Kind.CHUNK, chunkSha, chunk);
+            manifest.append(chunkSha).append(' ').append(len)
+                    .append('\n');
+            start += len;
+        }
+        String sha = toHex(whole.digest());
+        if (!exists(Repository.GITLET_DIR, sha)) {
+            tx.writeObject(ObjectStore.Kind.MANIFEST, sha,
+                    manifest.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return sha;
+    }
+
+    /** Stores CONTENTS whole as a blob of this repository through TX and
+     *  returns its id. */
+    static String store(byte[] contents, Transaction tx) {
+        String sha = sha1(contents);
+        tx.writeObject(ObjectStore.Kind.BLOB, sha, contents);
+        return sha;
+    }
+
+    /** Returns the blob id the contents of FILE would get, reading it as a
+     *  stream. */
+    static String hash(File file) {
+        MessageDigest md = digest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[1 << 16];
+            for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+                md.update(buf, 0, n);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Returns the ids of the chunks blob SHA of the repository in GITLETDIR
+     *  is made of, or null if it is stored whole. */
+    static List<String> chunks(File gitletDir, String sha) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        if (!store.contains(ObjectStore.Kind.MANIFEST, sha)) {
+            return null;
+        }
+        String manifest = new String(store.read(ObjectStore.Kind.MANIFEST,
+                sha), StandardCharsets.UTF_8);
+        List<String> chunks = new ArrayList<>();
+        for (String line : manifest.split("\n")) {
+            if (!line.isEmpty()) {
+                chunks.add(line.substring(0, line.indexOf(' ')));
+            }
+        }
+        return chunks;
+    }
+
+    /** Returns the contents of blob SHA of the repository in GITLETDIR as a
+     *  stream; chunked blobs are put back together one chunk at a time. */
+    static InputStream open(File gitletDir, String sha) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        List<String> chunks = chunks(gitletDir, sha);
+        if (chunks == null) {
+            return store.open(ObjectStore.Kind.BLOB, sha);
+        }
+        Iterator<String> it = chunks.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return store.open(ObjectStore.Kind.CHUNK, it.next());
+            }
+        });
+    }
+
+    /** Returns the size in bytes of blob SHA of the repository in
+     *  GITLETDIR, without reading it. */
+    static long size(File gitletDir, String sha) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        if (!store.contains(ObjectStore.Kind.MANIFEST, sha)) {
+            return store.size(ObjectStore.Kind.BLOB, sha);
+        }
+        String manifest = new String(store.read(ObjectStore.Kind.MANIFEST,
+                sha), StandardCharsets.UTF_8);
+        long size = 0;
+        for (String line : manifest.split("\n")) {
+            if (!line.isEmpty()) {
+                size += Long.parseLong(line.substring(line.indexOf(' ') + 1));
+            }
+        }
+        return size;
+    }
+
+    /** Writes the contents of blob SHA of the repository in GITLETDIR to
+     *  TARGET, chunk by chunk, with ObjectStore.transferTo. */
+    static void transferTo(File gitletDir, String sha,
+                           WritableByteChannel target) throws IOException {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        List<String> chunks = chunks(gitletDir, sha);
+        if (chunks == null) {
+            store.transferTo(ObjectStore.Kind.BLOB, sha, target);
+            return;
+        }
+        for (String chunk : chunks) {
+            store.transferTo(ObjectStore.Kind.CHUNK, chunk, target);
+        }
+    }
+
+    /** Makes sure the blobs in SHAS are in the repository in GITLETDIR
+     *  before they are read one by one: a clone with lazy blobs fetches the
+     *  ones it doesn't have yet together. */
+    static void prefetch(File gitletDir, Collection<String> shas) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        if (store instanceof LazyObjectStore) {
+            ((LazyObjectStore) store).prefetch(shas);
+        }
+    }
+
+    /** Writes the contents of blob SHA of this repository to TARGET. */
+    static void copyTo(String sha, File target) {
+        try (InputStream in = open(Repository.GITLET_DIR, sha);
+             OutputStream out = new FileOutputStream(target)) {
+            in.transferTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Returns the whole contents of blob SHA of this repository. */
+    static byte[] read(String sha) {
+        try (InputStream in = open(Repository.GITLET_DIR, sha)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    static String readAsString(String sha) {
+        return new String(read(sha), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the length of the chunk starting at BUF[OFF], LEN being the
+     * number of bytes available there (all that is left of the file if it's
+     * less than MAX_CHUNK).
+     */
+    static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_CHUNK) {
+            return len;
+        }
+        int n = Math.min(len, MAX_CHUNK);
+        int normal = Math.min(AVG_CHUNK, n);
+        long hash = 0;
+        int i = MIN_CHUNK;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_S) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < n; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & MASK_L) == 0) {
+                return i + 1;
+            }
+        }
+        return n;
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package gitlet;
+
+/**
+ * Fixed size Bloom filter over strings (file names), used to remember which
+ * paths a commit changed without having to load its file map.
+ *
+ * mightContain() never answers false for a path that was added; it answers
+ * true for a path that wasn't with a probability of about 1% at the sizing
+ * used here (10 bits and 7 hash functions per path).
+ *
+ *  @author Adrian Serbanescu
+ */
+class BloomFilter {
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 7;
+
+    private final long[] words;
+
+    /** An empty filter sized for ENTRIES paths. */
+    BloomFilter(int entries) {
+        int bits = Math.max(64, entries * BITS_PER_ENTRY);
+        words = new long[(bits + 63) / 64];
+    }
+
+    /** A filter with the given bits, as returned by words(). */
+    BloomFilter(long[] words) {
+        this.words = words;
+    }
+
+    void add(String path) {
+        long bits = (long) words.length * 64;
+        int h1 = mix(path.hashCode());
+        int h2 = mix(h1 ^ path.length()) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String path) {
+        long bits = (long) words.length * 64;
+        int h1 = mix(path.hashCode());
+        int h2 = mix(h1 ^ path.length()) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Integer.toUnsignedLong(h1 + i * h2) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    long[] words() {
+        return words;
+    }
+
+    /** The murmur3 finalizer, so that similar names land far apart. */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
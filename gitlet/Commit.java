@@ -1,10 +1,15 @@
 package gitlet;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.io.PrintStream;
 import java.io.Serializable;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
 
 /**
  * Represents a gitlet commit object.
@@ -16,6 +21,20 @@ import java.util.HashMap;
  *  @author Adrian Serbanescu
  */
 public class Commit implements Serializable {
+    /** What the class had before it stopped carrying its own date format,
+     *  which older commits are stored with. */
+    private static final long serialVersionUID = -1176491024764190138L;
+    /** What a commit is stored as: the fields below, with the files as a
+     *  HashMap rather than the FileMap they are kept in. */
+    private static final ObjectStreamField[] serialPersistentFields = {
+        new ObjectStreamField("id", String.class),
+        new ObjectStreamField("message", String.class),
+        new ObjectStreamField("author", String.class),
+        new ObjectStreamField("date", Date.class),
+        new ObjectStreamField("parent", String.class),
+        new ObjectStreamField("mergeParent", String.class),
+        new ObjectStreamField("files", HashMap.class),
+    };
     /** The ID of this commit */
     private String id;
     /** The message of this Commit. */
@@ -23,50 +42,88 @@ public class Commit implements Serializable {
     /** Author of the Commit. */
     private String author;
     private Date date;
-    private final DateFormat DATE_FORMAT = new SimpleDateFormat(
-            "EEE MMM d HH:mm:ss yyy Z");
     private String parent;
     /**
      * Should the commit be a merge this is the parentID of the merged-in commit parent.
      */
     private String mergeParent;
     /** Map of fileNames and corresponding sha1 */
-    private HashMap<String, String> files;
+    private FileMap files;
 
     public Commit(String message,
                   String author,
                   String parent,
                   String mergeParent,
                   HashMap<String, String> files) {
+        this(message, author, parent == null ? new Date(0) : new Date(),
+                parent, mergeParent, files);
+    }
+
+    /** A commit made at DATE, for histories brought in from elsewhere. */
+    Commit(String message,
+           String author,
+           Date date,
+           String parent,
+           String mergeParent,
+           HashMap<String, String> files) {
         this.author = author;
         this.message = message;
         this.parent = parent;
-        this.files = files;
-        this.date = parent == null
-                ? new Date(0)
-                : new Date();
-        id = files == null ? Utils.sha1() : Utils.sha1(files.toString());
+        this.files = files == null ? null : FileMap.of(files);
+        this.date = date;
         this.mergeParent = mergeParent;
+        id = files == null ? Utils.sha1() : hash();
+    }
+
+    /**
+     * The id of this commit: the hash of its parents, author, date, message
+     * and files, so going back to the files of an earlier commit makes a
+     * commit of its own. Commits made before named themselves by the hash
+     * of their files only; they keep the id they are stored with, which is
+     * why isSameAs() still has to look at more than the id.
+     */
+    private String hash() {
+        return Utils.sha1("parent " + parent + "\nmerge " + mergeParent
+                + "\nauthor " + author + "\ndate " + date.getTime() + "\n\n"
+                + message + "\0", files.toString());
+    }
+
+    /** A copy of OTHER without parents. */
+    private Commit(Commit other) {
+        id = other.id;
+        message = other.message;
+        author = other.author;
+        date = other.date;
+        files = other.files;
+    }
+
+    /** This commit as the end of a shallow history, see Shallow. */
+    Commit withoutParents() {
+        return new Commit(this);
     }
 
     public boolean isEmpty() {
         return files.isEmpty();
     }
-    public HashMap<String, String> getFiles() {
+    public FileMap getFiles() {
         return files;
     }
 
     public void print() {
-        System.out.println("===");
-        System.out.println("commit " + id);
+        print(System.out);
+    }
+
+    /** Prints this commit the way log does to OUT, without building it as
+     *  a string first. */
+    public void print(PrintStream out) {
+        out.append("===\ncommit ").append(id).append('\n');
         if (mergeParent != null) {
-            System.out.println("Merge: "
-                    + parent.substring(0, 7) + " "
-                    + mergeParent.substring(0, 7));
+            out.append("Merge: ").append(parent, 0, 7).append(' ')
+                    .append(mergeParent, 0, 7).append('\n');
         }
-        System.out.println("Date: " + DATE_FORMAT.format(date));
-        System.out.println(message);
-        System.out.println();
+        out.append("Date: ");
+        Output.date(date, out);
+        out.append('\n').append(message).append("\n\n");
     }
 
     public String getParent() {
@@ -80,6 +137,10 @@ public class Commit implements Serializable {
         return message;
     }
 
+    public String getAuthor() {
+        return author;
+    }
+
     public String getId() {
         return id;
     }
@@ -87,4 +148,41 @@ public class Commit implements Serializable {
     public Date getDate() {
         return date;
     }
+
+    /** Returns true if OTHER is this commit, made again. Older commits are
+     *  named by their files only, so one with the same id can still have
+     *  other parents or another message, and then it is a different
+     *  commit. */
+    boolean isSameAs(Commit other) {
+        return id.equals(other.id) && message.equals(other.message)
+                && Objects.equals(parent, other.parent)
+                && Objects.equals(mergeParent, other.mergeParent);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("id", id);
+        fields.put("message", message);
+        fields.put("author", author);
+        fields.put("date", date);
+        fields.put("parent", parent);
+        fields.put("mergeParent", mergeParent);
+        fields.put("files", files == null ? null : new HashMap<>(files));
+        out.writeFields();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        id = (String) fields.get("id", null);
+        message = (String) fields.get("message", null);
+        author = (String) fields.get("author", null);
+        date = (Date) fields.get("date", null);
+        parent = (String) fields.get("parent", null);
+        mergeParent = (String) fields.get("mergeParent", null);
+        Map<String, String> stored =
+                (Map<String, String>) fields.get("files", null);
+        files = stored == null ? null : FileMap.of(stored);
+    }
 }
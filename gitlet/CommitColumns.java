@@ -0,0 +1,585 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+
+/**
+ * What log --since/--until/--author/--grep look at, for every commit, stored
+ * column by column so that a query reads only the columns it filters on and
+ * never deserializes a commit it doesn't print.
+ *
+ * .gitlet/commit-columns is written in one go and memory mapped. Its rows
+ * are sorted by date and its sections are:
+ *
+ *  dates       a long per row, ascending, binary searched for a time range;
+ *  ids         20 bytes per row;
+ *  authors     an int per row, indexing the dictionary;
+ *  messages    a long per row plus one, where each message starts in the
+ *              heap;
+ *  sorted ids  the ids again, in byte order, binary searched by contains();
+ *  dictionary  every author once, as a length and UTF-8 bytes;
+ *  heap        the messages, UTF-8, back to back.
+ *
+ * Commits made since are appended to .gitlet/commit-columns.tail as framed
+ * records, like the commit graph's. Rewriting the main file merges the tail
+ * into it; it is done by the commit-graph maintenance task and commit-graph
+ * write, and by a commit once the tail grew past MAX_TAIL_BYTES. Merging
+ * needs no lock: the main file records which tail (a random generation in
+ * its header) it has merged how much of, and readers skip that part. A
+ * commit that finds its tail merged completely starts a new one.
+ *
+ * The columns only ever speed a query up. Commits they don't cover
+ * (fetched ones, until maintenance gets to them) are loaded and looked at
+ * as before.
+ *
+ *  @author Adrian Serbanescu
+ */
+class CommitColumns {
+    /** Name of the main file inside the .gitlet directory. */
+    static final String COLUMNS_FILE = "commit-columns";
+    /** Name of the tail file inside the .gitlet directory. */
+    static final String TAIL_FILE = "commit-columns.tail";
+    /** A commit merges the tail into the main file itself once the tail is
+     *  this long, if maintenance hasn't. */
+    static final long MAX_TAIL_BYTES = 4 << 20;
+
+    private static final int MAGIC = 0x47434f4c;         // "GCOL"
+    private static final int VERSION = 1;
+    private static final int TAIL_MAGIC = 0x4754414c;    // "GTAL"
+    private static final int RECORD_MAGIC = 0x43524543;  // "CREC"
+    private static final int END_MAGIC = 0x43454e44;     // "CEND"
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Sections of the main file, in the order they are written. */
+    private static final int DATES = 0;
+    private static final int IDS = 1;
+    private static final int AUTHORS = 2;
+    private static final int MESSAGES = 3;
+    private static final int SORTED_IDS = 4;
+    private static final int DICTIONARY = 5;
+    private static final int HEAP = 6;
+    private static final int END = 7;
+    private static final int HEADER_BYTES = 4 * 4 + 2 * 8 + (END + 1) * 8;
+    private static final int TAIL_HEADER_BYTES = 4 + 8;
+
+    /** The mapped main file, or null if there is none. */
+    private final ByteBuffer main;
+    private final int rows;
+    private final int[] sections = new int[END + 1];
+    private String[] dictionary;
+    /** The tail the main file has merged, and how many bytes of it. */
+    private long mergedGeneration;
+    private long mergedLength;
+    /** The tail, and its rows the main file doesn't have. */
+    private final Tail tail;
+    private final HashSet<String> tailIds = new HashSet<>();
+
+    private CommitColumns(File gitletDir) {
+        ByteBuffer mapped = null;
+        File file = join(gitletDir, COLUMNS_FILE);
+        if (file.isFile()) {
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size >= HEADER_BYTES && size <= Integer.MAX_VALUE) {
+                    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                            size);
+                    if (mapped.getInt(0) != MAGIC
+                            || mapped.getInt(4) != VERSION) {
+                        mapped = null;
+                    }
+                }
+            } catch (IOException excp) {
+                throw error("Cannot read commit columns: %s",
+                        excp.getMessage());
+            }
+        }
+        main = mapped;
+        if (main != null) {
+            rows = main.getInt(8);
+            dictionary = new String[main.getInt(12)];
+            mergedGeneration = main.getLong(16);
+            mergedLength = main.getLong(24);
+            for (int i = 0; i <= END; i++) {
+                sections[i] = (int) main.getLong(32 + 8 * i);
+            }
+        } else {
+            rows = 0;
+            dictionary = new String[0];
+        }
+        tail = Tail.read(join(gitletDir, TAIL_FILE));
+        if (tail.generation != mergedGeneration) {
+            mergedLength = 0;
+        }
+        for (int i = 0; i < tail.rows.size(); i++) {
+            if (tail.ends.get(i) > mergedLength) {
+                tailIds.add(tail.rows.get(i).id);
+            }
+        }
+    }
+
+    /** The columns of the repository in GITLETDIR. */
+    static CommitColumns load(File gitletDir) {
+        return new CommitColumns(gitletDir);
+    }
+
+    /** Returns true if commit ID has a row. */
+    boolean contains(String id) {
+        if (tailIds.contains(id)) {
+            return true;
+        }
+        byte[] key = toBytes(id);
+        int lo = 0;
+        int hi = rows - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareId(sections[SORTED_IDS] + mid * ID_BYTES, key);
+            if (cmp == 0) {
+                return true;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The ids of the commits with a row that FILTER lets through. Only the
+     * date column is searched, within the range of the filter; authors are
+     * matched once per dictionary entry and messages only of the rows
+     * still left.
+     */
+    Set<String> matching(CommitFilter filter) {
+        Set<String> ids = new HashSet<>();
+        int from = filter.since == Long.MIN_VALUE ? 0 : firstAtOrAfter(
+                filter.since);
+        int to = filter.until == Long.MAX_VALUE ? rows : firstAtOrAfter(
+                filter.until + 1);
+        boolean[] authors = null;
+        if (filter.author != null) {
+            authors = new boolean[dictionary.length];
+            for (int i = 0; i < authors.length; i++) {
+                authors[i] = filter.matchesAuthor(author(i));
+            }
+        }
+        for (int row = from; row < to; row++) {
+            if (authors != null && !authors[main.getInt(
+                    sections[AUTHORS] + 4 * row)]) {
+                continue;
+            }
+            if (filter.grep != null && !filter.matchesMessage(message(row))) {
+                continue;
+            }
+            ids.add(id(sections[IDS] + row * ID_BYTES));
+        }
+        for (int i = 0; i < tail.rows.size(); i++) {
+            Row row = tail.rows.get(i);
+            if (tail.ends.get(i) > mergedLength
+                    && filter.matchesDate(row.date)
+                    && filter.matchesAuthor(row.author)
+                    && filter.matchesMessage(row.message)) {
+                ids.add(row.id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Appends rows for COMMITS to the tail of the repository in GITLETDIR,
+     * merging the tail into the main file if it got too long. Callers hold
+     * the exclusive repository lock.
+     */
+    static void append(File gitletDir, Collection<Commit> commits) {
+        if (commits.isEmpty()) {
+            return;
+        }
+        File file = join(gitletDir, TAIL_FILE);
+        try {
+            long length = Tail.dropTorn(file);
+            long[] merged = merged(gitletDir);
+            if (length < 0 || length > TAIL_HEADER_BYTES
+                    && merged[0] == Tail.generation(file)
+                    && merged[1] >= length) {
+                long generation;
+                do {
+                    generation = ThreadLocalRandom.current().nextLong();
+                } while (generation == 0 || generation == merged[0]);
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(header);
+                out.writeInt(TAIL_MAGIC);
+                out.writeLong(generation);
+                Transaction.publish(Transaction.Durability.NONE, file,
+                        header.toByteArray());
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (Commit c : commits) {
+                new Row(c).write(bytes);
+            }
+            try (FileOutputStream stream = new FileOutputStream(file, true)) {
+                stream.write(bytes.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw error("Cannot write commit columns: %s", excp.getMessage());
+        }
+        if (file.length() > MAX_TAIL_BYTES) {
+            compact(gitletDir, new ArrayList<>());
+        }
+    }
+
+    /** The generation of the tail the main file of the repository in
+     *  GITLETDIR has merged and how many bytes of it, read from its header
+     *  alone; zeros if there is no main file. */
+    private static long[] merged(File gitletDir) throws IOException {
+        File file = join(gitletDir, COLUMNS_FILE);
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return new long[2];
+        }
+        try (DataInputStream in = new DataInputStream(
+                new FileInputStream(file))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return new long[2];
+            }
+            in.readInt();
+            in.readInt();
+            return new long[] {in.readLong(), in.readLong()};
+        }
+    }
+
+    /** Appends a row for commit C. */
+    static void append(File gitletDir, Commit c) {
+        List<Commit> commits = new ArrayList<>();
+        commits.add(c);
+        append(gitletDir, commits);
+    }
+
+    /**
+     * Rewrites the main file of the repository in GITLETDIR with the rows it
+     * has, those of the tail and rows for EXTRA. Returns how many rows it
+     * has then.
+     */
+    static int compact(File gitletDir, Collection<Commit> extra) {
+        CommitColumns columns = load(gitletDir);
+        LinkedHashMap<String, Row> all = new LinkedHashMap<>();
+        for (int row = 0; row < columns.rows; row++) {
+            Row r = columns.row(row);
+            all.put(r.id, r);
+        }
+        for (Row r : columns.tail.rows) {
+            all.putIfAbsent(r.id, r);
+        }
+        for (Commit c : extra) {
+            all.putIfAbsent(c.getId(), new Row(c));
+        }
+        List<Row> rows = new ArrayList<>(all.values());
+        rows.sort(Comparator.comparingLong((Row r) -> r.date)
+                .thenComparing(r -> r.id));
+        List<Row> byId = new ArrayList<>(rows);
+        byId.sort(Comparator.comparing(r -> r.id));
+
+        try {
+            LinkedHashMap<String, Integer> codes = new LinkedHashMap<>();
+            ByteArrayOutputStream heap = new ByteArrayOutputStream();
+            long[] starts = new long[rows.size() + 1];
+            for (int i = 0; i < rows.size(); i++) {
+                codes.putIfAbsent(rows.get(i).author, codes.size());
+                starts[i] = heap.size();
+                heap.write(rows.get(i).message
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            starts[rows.size()] = heap.size();
+            ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+            DataOutputStream dict = new DataOutputStream(dictionary);
+            for (String author : codes.keySet()) {
+                byte[] name = author.getBytes(StandardCharsets.UTF_8);
+                dict.writeInt(name.length);
+                dict.write(name);
+            }
+
+            int n = rows.size();
+            long[] offsets = new long[END + 1];
+            offsets[DATES] = HEADER_BYTES;
+            offsets[IDS] = offsets[DATES] + 8L * n;
+            offsets[AUTHORS] = offsets[IDS] + (long) ID_BYTES * n;
+            offsets[MESSAGES] = offsets[AUTHORS] + 4L * n;
+            offsets[SORTED_IDS] = offsets[MESSAGES] + 8L * (n + 1);
+            offsets[DICTIONARY] = offsets[SORTED_IDS] + (long) ID_BYTES * n;
+            offsets[HEAP] = offsets[DICTIONARY] + dictionary.size();
+            offsets[END] = offsets[HEAP] + heap.size();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt(codes.size());
+            out.writeLong(columns.tail.generation);
+            out.writeLong(Math.max(columns.tail.validLength, 0));
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            for (Row r : rows) {
+                out.writeLong(r.date);
+            }
+            for (Row r : rows) {
+                CommitGraph.writeId(out, r.id);
+            }
+            for (Row r : rows) {
+                out.writeInt(codes.get(r.author));
+            }
+            for (long start : starts) {
+                out.writeLong(start);
+            }
+            for (Row r : byId) {
+                CommitGraph.writeId(out, r.id);
+            }
+            dictionary.writeTo(out);
+            heap.writeTo(out);
+            out.flush();
+            Transaction.publish(join(gitletDir, COLUMNS_FILE),
+                    bytes.toByteArray());
+        } catch (IOException excp) {
+            throw error("Cannot write commit columns: %s", excp.getMessage());
+        }
+        return rows.size();
+    }
+
+    /** How many rows of the tail the main file doesn't have yet. */
+    int tailRows() {
+        return tailIds.size();
+    }
+
+    /** The first row made at or after TIME, or rows if there is none. */
+    private int firstAtOrAfter(long time) {
+        int lo = 0;
+        int hi = rows;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (main.getLong(sections[DATES] + 8 * mid) < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /** Author number CODE of the dictionary. The dictionary is decoded the
+     *  first time an author is asked for. */
+    private String author(int code) {
+        if (dictionary.length > 0 && dictionary[0] == null) {
+            int pos = sections[DICTIONARY];
+            for (int i = 0; i < dictionary.length; i++) {
+                int length = main.getInt(pos);
+                dictionary[i] = string(pos + 4, length);
+                pos += 4 + length;
+            }
+        }
+        return dictionary[code];
+    }
+
+    private String message(int row) {
+        int start = (int) main.getLong(sections[MESSAGES] + 8 * row);
+        int end = (int) main.getLong(sections[MESSAGES] + 8 * (row + 1));
+        return string(sections[HEAP] + start, end - start);
+    }
+
+    private Row row(int row) {
+        return new Row(id(sections[IDS] + row * ID_BYTES),
+                main.getLong(sections[DATES] + 8 * row),
+                author(main.getInt(sections[AUTHORS] + 4 * row)),
+                message(row));
+    }
+
+    private String string(int pos, int length) {
+        byte[] bytes = new byte[length];
+        main.get(pos, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** The id stored at POS, as hex. */
+    private String id(int pos) {
+        byte[] id = new byte[ID_BYTES];
+        main.get(pos, id);
+        return toHex(id);
+    }
+
+    /** Compares the id stored at POS with the raw id KEY, bytes unsigned. */
+    private int compareId(int pos, byte[] key) {
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = Integer.compare(main.get(pos + i) & 0xff,
+                    key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] toBytes(String id) {
+        byte[] bytes = new byte[ID_BYTES];
+        fromHex(id.substring(0, Math.min(id.length(), UID_LENGTH) & ~1),
+                bytes, 0);
+        return bytes;
+    }
+
+    /** What the columns keep of one commit. */
+    private static class Row {
+        final String id;
+        final long date;
+        final String author;
+        final String message;
+
+        Row(String id, long date, String author, String message) {
+            this.id = id;
+            this.date = date;
+            this.author = author;
+            this.message = message;
+        }
+
+        Row(Commit c) {
+            this(c.getId(), c.getDate().getTime(),
+                    c.getAuthor() == null ? "" : c.getAuthor(),
+                    c.getMessage());
+        }
+
+        /** Writes this row as a tail record to BYTES. */
+        void write(ByteArrayOutputStream bytes) throws IOException {
+            int start = bytes.size();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(RECORD_MAGIC);
+            CommitGraph.writeId(out, id);
+            out.writeLong(date);
+            byte[] name = author.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(name.length);
+            out.write(name);
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+            out.writeInt(bytes.size() - start + 8);
+            out.writeInt(END_MAGIC);
+        }
+    }
+
+    /** The rows of a tail file, each with the offset it ends at. */
+    private static class Tail {
+        long generation;
+        long validLength;
+        final List<Row> rows = new ArrayList<>();
+        final List<Long> ends = new ArrayList<>();
+
+        /** Reads FILE up to its last complete record; no rows and a
+         *  negative valid length if it is missing or not a tail. */
+        static Tail read(File file) {
+            Tail tail = new Tail();
+            tail.validLength = -1;
+            if (!file.isFile()) {
+                return tail;
+            }
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file),
+                            1 << 16))) {
+                if (in.readInt() != TAIL_MAGIC) {
+                    return tail;
+                }
+                tail.generation = in.readLong();
+                tail.validLength = TAIL_HEADER_BYTES;
+                while (true) {
+                    if (in.readInt() != RECORD_MAGIC) {
+                        break;
+                    }
+                    String id = CommitGraph.readId(in);
+                    long date = in.readLong();
+                    String author = readString(in);
+                    String message = readString(in);
+                    int length = in.readInt();
+                    if (in.readInt() != END_MAGIC || id == null) {
+                        break;
+                    }
+                    tail.rows.add(new Row(id, date, author, message));
+                    tail.validLength += length;
+                    tail.ends.add(tail.validLength);
+                }
+            } catch (EOFException excp) {
+                /* A record cut short by a crash, everything before it
+                 * counts. */
+            } catch (IOException excp) {
+                throw error("Cannot read commit columns: %s",
+                        excp.getMessage());
+            }
+            return tail;
+        }
+
+        private static String readString(DataInputStream in)
+                throws IOException {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_TAIL_BYTES) {
+                throw new EOFException();
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        /** The generation of tail FILE, which has a valid header. */
+        static long generation(File file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new FileInputStream(file))) {
+                in.readInt();
+                return in.readLong();
+            }
+        }
+
+        /** Cuts off a partially written last record of FILE, if a crash
+         *  left one. Returns its length then, or -1 if it is missing or not
+         *  a tail. */
+        static long dropTorn(File file) throws IOException {
+            if (!file.isFile()) {
+                return -1;
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                long length = raf.length();
+                if (length < TAIL_HEADER_BYTES || raf.readInt() != TAIL_MAGIC) {
+                    return -1;
+                }
+                if (length == TAIL_HEADER_BYTES) {
+                    return length;
+                }
+                raf.seek(length - 8);
+                int last = raf.readInt();
+                if (raf.readInt() == END_MAGIC && last > 0
+                        && last <= length - TAIL_HEADER_BYTES) {
+                    raf.seek(length - last);
+                    if (raf.readInt() == RECORD_MAGIC) {
+                        return length;
+                    }
+                }
+                long valid = read(file).validLength;
+                raf.setLength(valid);
+                return valid;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package gitlet;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Which commits log and global-log list, from their options:
+ *
+ *  --since=DATE    only commits made at or after DATE;
+ *  --until=DATE    only commits made at or before DATE;
+ *  --author=REGEX  only commits whose author REGEX finds a match in;
+ *  --grep=REGEX    only commits whose message REGEX finds a match in.
+ *
+ * A DATE is YYYY-MM-DD, YYYY-MM-DD HH:MM[:SS] (local time), or @SECONDS
+ * since the epoch. A bare day counts from its start for --since and to its
+ * end for --until. All options given have to hold.
+ *
+ * CommitColumns answers the same question for many commits at once without
+ * loading them; matches() is for commits it doesn't cover.
+ *
+ *  @author Adrian Serbanescu
+ */
+class CommitFilter {
+    /** Times, in milliseconds since the epoch, commits have to lie
+     *  within. */
+    final long since;
+    final long until;
+    /** Patterns the author and the message have to contain a match of, or
+     *  null. */
+    final Pattern author;
+    final Pattern grep;
+
+    private CommitFilter(long since, long until, Pattern author,
+                         Pattern grep) {
+        this.since = since;
+        this.until = until;
+        this.author = author;
+        this.grep = grep;
+    }
+
+    /**
+     * Reads the filter options in OPTIONS and adds every other option to
+     * REST. Returns null if a filter option has a bad value.
+     */
+    static CommitFilter parse(List<String> options, List<String> rest) {
+        long since = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        Pattern author = null;
+        Pattern grep = null;
+        try {
+            for (String option : options) {
+                if (option.startsWith("--since=")) {
+                    since = time(option.substring("--since=".length()),
+                            false);
+                } else if (option.startsWith("--until=")) {
+                    until = time(option.substring("--until=".length()),
+                            true);
+                } else if (option.startsWith("--author=")) {
+                    author = Pattern.compile(
+                            option.substring("--author=".length()));
+                } else if (option.startsWith("--grep=")) {
+                    grep = Pattern.compile(
+                            option.substring("--grep=".length()));
+                } else {
+                    rest.add(option);
+                }
+            }
+        } catch (DateTimeParseException | NumberFormatException
+                 | PatternSyntaxException excp) {
+            return null;
+        }
+        return new CommitFilter(since, until, author, grep);
+    }
+
+    /** The time DATE stands for. A bare day is its first millisecond, or
+     *  its last if END. */
+    private static long time(String date, boolean end) {
+        if (date.startsWith("@")) {
+            return Long.parseLong(date.substring(1)) * 1000;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        if (date.length() == "YYYY-MM-DD".length()) {
+            LocalDate day = LocalDate.parse(date);
+            return end
+                    ? day.plusDays(1).atStartOfDay(zone).toInstant()
+                    .toEpochMilli() - 1
+                    : day.atStartOfDay(zone).toInstant().toEpochMilli();
+        }
+        return LocalDateTime.parse(date.replace(' ', 'T')).atZone(zone)
+                .toInstant().toEpochMilli();
+    }
+
+    /** Returns true if every commit passes. */
+    boolean isEmpty() {
+        return since == Long.MIN_VALUE && until == Long.MAX_VALUE
+                && author == null && grep == null;
+    }
+
+    boolean matchesDate(long time) {
+        return time >= since && time <= until;
+    }
+
+    boolean matchesAuthor(String name) {
+        return author == null
+                || author.matcher(name == null ? "" : name).find();
+    }
+
+    boolean matchesMessage(String message) {
+        return grep == null || grep.matcher(message).find();
+    }
+
+    boolean matches(Commit c) {
+        return matchesDate(c.getDate().getTime())
+                && matchesAuthor(c.getAuthor())
+                && matchesMessage(c.getMessage());
+    }
+}
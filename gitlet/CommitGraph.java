@@ -0,0 +1,286 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit graph is a side file, .gitlet/commit-graph, that keeps for every
+ * commit what walking history needs (id, parents, date) plus a Bloom filter
+ * of the paths the commit changed compared to its first parent. Walking it
+ * never deserializes a commit, and a path limited log only loads the commits
+ * whose filter says they might have touched the path.
+ *
+ * The file is append only: a record is added at commit time and the
+ * commit-graph write command appends records for commits that are older
+ * than the file. A commit's position in the file is its dense number, which
+ * other indexes may use, and never changes. Commits missing from the graph
+ * are fine, callers just fall back to loading them.
+ *
+ * Each record is framed by a magic number in front and its own length plus
+ * another magic number at the end, so a record cut short by a crash is
+ * recognised and dropped before anything else gets appended.
+ *
+ *  @author Adrian Serbanescu
+ */
+class CommitGraph {
+    /** Name of the graph file inside the .gitlet directory. */
+    static final String GRAPH_FILE = "commit-graph";
+    /** Filters of commits touching more paths than this aren't worth it,
+     *  such commits are simply always looked at. */
+    static final int MAX_CHANGED_PATHS = 512;
+
+    private static final int RECORD_MAGIC = 0x47524150;  // "GRAP"
+    private static final int END_MAGIC = 0x48454e44;     // "HEND"
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    private static final byte[] NO_ID = new byte[ID_BYTES];
+
+    private final List<String> ids = new ArrayList<>();
+    private final List<String> parents = new ArrayList<>();
+    private final List<String> mergeParents = new ArrayList<>();
+    private final List<Long> dates = new ArrayList<>();
+    private final List<BloomFilter> filters = new ArrayList<>();
+    private final HashMap<String, Integer> positions = new HashMap<>();
+    private long validLength;
+
+    private CommitGraph() {
+    }
+
+    /** Reads the commit graph of the repository in GITLETDIR (an empty graph
+     *  if there is none yet). */
+    static CommitGraph load(File gitletDir) {
+        CommitGraph graph = new CommitGraph();
+        File file = join(gitletDir, GRAPH_FILE);
+        if (!file.isFile()) {
+            return graph;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                if (in.readInt() != RECORD_MAGIC) {
+                    break;
+                }
+                String id = readId(in);
+                String parent = readId(in);
+                String mergeParent = readId(in);
+                long date = in.readLong();
+                int n = in.readInt();
+                long[] words = n < 0 ? null : new long[n];
+                for (int i = 0; i < Math.max(n, 0); i++) {
+                    words[i] = in.readLong();
+                }
+                int length = in.readInt();
+                if (in.readInt() != END_MAGIC
+                        || length != recordLength(Math.max(n, 0))) {
+                    break;
+                }
+                graph.add(id, parent, mergeParent, date,
+                        words == null ? null : new BloomFilter(words));
+                graph.validLength += length;
+            }
+        } catch (EOFException excp) {
+            /* A record cut short by a crash, everything before it counts. */
+        } catch (IOException excp) {
+            throw error("Cannot read commit graph: %s", excp.getMessage());
+        }
+        return graph;
+    }
+
+    /**
+     * Appends records for COMMITS, each paired with the paths it changed
+     * compared to its first parent in CHANGED, to the graph of the
+     * repository in GITLETDIR. Parents have to come before their children.
+     */
+    static void append(File gitletDir, List<Commit> commits,
+                       List<? extends Collection<String>> changed) {
+        List<byte[]> records = new ArrayList<>();
+        for (int i = 0; i < commits.size(); i++) {
+            records.add(record(commits.get(i), changed.get(i)));
+        }
+        appendRecords(gitletDir, records);
+    }
+
+    /**
+     * The record of commit C, which changed the paths in CHANGED, as
+     * appendRecords() takes it. Building the Bloom filter is most of the
+     * work of appending, and needs no lock.
+     */
+    static byte[] record(Commit c, Collection<String> changed) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeRecord(new DataOutputStream(bytes), c, changed);
+        } catch (IOException excp) {
+            throw error("Cannot write commit graph: %s", excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Appends RECORDS, made by record() and parents first, to the graph of
+     *  the repository in GITLETDIR. */
+    static void appendRecords(File gitletDir, List<byte[]> records) {
+        File file = join(gitletDir, GRAPH_FILE);
+        try {
+            dropTornTail(gitletDir, file);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (byte[] record : records) {
+                bytes.write(record);
+            }
+            try (FileOutputStream stream = new FileOutputStream(file, true)) {
+                stream.write(bytes.toByteArray());
+            }
+        } catch (IOException excp) {
+            throw error("Cannot write commit graph: %s", excp.getMessage());
+        }
+    }
+
+    /** Appends the record of commit C, which changed the paths in
+     *  CHANGED. */
+    static void append(File gitletDir, Commit c, Collection<String> changed) {
+        List<Commit> commits = new ArrayList<>();
+        commits.add(c);
+        List<Collection<String>> paths = new ArrayList<>();
+        paths.add(changed);
+        append(gitletDir, commits, paths);
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    boolean contains(String id) {
+        return positions.containsKey(id);
+    }
+
+    /** Position of commit ID in the graph, or -1 if it isn't in it. */
+    int position(String id) {
+        Integer pos = id == null ? null : positions.get(id);
+        return pos == null ? -1 : pos;
+    }
+
+    String id(int pos) {
+        return ids.get(pos);
+    }
+
+    String parent(int pos) {
+        return parents.get(pos);
+    }
+
+    String mergeParent(int pos) {
+        return mergeParents.get(pos);
+    }
+
+    long date(int pos) {
+        return dates.get(pos);
+    }
+
+    /** False if the commit at POS certainly didn't change PATH compared to
+     *  its first parent. */
+    boolean mightHaveChanged(int pos, String path) {
+        BloomFilter filter = filters.get(pos);
+        return filter == null || filter.mightContain(path);
+    }
+
+    private void add(String id, String parent, String mergeParent,
+                     long date, BloomFilter filter) {
+        if (positions.containsKey(id)) {
+            /* Same files, same id: the first commit written is the one the
+             * object store kept. */
+            return;
+        }
+        positions.put(id, ids.size());
+        ids.add(id);
+        parents.add(parent);
+        mergeParents.add(mergeParent);
+        dates.add(date);
+        filters.add(filter);
+    }
+
+    private static void writeRecord(DataOutputStream out, Commit c,
+                                    Collection<String> changed)
+            throws IOException {
+        out.writeInt(RECORD_MAGIC);
+        writeId(out, c.getId());
+        writeId(out, c.getParent());
+        writeId(out, c.getMergeParent());
+        out.writeLong(c.getDate().getTime());
+        if (changed.size() > MAX_CHANGED_PATHS) {
+            out.writeInt(-1);
+            out.writeInt(recordLength(0));
+        } else {
+            BloomFilter filter = new BloomFilter(changed.size());
+            for (String path : changed) {
+                filter.add(path);
+            }
+            long[] words = filter.words();
+            out.writeInt(words.length);
+            for (long w : words) {
+                out.writeLong(w);
+            }
+            out.writeInt(recordLength(words.length));
+        }
+        out.writeInt(END_MAGIC);
+    }
+
+    private static int recordLength(int words) {
+        return 4 + 3 * ID_BYTES + 8 + 4 + 8 * words + 4 + 4;
+    }
+
+    /** Cuts off a partially written last record, if a crash left one. */
+    private static void dropTornTail(File gitletDir, File file)
+            throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length >= 8) {
+                raf.seek(length - 8);
+                int last = raf.readInt();
+                if (raf.readInt() == END_MAGIC && last <= length) {
+                    raf.seek(length - last);
+                    if (raf.readInt() == RECORD_MAGIC) {
+                        return;
+                    }
+                }
+            } else if (length == 0) {
+                return;
+            }
+            raf.setLength(load(gitletDir).validLength);
+        }
+    }
+
+    /** Writes ID as raw bytes, all zeros for null. */
+    static void writeId(DataOutput out, String id)
+            throws IOException {
+        if (id == null) {
+            out.write(NO_ID);
+            return;
+        }
+        byte[] bytes = new byte[ID_BYTES];
+        fromHex(id, bytes, 0);
+        out.write(bytes);
+    }
+
+    /** Reads an id written by writeId. */
+    static String readId(DataInput in) throws IOException {
+        byte[] id = new byte[ID_BYTES];
+        in.readFully(id);
+        return Arrays.equals(id, NO_ID) ? null : toHex(id);
+    }
+}
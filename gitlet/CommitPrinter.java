@@ -0,0 +1,103 @@
+package gitlet;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Prints the commits log and global-log walk through, in the layout and
+ * within the limits given on the command line:
+ *
+ *  --oneline           one line per commit: abbreviated id and message;
+ *  --max-count=N, -n N at most N commits;
+ *  --skip=N            leave out the first N commits, which together with
+ *                      --max-count pages through a long history.
+ *
+ * Walks ask done() before loading the next commit, so a limited log only
+ * reads as many commits as it prints.
+ *
+ *  @author Adrian Serbanescu
+ */
+class CommitPrinter {
+    /** How often a long listing checks whether anyone still reads it. */
+    private static final int CHECK_EVERY = 1024;
+
+    private final boolean oneline;
+    private int skip;
+    /** Commits still to print, or -1 for no limit. */
+    private int left;
+    private int printed;
+    private boolean closed;
+
+    CommitPrinter(boolean oneline, int skip, int maxCount) {
+        this.oneline = oneline;
+        this.skip = skip;
+        this.left = maxCount;
+    }
+
+    /** A printer without limits, in the full layout. */
+    CommitPrinter() {
+        this(false, 0, -1);
+    }
+
+    /**
+     * Reads the options in ARGS. Returns null if one of them is not an
+     * option of log or has a bad value.
+     */
+    static CommitPrinter parse(List<String> args) {
+        boolean oneline = false;
+        int skip = 0;
+        int maxCount = -1;
+        try {
+            for (int i = 0; i < args.size(); i++) {
+                String arg = args.get(i);
+                if (arg.equals("--oneline")) {
+                    oneline = true;
+                } else if (arg.startsWith("--max-count=")) {
+                    maxCount = Integer.parseInt(
+                            arg.substring("--max-count=".length()));
+                } else if (arg.equals("-n") && i + 1 < args.size()) {
+                    maxCount = Integer.parseInt(args.get(++i));
+                } else if (arg.startsWith("--skip=")) {
+                    skip = Integer.parseInt(arg.substring("--skip=".length()));
+                } else {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException excp) {
+            return null;
+        }
+        if (skip < 0 || maxCount < -1) {
+            return null;
+        }
+        return new CommitPrinter(oneline, skip, maxCount);
+    }
+
+    /** Returns true once no more commits will be printed. */
+    boolean done() {
+        return left == 0 || closed;
+    }
+
+    /** Prints C, unless it is one of the commits to skip. */
+    void print(Commit c) {
+        if (done()) {
+            return;
+        }
+        if (skip > 0) {
+            skip--;
+            return;
+        }
+        PrintStream out = System.out;
+        if (oneline) {
+            out.append(c.getId(), 0, 7).append(' ')
+                    .append(c.getMessage()).append('\n');
+        } else {
+            c.print(out);
+        }
+        if (left > 0) {
+            left--;
+        }
+        if (++printed % CHECK_EVERY == 0) {
+            closed = Output.closed();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/**
+ * Per repository settings, persisted as a properties file in .gitlet/config.
+ * Keys are dotted names like core.durability; anything not set falls back to
+ * the default the caller passes in, so a repository without a config file
+ * behaves exactly like before.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Config {
+    /** Name of the config file inside the .gitlet directory. */
+    static final String CONFIG_FILE = "config";
+
+    /** Config of the repository in the current working directory. */
+    private static Config local;
+
+    private final File file;
+    private final Properties props = new Properties();
+
+    private Config(File gitletDir) {
+        file = join(gitletDir, CONFIG_FILE);
+        if (file.isFile()) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException excp) {
+                throw error("Cannot read config: %s", excp.getMessage());
+            }
+        }
+    }
+
+    /** Returns the config of the repository in GITLETDIR. */
+    static Config load(File gitletDir) {
+        return new Config(gitletDir);
+    }
+
+    /** Returns the config of the repository in the current working
+     *  directory, reading it only once per process. */
+    static Config local() {
+        if (local == null) {
+            local = new Config(Repository.GITLET_DIR);
+        }
+        return local;
+    }
+
+    String get(String key, String def) {
+        return props.getProperty(key, def);
+    }
+
+    String get(String key) {
+        return props.getProperty(key);
+    }
+
+    long getLong(String key, long def) {
+        String value = props.getProperty(key);
+        try {
+            return value == null ? def : Long.parseLong(value.trim());
+        } catch (NumberFormatException excp) {
+            throw error("Bad value for %s: %s", key, value);
+        }
+    }
+
+    int getInt(String key, int def) {
+        return (int) getLong(key, def);
+    }
+
+    boolean getBoolean(String key, boolean def) {
+        String value = props.getProperty(key);
+        return value == null ? def : Boolean.parseBoolean(value.trim());
+    }
+
+    /** Sets KEY to VALUE, or removes it when VALUE is null, and saves the
+     *  config file. */
+    void set(String key, String value) {
+        if (value == null) {
+            props.remove(key);
+        } else {
+            props.setProperty(key, value);
+        }
+        StringWriter out = new StringWriter();
+        try {
+            props.store(out, null);
+        } catch (IOException excp) {
+            throw error("Cannot write config: %s", excp.getMessage());
+        }
+        /* Always strict: the config is written rarely and it is where the
+         * durability mode itself lives. */
+        Transaction.publish(Transaction.Durability.STRICT, file,
+                out.toString());
+    }
+}
@@ -0,0 +1,309 @@
+package gitlet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Immutable compressed bitmap in the EWAH (Enhanced Word-Aligned Hybrid)
+ * style. The bits are grouped into 64-bit words, and the words are stored as
+ * a sequence of markers, each one followed by its literal words:
+ *
+ *     marker = run bit (1 bit) | run length (32 bits) | literal count (31 bits)
+ *
+ * A marker stands for "run length" words that are all zeros or all ones
+ * (depending on the run bit) followed by "literal count" words that are
+ * stored as they are. Reachability sets of commits are mostly long runs of
+ * ones (old history) with a few literals near the tip, so they compress very
+ * well, and the logical operations below walk both operands run by run
+ * instead of word by word.
+ *
+ *  @author Adrian Serbanescu
+ */
+class EwahBitmap {
+    private static final long MAX_RUN = (1L << 32) - 1;
+    private static final long MAX_LITERALS = (1L << 31) - 1;
+
+    private long[] buffer = new long[4];
+    private int used;
+    private int lastMarker = -1;
+    /** Number of uncompressed words this bitmap stands for. */
+    private long words;
+
+    private EwahBitmap() {
+    }
+
+    /** A compressed copy of BITS. */
+    static EwahBitmap of(BitSet bits) {
+        EwahBitmap result = new EwahBitmap();
+        for (long w : bits.toLongArray()) {
+            result.addWord(w);
+        }
+        return result;
+    }
+
+    boolean get(int bit) {
+        long target = bit >>> 6;
+        Cursor c = new Cursor(this);
+        long pos = 0;
+        while (!c.exhausted()) {
+            long run = c.runLeft();
+            if (run > 0) {
+                if (target < pos + run) {
+                    return c.runBit;
+                }
+                pos += run;
+                c.skip(run);
+            } else {
+                long w = c.next();
+                if (pos == target) {
+                    return (w & (1L << bit)) != 0;
+                }
+                pos++;
+            }
+        }
+        return false;
+    }
+
+    /** Number of set bits. */
+    long cardinality() {
+        long count = 0;
+        Cursor c = new Cursor(this);
+        while (!c.exhausted()) {
+            long run = c.runLeft();
+            if (run > 0) {
+                count += c.runBit ? run * 64 : 0;
+                c.skip(run);
+            } else {
+                count += Long.bitCount(c.next());
+            }
+        }
+        return count;
+    }
+
+    /** Calls ACTION with the index of every set bit, in increasing order. */
+    void forEach(IntConsumer action) {
+        Cursor c = new Cursor(this);
+        long pos = 0;
+        while (!c.exhausted()) {
+            long run = c.runLeft();
+            if (run > 0) {
+                if (c.runBit) {
+                    for (long i = pos * 64; i < (pos + run) * 64; i++) {
+                        action.accept((int) i);
+                    }
+                }
+                pos += run;
+                c.skip(run);
+            } else {
+                long w = c.next();
+                while (w != 0) {
+                    action.accept((int) (pos * 64
+                            + Long.numberOfTrailingZeros(w)));
+                    w &= w - 1;
+                }
+                pos++;
+            }
+        }
+    }
+
+    EwahBitmap and(EwahBitmap other) {
+        return combine(this, other, 0);
+    }
+
+    EwahBitmap or(EwahBitmap other) {
+        return combine(this, other, 1);
+    }
+
+    EwahBitmap andNot(EwahBitmap other) {
+        return combine(this, other, 2);
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeLong(words);
+        out.writeInt(used);
+        for (int i = 0; i < used; i++) {
+            out.writeLong(buffer[i]);
+        }
+    }
+
+    static EwahBitmap read(DataInput in) throws IOException {
+        EwahBitmap result = new EwahBitmap();
+        result.words = in.readLong();
+        result.used = in.readInt();
+        result.buffer = new long[Math.max(result.used, 1)];
+        for (int i = 0; i < result.used; i++) {
+            result.buffer[i] = in.readLong();
+        }
+        for (int i = 0; i < result.used;
+             i += 1 + literals(result.buffer[i])) {
+            result.lastMarker = i;
+        }
+        return result;
+    }
+
+    private static long apply(int op, long x, long y) {
+        switch (op) {
+            case 0:
+                return x & y;
+            case 1:
+                return x | y;
+            default:
+                return x & ~y;
+        }
+    }
+
+    private static EwahBitmap combine(EwahBitmap a, EwahBitmap b, int op) {
+        EwahBitmap result = new EwahBitmap();
+        Cursor x = new Cursor(a);
+        Cursor y = new Cursor(b);
+        while (!x.exhausted() || !y.exhausted()) {
+            long rx = x.exhausted() ? Long.MAX_VALUE : x.runLeft();
+            long ry = y.exhausted() ? Long.MAX_VALUE : y.runLeft();
+            if (rx > 0 && ry > 0) {
+                long n = Math.min(rx, ry);
+                long wx = !x.exhausted() && x.runBit ? -1L : 0L;
+                long wy = !y.exhausted() && y.runBit ? -1L : 0L;
+                result.addRun(apply(op, wx, wy) != 0, n);
+                x.skip(n);
+                y.skip(n);
+            } else {
+                long wx = x.exhausted() ? 0 : x.nextWord();
+                long wy = y.exhausted() ? 0 : y.nextWord();
+                result.addWord(apply(op, wx, wy));
+            }
+        }
+        return result;
+    }
+
+    private void addWord(long w) {
+        if (w == 0 || w == -1L) {
+            addRun(w == -1L, 1);
+        } else {
+            if (lastMarker < 0
+                    || literals(buffer[lastMarker]) == MAX_LITERALS) {
+                push(0);
+                lastMarker = used - 1;
+            }
+            buffer[lastMarker] = marker(runBit(buffer[lastMarker]),
+                    runLength(buffer[lastMarker]),
+                    literals(buffer[lastMarker]) + 1);
+            push(w);
+            words++;
+        }
+    }
+
+    private void addRun(boolean bit, long n) {
+        words += n;
+        while (n > 0) {
+            long m = lastMarker < 0 ? 0 : buffer[lastMarker];
+            if (lastMarker >= 0 && literals(m) == 0
+                    && (runLength(m) == 0 || runBit(m) == bit)
+                    && runLength(m) < MAX_RUN) {
+                long add = Math.min(n, MAX_RUN - runLength(m));
+                buffer[lastMarker] = marker(bit, runLength(m) + add, 0);
+                n -= add;
+            } else {
+                push(0);
+                lastMarker = used - 1;
+            }
+        }
+    }
+
+    private void push(long w) {
+        if (used == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[used++] = w;
+    }
+
+    private static long marker(boolean bit, long run, long literals) {
+        return (bit ? 1L : 0L) | (run << 1) | (literals << 33);
+    }
+
+    private static boolean runBit(long marker) {
+        return (marker & 1) != 0;
+    }
+
+    private static long runLength(long marker) {
+        return (marker >>> 1) & MAX_RUN;
+    }
+
+    private static long literals(long marker) {
+        return marker >>> 33;
+    }
+
+    /** Reads a bitmap run by run and literal by literal. */
+    private static class Cursor {
+        private final EwahBitmap bitmap;
+        private int marker;
+        private long run;
+        private boolean runBit;
+        private long lits;
+        private int litPos;
+
+        Cursor(EwahBitmap bitmap) {
+            this.bitmap = bitmap;
+            marker = -1;
+            advance();
+        }
+
+        boolean exhausted() {
+            return run == 0 && lits == 0;
+        }
+
+        /** Words left in the current run, 0 if positioned at a literal. */
+        long runLeft() {
+            return run;
+        }
+
+        void skip(long n) {
+            if (exhausted()) {
+                return;
+            }
+            run -= n;
+            if (run == 0 && lits == 0) {
+                advance();
+            }
+        }
+
+        /** The next uncompressed word, whether it's part of a run or a
+         *  literal. */
+        long nextWord() {
+            if (run > 0) {
+                long w = runBit ? -1L : 0L;
+                skip(1);
+                return w;
+            }
+            return next();
+        }
+
+        /** The next literal word; only valid when runLeft() is 0. */
+        long next() {
+            long w = bitmap.buffer[litPos++];
+            lits--;
+            if (lits == 0) {
+                advance();
+            }
+            return w;
+        }
+
+        /** Moves to the next marker with anything in it. */
+        private void advance() {
+            while (run == 0 && lits == 0) {
+                marker = marker < 0 ? 0 : litPos;
+                if (marker >= bitmap.used) {
+                    return;
+                }
+                long m = bitmap.buffer[marker];
+                run = runLength(m);
+                runBit = runBit(m);
+                lits = literals(m);
+                litPos = marker + 1;
+            }
+        }
+    }
+}
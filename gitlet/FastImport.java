@@ -0,0 +1,467 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Reads a history to import from a stream, for fast-import. The stream is a
+ * sequence of commands, each starting on a line of its own:
+ *
+ *  blob                   a file's contents:
+ *  mark :N                  optional, names the blob :N further on;
+ *  data LENGTH              followed by LENGTH bytes of contents.
+ *
+ *  commit BRANCH          a commit on BRANCH:
+ *  mark :N                  optional;
+ *  author NAME              optional, user.name if missing;
+ *  date SECONDS             optional, since the epoch; now if missing;
+ *  data LENGTH              followed by LENGTH bytes of message;
+ *  from REF                 optional first parent, the tip of BRANCH if
+ *                           missing (the initial commit for a new branch:
+ *                           gitlet histories have a single root);
+ *  merge REF                optional second parent;
+ *  M BLOB FILE              any number of changes against the first
+ *  D FILE                   parent: FILE gets blob BLOB (a mark or an id),
+ *  deleteall                FILE goes, or every file goes.
+ *
+ *  reset BRANCH           points BRANCH at another commit:
+ *  from REF
+ *
+ *  done                   optional, ends the stream.
+ *
+ * A REF is a mark, a branch or a commit id. Blank lines, lines starting
+ * with # and a line feed right after data are skipped.
+ *
+ * Each branch's files are kept in memory and changed in place, so a commit
+ * costs its changes, one serialization and a hash of its files: no index,
+ * no deserialized parent, no ref update. Objects go into the store through
+ * one transaction per BATCH_OBJECTS objects, and the commit graph and
+ * commit columns get their records once per batch. Refs are left alone;
+ * branches() tells what to point them at, once the stream is read.
+ *
+ * A commit the repository has already (the same files, parents, author,
+ * date and message) is taken as it is. The import stops at any error
+ * without changing refs, and what it stored by then is garbage for gc.
+ *
+ *  @author Adrian Serbanescu
+ */
+class FastImport {
+    /** How many objects are written before their transaction commits. */
+    static final int BATCH_OBJECTS = 10000;
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final InputStream in;
+    private final byte[] buf = new byte[1 << 16];
+    private int pos;
+    private int limit;
+    private byte[] line = new byte[256];
+    private String pushedBack;
+    private int lineNumber;
+
+    /** The transaction of the current batch, or null. */
+    private Transaction tx;
+    private int pending;
+    private final Set<String> pendingBlobs = new HashSet<>();
+    private final Set<String> pendingCommits = new HashSet<>();
+    private final List<Commit> batch = new ArrayList<>();
+    private final List<Collection<String>> batchChanged = new ArrayList<>();
+
+    /** Marks of the stream and the ids they stand for. */
+    private final Map<String, String> marks = new HashMap<>();
+    /** Tips of the branches the stream moved, in the order first moved. */
+    private final LinkedHashMap<String, String> tips = new LinkedHashMap<>();
+    /** The files of each tip, changed in place by the next commit. */
+    private final Map<String, HashMap<String, String>> trees =
+            new HashMap<>();
+    private String initial;
+    private int blobs;
+    private int commits;
+
+    private FastImport(File gitletDir, InputStream in) {
+        this.gitletDir = gitletDir;
+        this.store = ObjectStore.of(gitletDir);
+        this.in = in;
+    }
+
+    /** Imports the history IN holds into the repository in GITLETDIR,
+     *  storing its objects. Exits with a message if the stream is bad. */
+    static FastImport read(File gitletDir, InputStream in) {
+        FastImport imp = new FastImport(gitletDir, in);
+        try {
+            imp.run();
+        } catch (IOException excp) {
+            imp.fail("cannot read stream: " + excp.getMessage());
+        }
+        return imp;
+    }
+
+    /** Where the branches the stream moved should point now. */
+    Map<String, String> branches() {
+        return tips;
+    }
+
+    int blobs() {
+        return blobs;
+    }
+
+    int commits() {
+        return commits;
+    }
+
+    private void run() throws IOException {
+        String command;
+        while ((command = readLine()) != null) {
+            if (command.isEmpty() || command.startsWith("#")) {
+                continue;
+            }
+            if (command.equals("blob")) {
+                blob();
+            } else if (command.startsWith("commit ")) {
+                commit(command.substring("commit ".length()));
+            } else if (command.startsWith("reset ")) {
+                reset(command.substring("reset ".length()));
+            } else if (command.equals("done")) {
+                break;
+            } else {
+                fail("unknown command: " + command);
+            }
+        }
+        flush();
+    }
+
+    private void blob() throws IOException {
+        String mark = mark();
+        String id = Blobs.storeAny(data(), tx());
+        pendingBlobs.add(id);
+        blobs++;
+        if (mark != null) {
+            marks.put(mark, id);
+        }
+        written();
+    }
+
+    private void commit(String branch) throws IOException {
+        checkBranch(branch);
+        String mark = mark();
+        String author = optional("author ");
+        String seconds = optional("date ");
+        Date date = new Date();
+        if (seconds != null) {
+            try {
+                date = new Date(Long.parseLong(seconds.trim()) * 1000);
+            } catch (NumberFormatException excp) {
+                fail("bad date: " + seconds);
+            }
+        }
+        String message = new String(data(), StandardCharsets.UTF_8);
+        String from = optional("from ");
+        String merge = optional("merge ");
+        String parent = from != null ? commitRef(from) : tip(branch);
+        HashMap<String, String> files = filesOf(branch, parent);
+        List<String> changed = new ArrayList<>();
+        String change;
+        while ((change = readLine()) != null && !change.isEmpty()) {
+            if (change.startsWith("M ")) {
+                String[] parts = change.split(" ", 3);
+                if (parts.length != 3) {
+                    fail("bad change: " + change);
+                }
+                files.put(checkPath(parts[2]), blobRef(parts[1]));
+                changed.add(parts[2]);
+            } else if (change.startsWith("D ")) {
+                String path = checkPath(change.substring(2));
+                files.remove(path);
+                changed.add(path);
+            } else if (change.equals("deleteall")) {
+                changed.addAll(files.keySet());
+                files.clear();
+            } else {
+                pushedBack = change;
+                break;
+            }
+        }
+        Commit c = new Commit(message,
+                author == null ? Repository.author() : author.trim(), date,
+                parent, merge == null ? null : commitRef(merge), files);
+        if (!hasCommit(c.getId())) {
+            tx().writeObject(ObjectStore.Kind.COMMIT, c.getId(),
+                    serialize(c));
+            pendingCommits.add(c.getId());
+            Repository.COMMIT_CACHE.put(c.getId(), c);
+            batch.add(c);
+            batchChanged.add(changed);
+            commits++;
+        }
+        tips.put(branch, c.getId());
+        trees.put(branch, files);
+        if (mark != null) {
+            marks.put(mark, c.getId());
+        }
+        written();
+    }
+
+    private void reset(String branch) throws IOException {
+        checkBranch(branch);
+        String from = optional("from ");
+        if (from == null) {
+            fail("reset " + branch + " without from");
+        }
+        tips.put(branch, commitRef(from));
+        trees.remove(branch);
+    }
+
+    /** Fails unless BRANCH is a valid name that clashes neither with a
+     *  branch of the repository nor with one of the stream. */
+    private void checkBranch(String branch) {
+        if (!RefStore.isValidName(branch)) {
+            fail("bad branch name: " + branch);
+        }
+        String other = RefStore.of(gitletDir).conflicting(branch);
+        for (String tip : tips.keySet()) {
+            if (RefStore.clash(tip, branch)) {
+                other = tip;
+            }
+        }
+        if (other != null) {
+            fail("branch " + branch + " clashes with branch " + other);
+        }
+    }
+
+    /** The files of commit PARENT, to be changed for the next commit on
+     *  BRANCH. */
+    private HashMap<String, String> filesOf(String branch, String parent) {
+        HashMap<String, String> own = trees.get(branch);
+        if (own != null && parent.equals(tips.get(branch))) {
+            return own;
+        }
+        for (Map.Entry<String, String> tip : tips.entrySet()) {
+            HashMap<String, String> files = trees.get(tip.getKey());
+            if (files != null && parent.equals(tip.getValue())) {
+                return new HashMap<>(files);
+            }
+        }
+        return new HashMap<>(load(parent).getFiles());
+    }
+
+    /** Where a commit on BRANCH without from goes. */
+    private String tip(String branch) {
+        String id = tips.get(branch);
+        if (id == null) {
+            id = RefStore.of(gitletDir).get(branch);
+        }
+        if (id == null) {
+            if (initial == null) {
+                initial = Repository.headId();
+                for (Commit c = load(initial); c.getParent() != null;
+                     c = load(c.getParent())) {
+                    initial = c.getParent();
+                }
+            }
+            id = initial;
+        }
+        return id;
+    }
+
+    /** The commit REF stands for. */
+    private String commitRef(String ref) {
+        ref = ref.trim();
+        String id = ref.startsWith(":") ? marks.get(ref) : tips.get(ref);
+        if (id == null && !ref.startsWith(":")) {
+            id = RefStore.of(gitletDir).get(ref);
+        }
+        if (id == null && ref.length() >= 4 && ref.length() <= UID_LENGTH
+                && ref.matches("[0-9a-f]+")) {
+            if (ref.length() == UID_LENGTH) {
+                id = ref;
+            } else {
+                List<String> found = store.find(ObjectStore.Kind.COMMIT, ref);
+                id = found.size() == 1 ? found.get(0) : null;
+            }
+        }
+        if (id == null || !hasCommit(id)) {
+            fail("no such commit: " + ref);
+        }
+        return id;
+    }
+
+    /** The blob REF stands for. */
+    private String blobRef(String ref) {
+        String id = ref.startsWith(":") ? marks.get(ref) : ref;
+        if (id == null || !pendingBlobs.contains(id)
+                && !Blobs.exists(gitletDir, id)) {
+            fail("no such blob: " + ref);
+        }
+        return id;
+    }
+
+    private boolean hasCommit(String id) {
+        return pendingCommits.contains(id)
+                || store.contains(ObjectStore.Kind.COMMIT, id);
+    }
+
+    /** Commit ID, imported or not. */
+    private Commit load(String id) {
+        Commit c = Repository.COMMIT_CACHE.getIfPresent(id);
+        if (c != null) {
+            return c;
+        }
+        if (pendingCommits.contains(id)) {
+            flush();
+        }
+        return Repository.readCommit(gitletDir, id);
+    }
+
+    /** PATH, if gitlet can track a file there. */
+    private String checkPath(String path) {
+        if (path.isEmpty() || path.contains("/") || path.equals(".")
+                || path.equals("..") || path.indexOf('\0') >= 0) {
+            fail("gitlet only tracks files in the top directory: " + path);
+        }
+        return path;
+    }
+
+    private Transaction tx() {
+        if (tx == null) {
+            tx = new Transaction(gitletDir,
+                    Transaction.Durability.configured());
+        }
+        return tx;
+    }
+
+    /** Counts an object written, committing the batch once it is full. */
+    private void written() {
+        if (++pending >= BATCH_OBJECTS) {
+            flush();
+        }
+    }
+
+    /** Commits the current batch and appends its commits to the commit
+     *  graph and the commit columns. */
+    private void flush() {
+        if (tx == null) {
+            return;
+        }
+        tx.commit();
+        tx.close();
+        tx = null;
+        CommitGraph.append(gitletDir, batch, batchChanged);
+        CommitColumns.append(gitletDir, batch);
+        batch.clear();
+        batchChanged.clear();
+        pendingBlobs.clear();
+        pendingCommits.clear();
+        pending = 0;
+    }
+
+    /** The mark on the next line, if there is one. */
+    private String mark() throws IOException {
+        String mark = optional("mark ");
+        if (mark != null && (mark.length() < 2 || !mark.startsWith(":")
+                || !mark.chars().skip(1).allMatch(Character::isDigit))) {
+            fail("bad mark: " + mark);
+        }
+        return mark;
+    }
+
+    /** The rest of the next line if it starts with PREFIX; null, leaving
+     *  the line to be read again, otherwise. */
+    private String optional(String prefix) throws IOException {
+        String next = readLine();
+        if (next != null && next.startsWith(prefix)) {
+            return next.substring(prefix.length());
+        }
+        pushedBack = next;
+        return null;
+    }
+
+    /** Reads a data command and the bytes that follow it. */
+    private byte[] data() throws IOException {
+        String header = readLine();
+        int length = -1;
+        if (header != null && header.startsWith("data ")) {
+            try {
+                length = Integer.parseInt(header.substring(5).trim());
+            } catch (NumberFormatException excp) {
+                length = -1;
+            }
+        }
+        if (length < 0) {
+            fail("expected data, got: " + header);
+        }
+        byte[] data = new byte[length];
+        int n = Math.min(length, limit - pos);
+        System.arraycopy(buf, pos, data, 0, n);
+        pos += n;
+        if (in.readNBytes(data, n, length - n) != length - n) {
+            fail("stream ends inside data");
+        }
+        for (byte b : data) {
+            if (b == '\n') {
+                lineNumber++;
+            }
+        }
+        if (pos == limit) {
+            pos = 0;
+            limit = Math.max(in.read(buf), 0);
+        }
+        if (pos < limit && buf[pos] == '\n') {
+            pos++;
+            lineNumber++;
+        }
+        return data;
+    }
+
+    /** The next line of the stream without its line feed, or null at the
+     *  end. */
+    private String readLine() throws IOException {
+        if (pushedBack != null) {
+            String next = pushedBack;
+            pushedBack = null;
+            return next;
+        }
+        int length = 0;
+        while (true) {
+            if (pos == limit) {
+                pos = 0;
+                limit = Math.max(in.read(buf), 0);
+                if (limit == 0) {
+                    if (length == 0) {
+                        return null;
+                    }
+                    break;
+                }
+            }
+            byte b = buf[pos++];
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                line = Arrays.copyOf(line, 2 * length);
+            }
+            line[length++] = b;
+        }
+        lineNumber++;
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void fail(String message) {
+        System.out.println("fast-import: line " + lineNumber + ": "
+                + message);
+        System.exit(0);
+    }
+}
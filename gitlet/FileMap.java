@@ -0,0 +1,236 @@
+package gitlet;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * The files of a commit: an immutable map from file name to blob id that
+ * takes a fraction of the heap of the HashMap<String, String> commits used
+ * to hold (an entry object, a 40 character id string and a slot per file).
+ *
+ * File names are kept sorted in one array and interned, so the same name in
+ * the many commits a merge or the commit cache holds at once is one string.
+ * Blob ids are packed as raw bytes, 20 per file, in a single byte[] and only
+ * turned back into hex when asked for. Lookups go through an open addressing
+ * table of indexes into the name array, and iteration is in name order.
+ *
+ * Commits are still serialized with a HashMap (see Commit), so nothing on
+ * disk changes.
+ *
+ *  @author Adrian Serbanescu
+ */
+final class FileMap extends AbstractMap<String, String> {
+    /** Size of a blob id in bytes. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+
+    /** A commit without files. */
+    static final FileMap EMPTY = new FileMap(new String[0], new byte[0]);
+
+    /** File names, sorted. */
+    private final String[] paths;
+    /** The blob id of paths[i] at ids[i * ID_BYTES]. */
+    private final byte[] ids;
+    /** Open addressing table: index + 1 into paths, or 0 for a free slot.
+     *  At most half full, so every probe sequence ends. */
+    private final int[] slots;
+
+    private FileMap(String[] paths, byte[] ids) {
+        this.paths = paths;
+        this.ids = ids;
+        int capacity = 1;
+        while (capacity < paths.length * 2) {
+            capacity <<= 1;
+        }
+        slots = new int[capacity];
+        for (int i = 0; i < paths.length; i++) {
+            int slot = hash(paths[i]) & (capacity - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            slots[slot] = i + 1;
+        }
+    }
+
+    /** A FileMap with the entries of FILES, which must all be blob ids. */
+    static FileMap of(Map<String, String> files) {
+        if (files instanceof FileMap) {
+            return (FileMap) files;
+        }
+        if (files.isEmpty()) {
+            return EMPTY;
+        }
+        String[] paths = files.keySet().toArray(new String[0]);
+        Arrays.sort(paths);
+        byte[] ids = new byte[paths.length * ID_BYTES];
+        for (int i = 0; i < paths.length; i++) {
+            String id = files.get(paths[i]);
+            if (!ObjectStore.isId(id)) {
+                throw new IllegalArgumentException("Not a blob id: " + id);
+            }
+            fromHex(id, ids, i * ID_BYTES);
+            paths[i] = paths[i].intern();
+        }
+        return new FileMap(paths, ids);
+    }
+
+    /**
+     * Returns a copy with the files in RENAMES (new name to old name) moved
+     * from their old name to their new one. Returns this map if there is
+     * nothing to move.
+     */
+    FileMap renamed(Map<String, String> renames) {
+        if (renames.isEmpty()) {
+            return this;
+        }
+        Map<String, String> files = new HashMap<>(this);
+        for (Map.Entry<String, String> e : renames.entrySet()) {
+            files.put(e.getKey(), files.remove(e.getValue()));
+        }
+        return of(files);
+    }
+
+    /**
+     * The names of the files of all of MAPS, each once, in order. Merges
+     * the sorted name arrays instead of building a set of them.
+     */
+    static Iterable<String> union(FileMap... maps) {
+        return () -> new Iterator<String>() {
+            private final int[] pos = new int[maps.length];
+
+            @Override
+            public boolean hasNext() {
+                for (int i = 0; i < maps.length; i++) {
+                    if (pos[i] < maps[i].paths.length) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String next() {
+                String min = null;
+                for (int i = 0; i < maps.length; i++) {
+                    if (pos[i] < maps[i].paths.length) {
+                        String path = maps[i].paths[pos[i]];
+                        if (min == null || path.compareTo(min) < 0) {
+                            min = path;
+                        }
+                    }
+                }
+                if (min == null) {
+                    throw new NoSuchElementException();
+                }
+                for (int i = 0; i < maps.length; i++) {
+                    if (pos[i] < maps[i].paths.length
+                            && maps[i].paths[pos[i]].equals(min)) {
+                        pos[i]++;
+                    }
+                }
+                return min;
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return paths.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i < 0 ? null : id(i);
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return Arrays.asList(paths).iterator();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return containsKey(o);
+            }
+
+            @Override
+            public int size() {
+                return paths.length;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < paths.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (next >= paths.length) {
+                            throw new NoSuchElementException();
+                        }
+                        int i = next++;
+                        return new SimpleImmutableEntry<>(paths[i], id(i));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return paths.length;
+            }
+        };
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int mask = slots.length - 1;
+        for (int slot = hash((String) key) & mask; slots[slot] != 0;
+             slot = (slot + 1) & mask) {
+            int i = slots[slot] - 1;
+            if (paths[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** The blob id of paths[I] in hex. */
+    private String id(int i) {
+        return toHex(ids, i * ID_BYTES, ID_BYTES);
+    }
+
+    /** Spreads the high bits of the string hash, which is cached by
+     *  String, over the low ones the table uses. */
+    private static int hash(String path) {
+        int h = path.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,297 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/**
+ * Checks a repository for damage.
+ *
+ * First every object is read back and checked against its name, on a pool of
+ * threads: blobs and chunks must hash to their id, chunked blobs must hash to
+ * their id when put back together from their chunks, and commits must
+ * deserialize and carry their own id (a commit id is the hash of its file
+ * map, not of its bytes). Objects are read as streams, and all threads
+ * together read no more than the configured number of bytes per second, so a
+ * check can run next to a busy repository without starving it.
+ *
+ * Then the links between objects are followed: the parents and files of
+ * every commit, the chunks of every chunked blob, and the commits the
+ * branches and HEAD point at, as well as the blobs the index stages. The
+ * parents of commits on the shallow boundary of a shallow clone, and the
+ * blobs a lazy clone can fetch from its promisor, aren't missing. What is
+ * reported:
+ *
+ *  corrupt KIND ID          - the object doesn't match its name;
+ *  broken link from A to B  - A refers to B, which isn't there,
+ *  missing KIND ID          - reported once per missing object after its
+ *                             broken links;
+ *  dangling KIND ID         - nothing refers to the object, gc would remove
+ *                             it.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Fsck {
+    /** Objects queued per thread, so ids are read lazily and the queue
+     *  never holds the whole store. */
+    private static final int QUEUE_PER_THREAD = 4;
+
+    /** What a commit refers to. */
+    private static class Links {
+        private final String parent;
+        private final String mergeParent;
+        private final Collection<String> blobs;
+
+        Links(Commit c) {
+            parent = c.getParent();
+            mergeParent = c.getMergeParent();
+            blobs = new HashSet<>(c.getFiles().values());
+        }
+    }
+
+    private final ObjectStore store;
+    private final File gitletDir;
+    private final int threads;
+    private final long bytesPerSecond;
+    private final Map<ObjectStore.Kind, Set<String>> present =
+            new EnumMap<>(ObjectStore.Kind.class);
+    private final Map<String, Links> commits = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> manifests =
+            new ConcurrentHashMap<>();
+    private final Set<String> problems = new TreeSet<>();
+    /** When the throttle lets the next read through, in nanoseconds. */
+    private long nextRead;
+
+    /** A check of the repository in GITLETDIR with THREADS threads reading
+     *  at most BYTESPERSECOND bytes per second (0 for no limit). */
+    Fsck(File gitletDir, int threads, long bytesPerSecond) {
+        this.gitletDir = gitletDir;
+        this.store = ObjectStore.of(gitletDir);
+        this.threads = Math.max(1, threads);
+        this.bytesPerSecond = bytesPerSecond;
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            present.put(kind, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    /**
+     * Checks every object, then the links from REFS (name to commit id) and
+     * the blobs in STAGED. Returns the problems found, sorted.
+     */
+    Set<String> run(Map<String, String> refs, Collection<String> staged) {
+        verifyObjects();
+        Set<String> referenced = new HashSet<>();
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            link(ref.getKey(), ObjectStore.Kind.COMMIT, ref.getValue(),
+                    referenced);
+        }
+        for (String sha : staged) {
+            link("index", ObjectStore.Kind.BLOB, sha, referenced);
+        }
+        for (Map.Entry<String, Links> e : commits.entrySet()) {
+            String from = "commit " + e.getKey();
+            Links links = e.getValue();
+            if (links.parent != null) {
+                link(from, ObjectStore.Kind.COMMIT, links.parent, referenced);
+            }
+            if (links.mergeParent != null) {
+                link(from, ObjectStore.Kind.COMMIT, links.mergeParent,
+                        referenced);
+            }
+            for (String sha : links.blobs) {
+                link(from, ObjectStore.Kind.BLOB, sha, referenced);
+            }
+        }
+        for (Map.Entry<String, List<String>> e : manifests.entrySet()) {
+            for (String chunk : e.getValue()) {
+                link("blob " + e.getKey(), ObjectStore.Kind.CHUNK, chunk,
+                        referenced);
+            }
+        }
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            for (String id : present.get(kind)) {
+                if (!referenced.contains(id)) {
+                    problems.add("dangling " + name(kind) + " " + id);
+                }
+            }
+        }
+        return problems;
+    }
+
+    /** Number of objects of KIND checked. */
+    int checked(ObjectStore.Kind kind) {
+        return present.get(kind).size();
+    }
+
+    /** Records that FROM refers to object ID of KIND, which is a broken link
+     *  if there is no such object. Chunked blobs count as blobs. */
+    private void link(String from, ObjectStore.Kind kind, String id,
+                      Set<String> referenced) {
+        referenced.add(id);
+        boolean found = present.get(kind).contains(id)
+                || (kind == ObjectStore.Kind.BLOB
+                && present.get(ObjectStore.Kind.MANIFEST).contains(id))
+                || promised(kind, id);
+        if (!found) {
+            problems.add("broken link from " + from + " to " + name(kind)
+                    + " " + id);
+            problems.add("missing " + name(kind) + " " + id);
+        }
+    }
+
+    /** Returns true if the promisor remote of a lazy clone has object ID
+     *  of KIND, which is then only fetched when needed. */
+    private boolean promised(ObjectStore.Kind kind, String id) {
+        if (!(store instanceof LazyObjectStore)) {
+            return false;
+        } else if (kind == ObjectStore.Kind.BLOB) {
+            return Blobs.exists(gitletDir, id);
+        }
+        return kind != ObjectStore.Kind.COMMIT && store.contains(kind, id);
+    }
+
+    private static String name(ObjectStore.Kind kind) {
+        return kind == ObjectStore.Kind.MANIFEST ? "blob"
+                : kind.name().toLowerCase();
+    }
+
+    /** Reads every object back on the thread pool. */
+    private void verifyObjects() {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore queued = new Semaphore(threads * QUEUE_PER_THREAD);
+        try {
+            /* Chunks first, so chunked blobs know which of their chunks are
+             * there. */
+            for (ObjectStore.Kind kind : new ObjectStore.Kind[] {
+                ObjectStore.Kind.CHUNK, ObjectStore.Kind.MANIFEST,
+                ObjectStore.Kind.BLOB, ObjectStore.Kind.COMMIT}) {
+                for (String id : store.ids(kind)) {
+                    present.get(kind).add(id);
+                    queued.acquireUninterruptibly();
+                    pool.execute(() -> {
+                        try {
+                            verify(kind, id);
+                        } finally {
+                            queued.release();
+                        }
+                    });
+                }
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Checks object ID of KIND against its name. */
+    private void verify(ObjectStore.Kind kind, String id) {
+        try {
+            switch (kind) {
+                case COMMIT: {
+                    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                    digest(store.open(kind, id), bytes);
+                    Commit c = Shallow.of(gitletDir).graft(deserialize(
+                            bytes.toByteArray(), Commit.class));
+                    if (!id.equals(c.getId())) {
+                        corrupt(kind, id);
+                    } else {
+                        commits.put(id, new Links(c));
+                    }
+                    break;
+                }
+                case MANIFEST: {
+                    List<String> chunks = Blobs.chunks(gitletDir, id);
+                    manifests.put(id, chunks);
+                    /* Missing chunks are reported as broken links. */
+                    if (present.get(ObjectStore.Kind.CHUNK)
+                            .containsAll(chunks)
+                            && !id.equals(digest(Blobs.open(gitletDir, id),
+                            null))) {
+                        corrupt(kind, id);
+                    }
+                    break;
+                }
+                default:
+                    if (!id.equals(digest(store.open(kind, id), null))) {
+                        corrupt(kind, id);
+                    }
+            }
+        } catch (GitletException | IllegalArgumentException
+                 | ClassCastException | StringIndexOutOfBoundsException excp) {
+            corrupt(kind, id);
+        }
+    }
+
+    private void corrupt(ObjectStore.Kind kind, String id) {
+        synchronized (problems) {
+            problems.add("corrupt " + name(kind) + " " + id);
+        }
+    }
+
+    /** Returns the SHA-1 of what IN holds, reading it through the throttle
+     *  and copying it to COPY if that isn't null. Closes IN. */
+    private String digest(InputStream in, ByteArrayOutputStream copy) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        try (InputStream stream = in) {
+            byte[] buf = new byte[1 << 16];
+            for (int n = stream.read(buf); n >= 0; n = stream.read(buf)) {
+                throttle(n);
+                md.update(buf, 0, n);
+                if (copy != null) {
+                    copy.write(buf, 0, n);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return toHex(md.digest());
+    }
+
+    /** Waits until reading N more bytes keeps all threads together under
+     *  the limit. */
+    private void throttle(int n) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            nextRead = Math.max(nextRead, now);
+            wait = nextRead - now;
+            nextRead += n * 1_000_000_000L / bytesPerSecond;
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Mark and sweep garbage collection of the object store.
+ *
+ * Objects are first numbered: the ids of all commits, blobs, chunk manifests
+ * and chunks are read while streaming through the ids the store lists and
+ * packed, 20 bytes each, into one sorted array per kind, so an object's index
+ * in that array is a dense number we can use as a bit position. Marking walks
+ * the commit graph from the roots (every branch, HEAD and whatever is staged)
+ * and sets the bit of every commit and blob it reaches, and of the chunks of
+ * every chunked blob it reaches. Sweeping hands the marks to the store, which
+ * drops whatever is unmarked as long as it is older than the grace period,
+ * so objects written by a command running right now are never touched. Stray
+ * tmp- files left behind by a crash are swept the same way; the log store
+ * compacts its log instead. The prune maintenance task, which mustn't hold
+ * the repository lock for a whole sweep, instead takes the unmarked objects
+ * as candidates and removes them a few at a time, marking from whatever
+ * roots showed up in between.
+ *
+ *  @author Adrian Serbanescu
+ */
+class GarbageCollector {
+    /** Bytes in a binary SHA-1. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+
+    private final File gitletDir;
+    private final ObjectStore store;
+    private final long cutoff;
+    private final ObjectIds commits;
+    private final ObjectIds blobs;
+    private final ObjectIds manifests;
+    private final ObjectIds chunks;
+    private final BitSet liveCommits = new BitSet();
+    private final BitSet liveBlobs = new BitSet();
+    private final BitSet liveManifests = new BitSet();
+    private final BitSet liveChunks = new BitSet();
+    private final Set<String> newCommits = new HashSet<>();
+    private int removedCommits;
+    private int removedBlobs;
+    private int removedChunks;
+    private int removedTmp;
+
+    /** A collector for the repository in GITLETDIR that leaves alone
+     *  everything modified less than GRACEMILLIS ago. */
+    GarbageCollector(File gitletDir, long graceMillis) {
+        this.gitletDir = gitletDir;
+        this.store = ObjectStore.of(gitletDir);
+        this.cutoff = System.currentTimeMillis() - graceMillis;
+        commits = number(ObjectStore.Kind.COMMIT);
+        blobs = number(ObjectStore.Kind.BLOB);
+        manifests = number(ObjectStore.Kind.MANIFEST);
+        chunks = number(ObjectStore.Kind.CHUNK);
+    }
+
+    /** The ids of the objects of KIND. */
+    private ObjectIds number(ObjectStore.Kind kind) {
+        ObjectIds ids = new ObjectIds();
+        for (String id : store.ids(kind)) {
+            ids.add(id);
+        }
+        ids.sort();
+        return ids;
+    }
+
+    /** Marks everything reachable from the commits in HEADS and the blobs in
+     *  STAGED. Commits written after we numbered the objects have no bit,
+     *  but are walked all the same: they may refer to older objects. */
+    void mark(Collection<String> heads, Collection<String> staged) {
+        for (String sha : staged) {
+            markBlob(sha);
+        }
+        Deque<String> stack = new ArrayDeque<>(heads);
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            int index = commits.indexOf(id);
+            if (index >= 0 ? liveCommits.get(index)
+                    : id == null || newCommits.contains(id)
+                    || !store.contains(ObjectStore.Kind.COMMIT, id)) {
+                continue;
+            }
+            if (index >= 0) {
+                liveCommits.set(index);
+            } else {
+                newCommits.add(id);
+            }
+            Commit c = Repository.readCommit(gitletDir, id);
+            for (String sha : c.getFiles().values()) {
+                markBlob(sha);
+            }
+            if (c.getParent() != null) {
+                stack.push(c.getParent());
+            }
+            if (c.getMergeParent() != null) {
+                stack.push(c.getMergeParent());
+            }
+        }
+    }
+
+    /** Deletes every unmarked object older than the grace period. */
+    void sweep() {
+        ObjectStore.Swept swept = store.sweep((kind, id) ->
+                isLive(live(kind), ids(kind).indexOf(id)), cutoff);
+        removedCommits += swept.removed[ObjectStore.Kind.COMMIT.ordinal()];
+        removedBlobs += swept.removed[ObjectStore.Kind.BLOB.ordinal()]
+                + swept.removed[ObjectStore.Kind.MANIFEST.ordinal()];
+        removedChunks += swept.removed[ObjectStore.Kind.CHUNK.ordinal()];
+        removedTmp += swept.temporary;
+        if (removedCommits > 0) {
+            Repository.COMMIT_CACHE.clear();
+        }
+    }
+
+    /** The ids of the objects of KIND that nothing marked so far reaches,
+     *  the candidates for remove(). */
+    List<String> unmarked(ObjectStore.Kind kind) {
+        ObjectIds ids = ids(kind);
+        BitSet live = live(kind);
+        List<String> unmarked = new ArrayList<>();
+        for (int i = live.nextClearBit(0); i < ids.size();
+             i = live.nextClearBit(i + 1)) {
+            unmarked.add(ids.get(i));
+        }
+        return unmarked;
+    }
+
+    /** Deletes those of IDS, objects of KIND, that are still unmarked and
+     *  older than the grace period. Unlike sweep() this looks at no other
+     *  object, so it can be done a few objects at a time. */
+    void remove(ObjectStore.Kind kind, Collection<String> ids) {
+        ObjectIds numbered = ids(kind);
+        BitSet live = live(kind);
+        List<String> dead = new ArrayList<>();
+        for (String id : ids) {
+            if (!isLive(live, numbered.indexOf(id))) {
+                dead.add(id);
+            }
+        }
+        int removed = store.remove(kind, dead, cutoff);
+        switch (kind) {
+            case COMMIT:
+                removedCommits += removed;
+                if (removed > 0) {
+                    Repository.COMMIT_CACHE.clear();
+                }
+                break;
+            case CHUNK:
+                removedChunks += removed;
+                break;
+            default:
+                removedBlobs += removed;
+        }
+    }
+
+    int removedCommits() {
+        return removedCommits;
+    }
+
+    int removedBlobs() {
+        return removedBlobs;
+    }
+
+    int removedChunks() {
+        return removedChunks;
+    }
+
+    int removedTmp() {
+        return removedTmp;
+    }
+
+    private void markBlob(String sha) {
+        int index = blobs.indexOf(sha);
+        if (index >= 0) {
+            liveBlobs.set(index);
+        }
+        index = manifests.indexOf(sha);
+        boolean chunked = index >= 0 ? !liveManifests.get(index)
+                : store.containsLocally(ObjectStore.Kind.MANIFEST, sha);
+        if (chunked) {
+            if (index >= 0) {
+                liveManifests.set(index);
+            }
+            for (String chunk : Blobs.chunks(gitletDir, sha)) {
+                index = chunks.indexOf(chunk);
+                if (index >= 0) {
+                    liveChunks.set(index);
+                }
+            }
+        }
+    }
+
+    private ObjectIds ids(ObjectStore.Kind kind) {
+        switch (kind) {
+            case COMMIT:
+                return commits;
+            case BLOB:
+                return blobs;
+            case MANIFEST:
+                return manifests;
+            default:
+                return chunks;
+        }
+    }
+
+    private BitSet live(ObjectStore.Kind kind) {
+        switch (kind) {
+            case COMMIT:
+                return liveCommits;
+            case BLOB:
+                return liveBlobs;
+            case MANIFEST:
+                return liveManifests;
+            default:
+                return liveChunks;
+        }
+    }
+
+    /** Objects that showed up after we numbered them (INDEX -1) are
+     *  always live. */
+    private static boolean isLive(BitSet live, int index) {
+        return index < 0 || live.get(index);
+    }
+
+    /**
+     * A sorted set of object ids packed as raw bytes, ID_BYTES per id, whose
+     * positions serve as the dense object indices of the mark bitmaps.
+     */
+    private static class ObjectIds {
+        private byte[] ids = new byte[ID_BYTES * 1024];
+        private int size;
+
+        void add(String hex) {
+            if (hex.length() != UID_LENGTH) {
+                return;
+            }
+            if ((size + 1) * ID_BYTES > ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            if (!fromHex(hex, ids, size * ID_BYTES)) {
+                return;
+            }
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        /** The id at INDEX. */
+        String get(int index) {
+            return toHex(ids, index * ID_BYTES, ID_BYTES);
+        }
+
+        void sort() {
+            quickSort(0, size - 1);
+        }
+
+        /** Returns the dense index of HEX, or -1 if it's not an object we
+         *  know of. */
+        int indexOf(String hex) {
+            byte[] key = new byte[ID_BYTES];
+            if (hex == null || hex.length() != UID_LENGTH
+                    || !fromHex(hex, key, 0)) {
+                return -1;
+            }
+            int lo = 0;
+            int hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(mid, key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int i, byte[] key) {
+            return Arrays.compareUnsigned(ids, i * ID_BYTES,
+                    (i + 1) * ID_BYTES, key, 0, ID_BYTES);
+        }
+
+        private int compare(int i, int j) {
+            return Arrays.compareUnsigned(ids, i * ID_BYTES,
+                    (i + 1) * ID_BYTES, ids, j * ID_BYTES,
+                    (j + 1) * ID_BYTES);
+        }
+
+        private void swap(int i, int j) {
+            for (int k = 0; k < ID_BYTES; k++) {
+                byte b = ids[i * ID_BYTES + k];
+                ids[i * ID_BYTES + k] = ids[j * ID_BYTES + k];
+                ids[j * ID_BYTES + k] = b;
+            }
+        }
+
+        private void quickSort(int lo, int hi) {
+            while (lo < hi) {
+                swap((lo + hi) >>> 1, hi);
+                int p = lo;
+                for (int i = lo; i < hi; i++) {
+                    if (compare(i, hi) < 0) {
+                        swap(i, p++);
+                    }
+                }
+                swap(p, hi);
+                if (p - lo < hi - p) {
+                    quickSort(lo, p - 1);
+                    lo = p + 1;
+                } else {
+                    quickSort(p + 1, hi);
+                    hi = p - 1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.BiPredicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * The store of a clone made with --lazy-blobs. Such a clone has every commit
+ * it needs, but only the blobs of the commit it checked out; core.promisor
+ * names the remote that has the rest.
+ *
+ * This store wraps the configured one. A blob, manifest or chunk that isn't
+ * there counts as present if the promisor remote has it, and the first read
+ * copies it from the remote into the local cache, the loose layout of this
+ * repository (which is the configured store itself unless that is the log),
+ * where every later read finds it. prefetch() does the same for many blobs at
+ * once, in one batch, for commands about to check out a whole commit.
+ *
+ * Commits are never fetched. containsLocally() tells what is really here;
+ * gc only ever looks at that, so it neither fetches nor misses anything.
+ *
+ *  @author Adrian Serbanescu
+ */
+class LazyObjectStore implements ObjectStore {
+    /** Config key naming the remote missing blobs are fetched from. */
+    static final String CONFIG_KEY = "core.promisor";
+
+    private final ObjectStore local;
+    /** Where fetched objects go: LOCAL, or its loose layout when LOCAL is
+     *  the log, which can't take a batch in the middle of another one. */
+    private final ObjectStore cache;
+    private final File originDir;
+
+    LazyObjectStore(File gitletDir, ObjectStore local, File originDir) {
+        this.local = local;
+        this.cache = local instanceof LooseObjectStore
+                ? local : new LooseObjectStore(gitletDir);
+        this.originDir = originDir;
+    }
+
+    /** The store of the promisor remote, or null if it's gone. */
+    private ObjectStore origin() {
+        return originDir != null && originDir.isDirectory()
+                ? ObjectStore.of(originDir) : null;
+    }
+
+    @Override
+    public boolean containsLocally(Kind kind, String id) {
+        return local.contains(kind, id)
+                || (cache != local && cache.contains(kind, id));
+    }
+
+    @Override
+    public boolean contains(Kind kind, String id) {
+        if (containsLocally(kind, id)) {
+            return true;
+        }
+        ObjectStore origin = kind == Kind.COMMIT ? null : origin();
+        return origin != null && origin.contains(kind, id);
+    }
+
+    @Override
+    public byte[] read(Kind kind, String id) {
+        return holder(kind, id).read(kind, id);
+    }
+
+    @Override
+    public InputStream open(Kind kind, String id) {
+        return holder(kind, id).open(kind, id);
+    }
+
+    @Override
+    public long size(Kind kind, String id) {
+        return holder(kind, id).size(kind, id);
+    }
+
+    @Override
+    public void transferTo(Kind kind, String id, WritableByteChannel target)
+            throws IOException {
+        holder(kind, id).transferTo(kind, id, target);
+    }
+
+    /** The local store that has object ID of KIND, fetching it into the
+     *  cache first if only the promisor has it. */
+    private ObjectStore holder(Kind kind, String id) {
+        if (local.contains(kind, id)) {
+            return local;
+        }
+        if (kind != Kind.COMMIT && !cache.contains(kind, id)) {
+            fetch(Collections.singletonList(kind),
+                    Collections.singletonList(id));
+        }
+        return cache;
+    }
+
+    /** Fetches the blobs in SHAS (and the chunks of chunked ones) that are
+     *  only in the promisor, in one batch. */
+    void prefetch(Collection<String> shas) {
+        ObjectStore origin = origin();
+        if (origin == null) {
+            return;
+        }
+        List<Kind> kinds = new ArrayList<>();
+        List<String> ids = new ArrayList<>();
+        for (String sha : new TreeSet<>(shas)) {
+            if (containsLocally(Kind.BLOB, sha)
+                    || containsLocally(Kind.MANIFEST, sha)) {
+                continue;
+            }
+            if (origin.contains(Kind.BLOB, sha)) {
+                kinds.add(Kind.BLOB);
+                ids.add(sha);
+            } else if (origin.contains(Kind.MANIFEST, sha)) {
+                kinds.add(Kind.MANIFEST);
+                ids.add(sha);
+                for (String chunk : Blobs.chunks(originDir, sha)) {
+                    if (!containsLocally(Kind.CHUNK, chunk)) {
+                        kinds.add(Kind.CHUNK);
+                        ids.add(chunk);
+                    }
+                }
+            }
+        }
+        fetch(kinds, ids);
+    }
+
+    /** Copies object IDS[i] of KINDS[i] from the promisor into the cache. */
+    private void fetch(List<Kind> kinds, List<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ObjectStore origin = origin();
+        if (origin == null) {
+            throw error("Missing %s %s, and its remote %s is gone.",
+                    kinds.get(0).name().toLowerCase(), ids.get(0),
+                    originDir);
+        }
+        try (RepoLock lock = RepoLock.shared(originDir)) {
+            Batch batch = cache.begin(Transaction.Durability.configured());
+            try {
+                for (int i = 0; i < ids.size(); i++) {
+                    batch.put(kinds.get(i), ids.get(i),
+                            origin.read(kinds.get(i), ids.get(i)));
+                }
+                batch.commit();
+            } catch (RuntimeException excp) {
+                batch.abort();
+                throw excp;
+            }
+        }
+    }
+
+    @Override
+    public List<String> find(Kind kind, String prefix) {
+        if (cache == local) {
+            return local.find(kind, prefix);
+        }
+        TreeSet<String> found = new TreeSet<>(local.find(kind, prefix));
+        found.addAll(cache.find(kind, prefix));
+        return new ArrayList<>(found);
+    }
+
+    /** The ids of the objects of KIND that are here, fetched ones
+     *  included. */
+    @Override
+    public Iterable<String> ids(Kind kind) {
+        if (cache == local) {
+            return local.ids(kind);
+        }
+        return () -> new Iterator<String>() {
+            private final Iterator<String> first = local.ids(kind).iterator();
+            private final Iterator<String> second =
+                    cache.ids(kind).iterator();
+
+            @Override
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+
+    @Override
+    public Batch begin(Transaction.Durability durability) {
+        return local.begin(durability);
+    }
+
+    @Override
+    public int remove(Kind kind, Collection<String> ids, long cutoff) {
+        int removed = local.remove(kind, ids, cutoff);
+        if (cache != local) {
+            removed += cache.remove(kind, ids, cutoff);
+        }
+        return removed;
+    }
+
+    @Override
+    public Swept sweep(BiPredicate<Kind, String> live, long cutoff) {
+        Swept swept = local.sweep(live, cutoff);
+        if (cache != local) {
+            Swept cached = cache.sweep(live, cutoff);
+            for (int i = 0; i < swept.removed.length; i++) {
+                swept.removed[i] += cached.removed[i];
+            }
+            swept.temporary += cached.temporary;
+        }
+        return swept;
+    }
+}
@@ -0,0 +1,205 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Line diff after Myers' "An O(ND) Difference Algorithm and Its Variations",
+ * the linear space version: the middle snake of the edit graph is found by
+ * searching from both ends at once and the two halves around it are solved
+ * recursively, so memory stays proportional to the number of lines however
+ * different the two versions are. Common leading and trailing lines are
+ * matched up front, which is all most diffs between versions need, and lines
+ * only one of the versions has are left out of the search altogether.
+ *
+ *  @author Adrian Serbanescu
+ */
+class LineDiff {
+    private final int[] a;
+    private final int[] b;
+    private final int[] result;
+
+    private LineDiff(int[] a, int[] b, int[] result) {
+        this.a = a;
+        this.b = b;
+        this.result = result;
+    }
+
+    /**
+     * Matches the lines of NEW with those of OLD: element i of the result is
+     * the index of the line of OLD that line i of NEW was kept from, or -1 if
+     * the line was added.
+     */
+    static int[] match(String[] old, String[] neu) {
+        int[] result = new int[neu.length];
+        Arrays.fill(result, -1);
+        int start = 0;
+        while (start < old.length && start < neu.length
+                && old[start].equals(neu[start])) {
+            result[start] = start;
+            start++;
+        }
+        int endA = old.length;
+        int endB = neu.length;
+        while (endA > start && endB > start
+                && old[endA - 1].equals(neu[endB - 1])) {
+            endA--;
+            endB--;
+            result[endB] = endA;
+        }
+        /* Lines that only one side has can't be matched; leave them out,
+         * then diff the rest as numbers instead of strings. */
+        HashMap<String, Integer> ids = new HashMap<>();
+        for (int i = start; i < endA; i++) {
+            ids.putIfAbsent(old[i], ids.size());
+        }
+        boolean[] inNew = new boolean[ids.size()];
+        int[] y = new int[endB - start];
+        int[] yAt = new int[endB - start];
+        int m = 0;
+        for (int i = start; i < endB; i++) {
+            Integer id = ids.get(neu[i]);
+            if (id != null) {
+                inNew[id] = true;
+                y[m] = id;
+                yAt[m++] = i;
+            }
+        }
+        int[] x = new int[endA - start];
+        int[] xAt = new int[endA - start];
+        int n = 0;
+        for (int i = start; i < endA; i++) {
+            int id = ids.get(old[i]);
+            if (inNew[id]) {
+                x[n] = id;
+                xAt[n++] = i;
+            }
+        }
+        int[] matched = new int[m];
+        Arrays.fill(matched, -1);
+        LineDiff diff = new LineDiff(x, y, matched);
+        List<int[]> path = diff.findPath(0, 0, n, m);
+        if (path != null) {
+            for (int i = 1; i < path.size(); i++) {
+                diff.walk(path.get(i - 1), path.get(i));
+            }
+        }
+        for (int i = 0; i < m; i++) {
+            if (matched[i] >= 0) {
+                result[yAt[i]] = xAt[matched[i]];
+            }
+        }
+        return result;
+    }
+
+    /** Records the matches on the way from point FROM to point TO of the
+     *  edit graph, which are at most one insertion or deletion apart. */
+    private void walk(int[] from, int[] to) {
+        int x = from[0];
+        int y = from[1];
+        while (x < to[0] && y < to[1] && a[x] == b[y]) {
+            result[y++] = x++;
+        }
+        if (to[0] - x < to[1] - y) {
+            y++;
+        } else if (to[0] - x > to[1] - y) {
+            x++;
+        }
+        while (x < to[0] && y < to[1] && a[x] == b[y]) {
+            result[y++] = x++;
+        }
+    }
+
+    /** The points of an optimal path through the box from (LEFT, TOP) to
+     *  (RIGHT, BOTTOM), or null for an empty box. */
+    private List<int[]> findPath(int left, int top, int right, int bottom) {
+        int[][] snake = midpoint(left, top, right, bottom);
+        if (snake == null) {
+            return null;
+        }
+        List<int[]> head = findPath(left, top, snake[0][0], snake[0][1]);
+        List<int[]> tail = findPath(snake[1][0], snake[1][1], right, bottom);
+        List<int[]> path = new ArrayList<>();
+        if (head == null) {
+            path.add(snake[0]);
+        } else {
+            path.addAll(head);
+        }
+        if (tail == null) {
+            path.add(snake[1]);
+        } else {
+            path.addAll(tail);
+        }
+        return path;
+    }
+
+    /** The middle snake of the box, as its start and end point. */
+    private int[][] midpoint(int left, int top, int right, int bottom) {
+        int width = right - left;
+        int height = bottom - top;
+        int size = width + height;
+        if (size == 0) {
+            return null;
+        }
+        int delta = width - height;
+        int max = (size + 1) / 2;
+        int off = max + 1;
+        int[] vf = new int[2 * max + 3];
+        int[] vb = new int[2 * max + 3];
+        vf[off + 1] = left;
+        vb[off + 1] = bottom;
+        for (int d = 0; d <= max; d++) {
+            /* Forward. */
+            for (int k = d; k >= -d; k -= 2) {
+                int c = k - delta;
+                int px;
+                int x;
+                if (k == -d || (k != d && vf[off + k - 1] < vf[off + k + 1])) {
+                    px = vf[off + k + 1];
+                    x = px;
+                } else {
+                    px = vf[off + k - 1];
+                    x = px + 1;
+                }
+                int y = top + (x - left) - k;
+                int py = (d == 0 || x != px) ? y : y - 1;
+                while (x < right && y < bottom && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                vf[off + k] = x;
+                if ((delta & 1) != 0 && c >= -(d - 1) && c <= d - 1
+                        && y >= vb[off + c]) {
+                    return new int[][] {{px, py}, {x, y}};
+                }
+            }
+            /* Backward. */
+            for (int c = d; c >= -d; c -= 2) {
+                int k = c + delta;
+                int py;
+                int y;
+                if (c == -d || (c != d && vb[off + c - 1] > vb[off + c + 1])) {
+                    py = vb[off + c + 1];
+                    y = py;
+                } else {
+                    py = vb[off + c - 1];
+                    y = py - 1;
+                }
+                int x = left + (y - top) + k;
+                int px = (d == 0 || y != py) ? x : x + 1;
+                while (x > left && y > top && a[x - 1] == b[y - 1]) {
+                    x--;
+                    y--;
+                }
+                vb[off + c] = y;
+                if ((delta & 1) == 0 && k >= -d && k <= d
+                        && x <= vf[off + k]) {
+                    return new int[][] {{x, y}, {px, py}};
+                }
+            }
+        }
+        return null;
+    }
+}
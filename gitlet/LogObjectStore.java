@@ -0,0 +1,560 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiPredicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * Keeps every object of a repository in the single file .gitlet/objects.log,
+ * so a repository with a million objects is one inode instead of a million,
+ * and writing a commit is a few appends instead of a file per object.
+ *
+ * After a short header the log is a sequence of records
+ *
+ *     OBJECT | kind (1 byte) | id (20 bytes) | time (long) | length (int) |
+ *     bytes
+ *     MARK   | count (int)
+ *
+ * A batch appends its objects and then a MARK record counting them; only
+ * objects followed by a matching MARK exist. A crash in the middle of a batch
+ * leaves a tail without its MARK, which is ignored when the log is read and
+ * cut off by the next batch.
+ *
+ * Opening the store scans the record headers, skipping over the object bytes,
+ * and builds an in-memory hash index from id to offset; reads are then one
+ * positioned read each. When another process appended to (or compacted) the
+ * log since, a lookup that misses picks the new records up.
+ *
+ * Batches take an exclusive lock on the log file, so several processes can
+ * add objects at the same time, one batch after the other.
+ *
+ * Removing objects means rewriting the log: sweep() copies the records that
+ * stay into a new log and renames it over the old one (compaction), which is
+ * what gc does for this store.
+ *
+ *  @author Adrian Serbanescu
+ */
+class LogObjectStore implements ObjectStore {
+    /** Name of the log inside the .gitlet directory. */
+    static final String LOG_FILE = "objects.log";
+
+    private static final int MAGIC = 0x474c4f47;  // "GLOG"
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+    private static final byte OBJECT = 1;
+    private static final byte MARK = 2;
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Bytes of an OBJECT record before the object itself. */
+    private static final int RECORD_HEADER = 1 + 1 + ID_BYTES + 8 + 4;
+    private static final int MARK_LENGTH = 1 + 4;
+    private static final Kind[] KINDS = Kind.values();
+
+    /** Where an object is in the log and when it was written. */
+    private static class Entry {
+        private final long offset;
+        private final int length;
+        private final long time;
+
+        Entry(long offset, int length, long time) {
+            this.offset = offset;
+            this.length = length;
+            this.time = time;
+        }
+    }
+
+    private final File gitletDir;
+    private final File file;
+    private final EnumMap<Kind, HashMap<String, Entry>> index =
+            new EnumMap<>(Kind.class);
+    private FileChannel reader;
+    private Object fileKey;
+    /** End of the last complete batch; 0 while there is no log. */
+    private long valid;
+    private boolean writing;
+
+    LogObjectStore(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.file = join(gitletDir, LOG_FILE);
+        for (Kind kind : KINDS) {
+            index.put(kind, new HashMap<>());
+        }
+        refresh();
+    }
+
+    @Override
+    public synchronized boolean contains(Kind kind, String id) {
+        return entry(kind, id) != null;
+    }
+
+    @Override
+    public synchronized byte[] read(Kind kind, String id) {
+        Entry e = entry(kind, id);
+        if (e == null) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(e.length);
+        try {
+            while (buf.hasRemaining()) {
+                if (reader().read(buf, e.offset + buf.position()) < 0) {
+                    throw error("Truncated object log: %s", file);
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Cannot read object log: %s", excp.getMessage());
+        }
+        return buf.array();
+    }
+
+    @Override
+    public synchronized long size(Kind kind, String id) {
+        Entry e = entry(kind, id);
+        if (e == null) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        return e.length;
+    }
+
+    @Override
+    public synchronized void transferTo(Kind kind, String id,
+                                        WritableByteChannel target)
+            throws IOException {
+        Entry e = entry(kind, id);
+        if (e == null) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        for (long done = 0; done < e.length; ) {
+            long n = reader().transferTo(e.offset + done, e.length - done,
+                    target);
+            if (n <= 0) {
+                throw error("Truncated object log: %s", file);
+            }
+            done += n;
+        }
+    }
+
+    @Override
+    public synchronized List<String> find(Kind kind, String prefix) {
+        refresh();
+        List<String> found = new ArrayList<>();
+        for (String id : index.get(kind).keySet()) {
+            if (id.startsWith(prefix)) {
+                found.add(id);
+            }
+        }
+        found.sort(null);
+        return found;
+    }
+
+    @Override
+    public synchronized Iterable<String> ids(Kind kind) {
+        refresh();
+        return new ArrayList<>(index.get(kind).keySet());
+    }
+
+    @Override
+    public synchronized Batch begin(Transaction.Durability durability) {
+        if (writing) {
+            throw error("Object log %s already has a batch open.", file);
+        }
+        try {
+            FileChannel out = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            /* Commands that only add objects run under the shared
+             * repository lock, so appenders take turns on the log itself;
+             * closing OUT releases it. Whatever they appended is read in
+             * before we append after it. */
+            try {
+                out.lock();
+            } catch (IOException excp) {
+                out.close();
+                throw excp;
+            }
+            refresh();
+            boolean created = valid == 0;
+            if (created) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                out.truncate(0);
+                write(out, header, 0);
+                valid = HEADER;
+                fileKey = Files.readAttributes(file.toPath(),
+                        BasicFileAttributes.class).fileKey();
+            } else {
+                out.truncate(valid);
+            }
+            writing = true;
+            return new LogBatch(out, durability, created);
+        } catch (IOException excp) {
+            throw error("Cannot write object log: %s", excp.getMessage());
+        }
+    }
+
+    /** Objects appended past the end of the log, which exist once the MARK
+     *  after them is written. */
+    private class LogBatch implements Batch {
+        private final FileChannel out;
+        private final Transaction.Durability durability;
+        private final boolean created;
+        private final List<Kind> kinds = new ArrayList<>();
+        private final List<String> ids = new ArrayList<>();
+        private final List<Entry> entries = new ArrayList<>();
+        private long pos = valid;
+
+        LogBatch(FileChannel out, Transaction.Durability durability,
+                 boolean created) {
+            this.out = out;
+            this.durability = durability;
+            this.created = created;
+        }
+
+        @Override
+        public void put(Kind kind, String id, byte[] contents) {
+            if (!ObjectStore.isId(id)) {
+                throw error("Bad object id: %s", id);
+            }
+            long time = System.currentTimeMillis();
+            ByteBuffer header = recordHeader(kind, id, time, contents.length);
+            try {
+                write(out, header, pos);
+                write(out, ByteBuffer.wrap(contents), pos + RECORD_HEADER);
+                if (durability == Transaction.Durability.STRICT) {
+                    out.force(false);
+                }
+            } catch (IOException excp) {
+                throw error("Cannot write object log: %s", excp.getMessage());
+            }
+            kinds.add(kind);
+            ids.add(id);
+            entries.add(new Entry(pos + RECORD_HEADER, contents.length,
+                    time));
+            pos += RECORD_HEADER + contents.length;
+        }
+
+        @Override
+        public void commit() {
+            boolean sync = durability != Transaction.Durability.NONE;
+            try {
+                /* The objects have to be on disk before the MARK saying
+                 * they are complete. */
+                if (sync) {
+                    out.force(false);
+                }
+                ByteBuffer mark = ByteBuffer.allocate(MARK_LENGTH);
+                mark.put(MARK).putInt(entries.size()).flip();
+                write(out, mark, pos);
+                pos += MARK_LENGTH;
+                if (sync) {
+                    out.force(false);
+                }
+                out.close();
+            } catch (IOException excp) {
+                throw error("Cannot write object log: %s", excp.getMessage());
+            }
+            if (created && sync) {
+                Transaction.sync(gitletDir, StandardOpenOption.READ);
+            }
+            synchronized (LogObjectStore.this) {
+                for (int i = 0; i < entries.size(); i++) {
+                    index.get(kinds.get(i)).put(ids.get(i), entries.get(i));
+                }
+                valid = pos;
+                writing = false;
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (LogObjectStore.this) {
+                if (!writing) {
+                    return;
+                }
+                try {
+                    out.truncate(valid);
+                    out.close();
+                } catch (IOException excp) {
+                    /* The next batch cuts the tail off anyway. */
+                }
+                writing = false;
+            }
+        }
+    }
+
+    /**
+     * Compacts the log: the objects that stay are copied into a new log,
+     * which then replaces the old one. Does nothing if no object goes and the
+     * log has nothing else to drop either.
+     */
+    @Override
+    public synchronized Swept sweep(BiPredicate<Kind, String> live,
+                                    long cutoff) {
+        if (writing) {
+            throw error("Object log %s already has a batch open.", file);
+        }
+        refresh();
+        Swept swept = new Swept();
+        for (File f : LooseObjectStore.listDir(gitletDir)) {
+            String name = f.getName();
+            if (name.startsWith("objects-") && name.endsWith(".tmp")
+                    && f.lastModified() < cutoff && f.delete()) {
+                swept.temporary++;
+            }
+        }
+        if (valid == 0) {
+            return swept;
+        }
+        List<Kind> keepKinds = new ArrayList<>();
+        List<String> keepIds = new ArrayList<>();
+        List<Entry> keep = new ArrayList<>();
+        long size = HEADER;
+        for (Kind kind : KINDS) {
+            for (Map.Entry<String, Entry> e : index.get(kind).entrySet()) {
+                Entry entry = e.getValue();
+                if (entry.time >= cutoff || live.test(kind, e.getKey())) {
+                    keepKinds.add(kind);
+                    keepIds.add(e.getKey());
+                    keep.add(entry);
+                    size += RECORD_HEADER + entry.length;
+                } else {
+                    swept.removed[kind.ordinal()]++;
+                }
+            }
+        }
+        if (!keep.isEmpty()) {
+            size += MARK_LENGTH;
+        }
+        long length = file.length();
+        if (length > valid) {
+            swept.temporary++;  // the tail of an interrupted batch
+        }
+        if (length == size) {
+            return swept;
+        }
+        if (keep.isEmpty()) {
+            file.delete();
+            reset();
+            return swept;
+        }
+
+        /* Copy in log order, so reading the new log is as sequential as
+         * reading the old one was. */
+        Integer[] order = new Integer[keep.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order,
+                (a, b) -> Long.compare(keep.get(a).offset, keep.get(b).offset));
+        File tmp = null;
+        try {
+            tmp = File.createTempFile("objects-", ".tmp", gitletDir);
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.WRITE)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                long pos = write(out, header, 0);
+                FileChannel in = reader();
+                for (int i : order) {
+                    Entry e = keep.get(i);
+                    pos += write(out, recordHeader(keepKinds.get(i),
+                            keepIds.get(i), e.time, e.length), pos);
+                    out.position(pos);
+                    for (long done = 0; done < e.length;) {
+                        done += in.transferTo(e.offset + done,
+                                e.length - done, out);
+                    }
+                    pos += e.length;
+                }
+                ByteBuffer mark = ByteBuffer.allocate(MARK_LENGTH);
+                mark.put(MARK).putInt(keep.size()).flip();
+                write(out, mark, pos);
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            Transaction.sync(gitletDir, StandardOpenOption.READ);
+        } catch (IOException excp) {
+            if (tmp != null) {
+                tmp.delete();
+            }
+            throw error("Cannot compact object log: %s", excp.getMessage());
+        }
+        reset();
+        refresh();
+        return swept;
+    }
+
+    /** The index entry of object ID of KIND, looking for records appended
+     *  by someone else if we don't know it. */
+    private Entry entry(Kind kind, String id) {
+        Entry e = index.get(kind).get(id);
+        if (e == null && ObjectStore.isId(id)) {
+            refresh();
+            e = index.get(kind).get(id);
+        }
+        return e;
+    }
+
+    /** Brings the index up to date with the log on disk. The log can only
+     *  have grown, been compacted (a new file) or been removed. */
+    private void refresh() {
+        if (writing) {
+            return;  // nobody else can write while we do
+        }
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(file.toPath(),
+                    BasicFileAttributes.class);
+        } catch (NoSuchFileException excp) {
+            if (valid != 0) {
+                reset();
+            }
+            return;
+        } catch (IOException excp) {
+            throw error("Cannot read object log: %s", excp.getMessage());
+        }
+        if (!Objects.equals(attrs.fileKey(), fileKey)
+                || attrs.size() < valid) {
+            reset();
+            fileKey = attrs.fileKey();
+        }
+        if (attrs.size() > valid) {
+            scan();
+        }
+    }
+
+    /** Forgets everything read from the log so far. */
+    private void reset() {
+        for (Kind kind : KINDS) {
+            index.get(kind).clear();
+        }
+        valid = 0;
+        fileKey = null;
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException excp) {
+                /* Only read from. */
+            }
+            reader = null;
+        }
+    }
+
+    /** Reads the records past VALID into the index, stopping at the first
+     *  batch that isn't complete. */
+    private void scan() {
+        try {
+            FileChannel ch = reader();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    Channels.newInputStream(ch.position(valid)), 1 << 16));
+            long pos = valid;
+            if (pos == 0) {
+                if (ch.size() < HEADER) {
+                    return;  // a log whose creation was interrupted
+                }
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    throw error("Not an object log: %s", file);
+                }
+                pos = HEADER;
+                valid = HEADER;
+            }
+            List<Kind> kinds = new ArrayList<>();
+            List<String> ids = new ArrayList<>();
+            List<Entry> entries = new ArrayList<>();
+            byte[] id = new byte[ID_BYTES];
+            try {
+                while (true) {
+                    int tag = in.read();
+                    if (tag == OBJECT) {
+                        int kind = in.readUnsignedByte();
+                        in.readFully(id);
+                        long time = in.readLong();
+                        int length = in.readInt();
+                        if (kind >= KINDS.length || length < 0) {
+                            break;
+                        }
+                        in.skipNBytes(length);
+                        kinds.add(KINDS[kind]);
+                        ids.add(toHex(id));
+                        entries.add(new Entry(pos + RECORD_HEADER, length,
+                                time));
+                        pos += RECORD_HEADER + length;
+                    } else if (tag == MARK) {
+                        if (in.readInt() != entries.size()) {
+                            break;
+                        }
+                        pos += MARK_LENGTH;
+                        for (int i = 0; i < entries.size(); i++) {
+                            index.get(kinds.get(i)).put(ids.get(i),
+                                    entries.get(i));
+                        }
+                        kinds.clear();
+                        ids.clear();
+                        entries.clear();
+                        valid = pos;
+                    } else {
+                        break;
+                    }
+                }
+            } catch (EOFException excp) {
+                /* An incomplete batch at the end. */
+            }
+        } catch (IOException excp) {
+            throw error("Cannot read object log: %s", excp.getMessage());
+        }
+    }
+
+    private FileChannel reader() throws IOException {
+        if (reader == null) {
+            reader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        return reader;
+    }
+
+    /** The start of the OBJECT record of object ID of KIND, LENGTH bytes
+     *  long and written at TIME. */
+    private static ByteBuffer recordHeader(Kind kind, String id, long time,
+                                           int length) {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.put(OBJECT).put((byte) kind.ordinal());
+        for (int i = 0; i < ID_BYTES; i++) {
+            header.put((byte) Integer.parseInt(
+                    id.substring(2 * i, 2 * i + 2), 16));
+        }
+        header.putLong(time).putInt(length).flip();
+        return header;
+    }
+
+    /** Writes all of BUF to OUT at POS and returns the number of bytes
+     *  written. */
+    private static int write(FileChannel out, ByteBuffer buf, long pos)
+            throws IOException {
+        int n = buf.remaining();
+        while (buf.hasRemaining()) {
+            out.write(buf, pos + n - buf.remaining());
+        }
+        return n;
+    }
+}
@@ -0,0 +1,312 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiPredicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * The classic layout: one file per object. Commits live in
+ * .gitlet/commits/[first 4 chars of id]/[rest of id], blobs in .gitlet/files,
+ * chunk manifests in .gitlet/manifests and chunks in .gitlet/chunks, each
+ * named by its id.
+ *
+ * A batch writes every object to a tmp- file next to its final location
+ * right away and renames them all into place on commit, see Transaction.
+ *
+ *  @author Adrian Serbanescu
+ */
+class LooseObjectStore implements ObjectStore {
+    private final File gitletDir;
+
+    LooseObjectStore(File gitletDir) {
+        this.gitletDir = gitletDir;
+    }
+
+    /** The directory holding the objects of KIND. */
+    private File dir(Kind kind) {
+        switch (kind) {
+            case COMMIT:
+                return join(gitletDir, "commits");
+            case BLOB:
+                return join(gitletDir, "files");
+            case MANIFEST:
+                return join(gitletDir, "manifests");
+            default:
+                return join(gitletDir, "chunks");
+        }
+    }
+
+    /** The file of object ID of KIND. */
+    private File file(Kind kind, String id) {
+        if (kind == Kind.COMMIT) {
+            return join(dir(kind), id.substring(0, 4), id.substring(4));
+        }
+        return join(dir(kind), id);
+    }
+
+    @Override
+    public boolean contains(Kind kind, String id) {
+        return ObjectStore.isId(id) && file(kind, id).isFile();
+    }
+
+    @Override
+    public byte[] read(Kind kind, String id) {
+        if (!contains(kind, id)) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        return readContents(file(kind, id));
+    }
+
+    @Override
+    public InputStream open(Kind kind, String id) {
+        if (!contains(kind, id)) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        try {
+            return new FileInputStream(file(kind, id));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    @Override
+    public long size(Kind kind, String id) {
+        if (!contains(kind, id)) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        return file(kind, id).length();
+    }
+
+    @Override
+    public void transferTo(Kind kind, String id, WritableByteChannel target)
+            throws IOException {
+        if (!contains(kind, id)) {
+            throw error("Missing %s %s in %s", kind.name().toLowerCase(), id,
+                    gitletDir);
+        }
+        try (FileChannel in = FileChannel.open(file(kind, id).toPath(),
+                StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long pos = 0; pos < size; ) {
+                pos += in.transferTo(pos, size - pos, target);
+            }
+        }
+    }
+
+    @Override
+    public List<String> find(Kind kind, String prefix) {
+        List<String> found = new ArrayList<>();
+        if (!prefix.matches("[0-9a-f]*")) {
+            return found;
+        }
+        if (kind == Kind.COMMIT && prefix.length() >= 4) {
+            /* Only one shard can hold it. */
+            String shard = prefix.substring(0, 4);
+            for (File file : listDir(join(dir(kind), shard))) {
+                String id = shard + file.getName();
+                if (id.startsWith(prefix) && ObjectStore.isId(id)) {
+                    found.add(id);
+                }
+            }
+        } else {
+            for (String id : ids(kind)) {
+                if (id.startsWith(prefix)) {
+                    found.add(id);
+                }
+            }
+        }
+        Collections.sort(found);
+        return found;
+    }
+
+    @Override
+    public Iterable<String> ids(Kind kind) {
+        if (kind != Kind.COMMIT) {
+            return () -> names(listDir(dir(kind)), "");
+        }
+        return () -> new Iterator<String>() {
+            private final Iterator<File> shards =
+                    listDir(dir(kind)).iterator();
+            private Iterator<String> inShard = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!inShard.hasNext() && shards.hasNext()) {
+                    File shard = shards.next();
+                    if (shard.isDirectory()) {
+                        inShard = names(listDir(shard), shard.getName());
+                    }
+                }
+                return inShard.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return inShard.next();
+            }
+        };
+    }
+
+    @Override
+    public Batch begin(Transaction.Durability durability) {
+        List<Transaction.Pending> pending = new ArrayList<>();
+        return new Batch() {
+            @Override
+            public void put(Kind kind, String id, byte[] contents) {
+                pending.add(Transaction.stage(durability, file(kind, id),
+                        contents));
+            }
+
+            @Override
+            public void commit() {
+                Transaction.publish(durability, pending);
+                pending.clear();
+            }
+
+            @Override
+            public void abort() {
+                for (Transaction.Pending p : pending) {
+                    p.tmp.delete();
+                }
+                pending.clear();
+            }
+        };
+    }
+
+    @Override
+    public Swept sweep(BiPredicate<Kind, String> live, long cutoff) {
+        Swept swept = new Swept();
+        for (Kind kind : Kind.values()) {
+            if (kind == Kind.COMMIT) {
+                for (File shard : listDir(dir(kind))) {
+                    sweep(shard, shard.getName(), kind, live, cutoff, swept);
+                    shard.delete();  // only succeeds once the shard is empty
+                }
+            } else {
+                sweep(dir(kind), "", kind, live, cutoff, swept);
+            }
+            dir(kind).delete();  // likewise, created again when needed
+        }
+        return swept;
+    }
+
+    @Override
+    public int remove(Kind kind, Collection<String> ids, long cutoff) {
+        int removed = 0;
+        for (String id : ids) {
+            File file = file(kind, id);
+            if (file.lastModified() < cutoff && file.delete()) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Sweeps the objects of KIND in DIR, whose ids are PREFIX followed by
+     *  the file name. */
+    private static void sweep(File dir, String prefix, Kind kind,
+                              BiPredicate<Kind, String> live, long cutoff,
+                              Swept swept) {
+        for (File file : listDir(dir)) {
+            String name = file.getName();
+            if (file.lastModified() >= cutoff) {
+                continue;
+            }
+            if (name.startsWith("tmp-")) {
+                swept.temporary += file.delete() ? 1 : 0;
+            } else if (ObjectStore.isId(prefix + name)
+                    && !live.test(kind, prefix + name) && file.delete()) {
+                swept.removed[kind.ordinal()]++;
+            }
+        }
+    }
+
+    /** PREFIX plus the name of each of FILES that isn't a tmp- file. */
+    private static Iterator<String> names(Iterable<File> files,
+                                          String prefix) {
+        Iterator<File> it = files.iterator();
+        return new Iterator<String>() {
+            private String next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && it.hasNext()) {
+                    String id = prefix + it.next().getName();
+                    if (ObjectStore.isId(id)) {
+                        next = id;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String id = next;
+                next = null;
+                return id;
+            }
+        };
+    }
+
+    /** Lazily lists DIR, so huge directories are never held in memory as a
+     *  whole. */
+    static Iterable<File> listDir(File dir) {
+        if (!dir.isDirectory()) {
+            return Collections.emptyList();
+        }
+        return () -> {
+            try {
+                DirectoryStream<Path> stream =
+                        Files.newDirectoryStream(dir.toPath());
+                Iterator<Path> it = stream.iterator();
+                return new Iterator<File>() {
+                    @Override
+                    public boolean hasNext() {
+                        boolean more = it.hasNext();
+                        if (!more) {
+                            try {
+                                stream.close();
+                            } catch (IOException excp) {
+                                throw new IllegalArgumentException(
+                                        excp.getMessage());
+                            }
+                        }
+                        return more;
+                    }
+
+                    @Override
+                    public File next() {
+                        return it.next().toFile();
+                    }
+                };
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        };
+    }
+}
@@ -1,9 +1,33 @@
 package gitlet;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Adrian Serbanescu
  */
 public class Main {
+    /** Commands that never modify the repository and therefore only need a
+     *  shared lock on it. */
+    private static final Set<String> READ_ONLY_COMMANDS =
+            Set.of("log", "global-log", "find", "status", "is-ancestor",
+                    "diff", "fsck", "reflog", "archive");
+    /** Commands that only add objects to the store and don't touch refs,
+     *  the index or the working directory. An object that exists already
+     *  is the same object, so these run together with readers and each
+     *  other too. */
+    private static final Set<String> OBJECT_ONLY_COMMANDS =
+            Set.of("merge-tree");
+    /** Commands that run for long and lock, if at all, only for the moments
+     *  they need to. They don't trigger maintenance either. */
+    private static final Set<String> SELF_LOCKING_COMMANDS =
+            Set.of("maintenance", "serve");
 
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
@@ -13,16 +37,72 @@ public class Main {
             System.out.println("Please enter a command.");
             System.exit(0);
         }
+        Output.install();
         String firstArg = args[0];
+        if (Repository.GITLET_DIR.exists()
+                && Repository.indexNeedsUpgrade()) {
+            try (RepoLock lock = RepoLock.exclusive(Repository.GITLET_DIR)) {
+                Repository.upgradeIndex();
+            }
+        }
+        try (RepoLock lock = lockFor(firstArg)) {
+            run(firstArg, args);
+            WorkTreeMonitor.save();
+        }
+        if (!READ_ONLY_COMMANDS.contains(firstArg)
+                && !SELF_LOCKING_COMMANDS.contains(firstArg)) {
+            Maintenance.autoRun();
+        }
+        if (Boolean.getBoolean("gitlet.cacheStats")) {
+            System.err.println("commit cache: "
+                    + Repository.COMMIT_CACHE.stats());
+        }
+    }
+
+    private static void run(String firstArg, String[] args) {
         switch (firstArg) {
             case "init":
                 validateNumArgs("init", args, 1);
                 Repository.init();
                 break;
+            case "clone": {
+                String path = null;
+                int depth = 0;
+                boolean lazyBlobs = false;
+                try {
+                    for (int i = 1; i < args.length; i++) {
+                        if (args[i].equals("--depth") && i + 1 < args.length) {
+                            depth = Integer.parseInt(args[++i]);
+                        } else if (args[i].startsWith("--depth=")) {
+                            depth = Integer.parseInt(
+                                    args[i].substring("--depth=".length()));
+                        } else if (args[i].equals("--lazy-blobs")) {
+                            lazyBlobs = true;
+                        } else if (path == null) {
+                            path = args[i];
+                        } else {
+                            path = null;
+                            break;
+                        }
+                    }
+                } catch (NumberFormatException excp) {
+                    path = null;
+                }
+                if (path == null || depth < 0) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Repository.clone(path, depth, lazyBlobs);
+                break;
+            }
             case "add":
                 validateNumArgs("add", args, 2);
                 checkIfGitletDirExists();
-                Repository.add(args[1]);
+                if (args[1].equals(".")) {
+                    Repository.addAll();
+                } else {
+                    Repository.add(args[1]);
+                }
                 break;
             case "commit":
                 if (args.length != 2) {
@@ -36,16 +116,38 @@ public class Main {
                 checkIfGitletDirExists();
                 Repository.rm(args[1]);
                 break;
-            case "log":
-                validateNumArgs("log", args, 1);
+            case "log": {
                 checkIfGitletDirExists();
-                Repository.log();
+                List<String> options = Arrays.asList(args).subList(1,
+                        args.length);
+                String fileName = null;
+                int dashes = options.indexOf("--");
+                if (dashes >= 0) {
+                    if (dashes != options.size() - 2) {
+                        System.out.println("Incorrect operands.");
+                        System.exit(0);
+                    }
+                    fileName = options.get(dashes + 1);
+                    options = options.subList(0, dashes);
+                }
+                List<String> rest = new ArrayList<>();
+                CommitFilter filter = parseFilter(options, rest);
+                CommitPrinter printer = parsePrinter(rest);
+                if (fileName == null) {
+                    Repository.log(printer, filter);
+                } else {
+                    Repository.log(fileName, printer, filter);
+                }
                 break;
-            case "global-log":
-                validateNumArgs("global-log", args, 1);
+            }
+            case "global-log": {
                 checkIfGitletDirExists();
-                Repository.globalLog();
+                List<String> rest = new ArrayList<>();
+                CommitFilter filter = parseFilter(
+                        Arrays.asList(args).subList(1, args.length), rest);
+                Repository.globalLog(parsePrinter(rest), filter);
                 break;
+            }
             case "find":
                 validateNumArgs("find", args, 2);
                 checkIfGitletDirExists();
@@ -88,6 +190,36 @@ public class Main {
                 checkIfGitletDirExists();
                 Repository.rmBranch(args[1]);
                 break;
+            case "fast-import":
+                if (args.length > 2) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                checkIfGitletDirExists();
+                if (args.length == 1) {
+                    Repository.fastImport(System.in);
+                } else {
+                    File stream = new File(args[1]);
+                    if (!stream.isFile()) {
+                        System.out.println("File does not exist.");
+                        System.exit(0);
+                    }
+                    try (InputStream in = new FileInputStream(stream)) {
+                        Repository.fastImport(in);
+                    } catch (IOException excp) {
+                        System.out.println("Cannot read " + args[1] + ".");
+                        System.exit(0);
+                    }
+                }
+                break;
+            case "reflog":
+                if (args.length > 2) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                checkIfGitletDirExists();
+                Repository.reflog(args.length == 2 ? args[1] : null);
+                break;
             case "reset":
                 validateNumArgs("reset", args, 2);
                 checkIfGitletDirExists();
@@ -98,12 +230,238 @@ public class Main {
                 checkIfGitletDirExists();
                 Repository.merge(args[1]);
                 break;
+            case "merge-tree": {
+                checkIfGitletDirExists();
+                List<String> commits = new ArrayList<>();
+                String message = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("-m") && i + 1 < args.length) {
+                        message = args[++i];
+                    } else {
+                        commits.add(args[i]);
+                    }
+                }
+                if (commits.size() != 2 || "".equals(message)) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Repository.mergeTree(commits.get(0), commits.get(1), message);
+                break;
+            }
+            case "add-remote":
+                validateNumArgs("add-remote", args, 3);
+                checkIfGitletDirExists();
+                Repository.addRemote(args[1], args[2]);
+                break;
+            case "rm-remote":
+                validateNumArgs("rm-remote", args, 2);
+                checkIfGitletDirExists();
+                Repository.rmRemote(args[1]);
+                break;
+            case "fetch":
+                validateNumArgs("fetch", args, 3);
+                checkIfGitletDirExists();
+                Repository.fetch(args[1], args[2]);
+                break;
+            case "push":
+                validateNumArgs("push", args, 3);
+                checkIfGitletDirExists();
+                Repository.push(args[1], args[2]);
+                break;
+            case "pull":
+                validateNumArgs("pull", args, 3);
+                checkIfGitletDirExists();
+                Repository.pull(args[1], args[2]);
+                break;
+            case "gc":
+                checkIfGitletDirExists();
+                if (args.length == 1) {
+                    Repository.gc(null);
+                } else if (args.length == 2
+                        && args[1].startsWith("--prune=")) {
+                    Repository.gc(args[1].substring("--prune=".length()));
+                } else {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                break;
+            case "fsck":
+                checkIfGitletDirExists();
+                if (args.length == 1) {
+                    Repository.fsck(null);
+                } else if (args.length == 2
+                        && args[1].startsWith("--rate=")) {
+                    Repository.fsck(args[1].substring("--rate=".length()));
+                } else {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                break;
+            case "commit-graph":
+                checkIfGitletDirExists();
+                if (args.length != 2 || !args[1].equals("write")) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Repository.writeCommitGraph();
+                break;
+            case "is-ancestor":
+                validateNumArgs("is-ancestor", args, 3);
+                checkIfGitletDirExists();
+                Repository.isAncestorCommand(args[1], args[2]);
+                break;
+            case "blame":
+                validateNumArgs("blame", args, 2);
+                checkIfGitletDirExists();
+                Repository.blame(args[1]);
+                break;
+            case "diff":
+                checkIfGitletDirExists();
+                if (args.length == 2) {
+                    Repository.diff(args[1], null);
+                } else if (args.length == 3) {
+                    Repository.diff(args[1], args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                break;
+            case "archive": {
+                checkIfGitletDirExists();
+                String commit = null;
+                String format = null;
+                String output = null;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].startsWith("--format=")) {
+                        format = args[i].substring("--format=".length());
+                    } else if (args[i].startsWith("--output=")) {
+                        output = args[i].substring("--output=".length());
+                    } else if (args[i].equals("-o") && i + 1 < args.length) {
+                        output = args[++i];
+                    } else if (commit == null && !args[i].startsWith("-")) {
+                        commit = args[i];
+                    } else {
+                        commit = null;
+                        break;
+                    }
+                }
+                if (commit == null) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                if (format == null) {
+                    format = output != null && output.endsWith(".zip")
+                            ? "zip" : "tar";
+                }
+                if (!Archive.isFormat(format)) {
+                    System.out.println("Unknown archive format.");
+                    System.exit(0);
+                }
+                Repository.archive(commit, format, output);
+                break;
+            }
+            case "sparse-checkout":
+                checkIfGitletDirExists();
+                if (args.length < 2) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Repository.sparseCheckout(args[1],
+                        Arrays.asList(args).subList(2, args.length));
+                break;
+            case "maintenance": {
+                checkIfGitletDirExists();
+                String task = null;
+                boolean auto = false;
+                boolean valid = args.length >= 2 && args[1].equals("run");
+                for (int i = 2; valid && i < args.length; i++) {
+                    if (args[i].equals("--auto")) {
+                        auto = true;
+                    } else if (args[i].startsWith("--task=")) {
+                        task = args[i].substring("--task=".length());
+                        valid = Maintenance.TASKS.contains(task);
+                    } else {
+                        valid = false;
+                    }
+                }
+                if (!valid) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Maintenance.run(task, auto);
+                break;
+            }
+            case "serve": {
+                String root = null;
+                int port = 8080;
+                long cacheMiB = 256;
+                boolean watch = false;
+                try {
+                    for (int i = 1; i < args.length; i++) {
+                        if (args[i].equals("--root") && i + 1 < args.length) {
+                            root = args[++i];
+                        } else if (args[i].startsWith("--root=")) {
+                            root = args[i].substring("--root=".length());
+                        } else if (args[i].equals("--port")
+                                && i + 1 < args.length) {
+                            port = Integer.parseInt(args[++i]);
+                        } else if (args[i].startsWith("--port=")) {
+                            port = Integer.parseInt(
+                                    args[i].substring("--port=".length()));
+                        } else if (args[i].equals("--watch")) {
+                            watch = true;
+                        } else if (args[i].startsWith("--cache=")) {
+                            cacheMiB = Long.parseLong(
+                                    args[i].substring("--cache=".length()));
+                        } else {
+                            root = null;
+                            break;
+                        }
+                    }
+                } catch (NumberFormatException excp) {
+                    root = null;
+                }
+                if (root == null || port < 0 || port > 65535 || cacheMiB < 0) {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                Server.serve(new File(root), port, cacheMiB << 20, watch);
+                break;
+            }
+            case "config":
+                checkIfGitletDirExists();
+                if (args.length == 2) {
+                    Repository.config(args[1], null);
+                } else if (args.length == 3) {
+                    Repository.config(args[1], args[2]);
+                } else {
+                    System.out.println("Incorrect operands.");
+                    System.exit(0);
+                }
+                break;
             default:
                 System.out.println("No command with that name exists.");
                 break;
         }
     }
 
+    /**
+     * Locks the repository for the duration of COMMAND: shared for read-only
+     * commands, exclusive for the rest. Returns null when there is no
+     * repository to lock yet (init, or a command run outside of one), and
+     * for SELF_LOCKING_COMMANDS.
+     */
+    private static RepoLock lockFor(String command) {
+        if (command.equals("init") || SELF_LOCKING_COMMANDS.contains(command)
+                || !Repository.GITLET_DIR.exists()) {
+            return null;
+        }
+        return READ_ONLY_COMMANDS.contains(command)
+                || OBJECT_ONLY_COMMANDS.contains(command)
+                ? RepoLock.shared(Repository.GITLET_DIR)
+                : RepoLock.exclusive(Repository.GITLET_DIR);
+    }
+
     public static void checkIfGitletDirExists() {
         if (!Repository.GITLET_DIR.exists()) {
             System.out.println("Not in an initialized Gitlet directory.");
@@ -111,6 +469,29 @@ public class Main {
         }
     }
 
+    /** Returns the filter the log options in OPTIONS ask for, adding the
+     *  other options to REST, or exits if they aren't valid. */
+    private static CommitFilter parseFilter(List<String> options,
+                                            List<String> rest) {
+        CommitFilter filter = CommitFilter.parse(options, rest);
+        if (filter == null) {
+            System.out.println("Incorrect operands.");
+            System.exit(0);
+        }
+        return filter;
+    }
+
+    /** Returns the printer the log options in OPTIONS ask for, or exits
+     *  if they aren't valid. */
+    private static CommitPrinter parsePrinter(List<String> options) {
+        CommitPrinter printer = CommitPrinter.parse(options);
+        if (printer == null) {
+            System.out.println("Incorrect operands.");
+            System.exit(0);
+        }
+        return printer;
+    }
+
     public static void validateNumArgs(String cmd, String[] args, int n) {
         if (args.length != n) {
             throw new RuntimeException(
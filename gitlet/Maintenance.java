@@ -0,0 +1,388 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Upkeep of the repository in the current working directory, done in the
+ * background instead of inside the commands that make it necessary:
+ *
+ *  commit-graph  appends the commits the commit graph is missing (fetched,
+ *                cloned or older than the graph), at most
+ *                maintenance.commit-graph.budget of them per run, and
+ *                rewrites the reachability bitmaps once the graph grew, and
+ *                merges the tail of the commit columns into their main file.
+ *  pack-refs     folds the loose branch files into packed-refs once there
+ *                are more than maintenance.pack-refs.threshold of them, long
+ *                before refs.maxLoose makes a command do it inline.
+ *  prune         removes unreachable objects older than gc.pruneExpire, like
+ *                gc. Left to gc for the object log, which it would rewrite,
+ *                and for leftovers of interrupted writes, which only a full
+ *                sweep finds.
+ *
+ * A task runs every maintenance.TASK.interval seconds unless
+ * maintenance.TASK.enabled is false; .gitlet/maintenance keeps when each one
+ * last ran. Commands that change the repository call autoRun() once they are
+ * done and have let go of the repository lock. It only reads that file, and
+ * if a task is due starts "maintenance run --auto" as a separate process at
+ * low priority, which the command doesn't wait for. A run stops starting
+ * tasks after maintenance.budget seconds.
+ *
+ * Tasks read and compute without the repository lock: objects never change,
+ * and refs and side files are replaced atomically. Only publishing a result
+ * takes the exclusive lock, with tryExclusive(), so a task never makes a
+ * command wait to get the lock; if a command holds it the task gives up and
+ * stays due. Holding it, a task appends at most BATCH_SIZE records it
+ * already built to the commit graph, rewrites packed-refs or, for prune,
+ * marks from the refs that showed up since it last looked and deletes at
+ * most BATCH_SIZE of the garbage it found, letting go in between. Commands
+ * queue up behind it for no longer than that. .gitlet/maintenance.lock keeps
+ * to one maintenance process at a time.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Maintenance {
+    /** Name of the file keeping the last run of every task. */
+    static final String STATE_FILE = "maintenance";
+    /** Name of the file a running maintenance process holds locked. */
+    static final String LOCK_FILE = "maintenance.lock";
+    /** The tasks, in the order they run. */
+    static final List<String> TASKS =
+            List.of("commit-graph", "pack-refs", "prune");
+
+    /** How many times, and how far apart, a task asks for the repository
+     *  lock before it gives up until the next run. */
+    private static final int LOCK_ATTEMPTS = 5;
+    private static final long LOCK_RETRY_MILLIS = 20;
+    /** How many commits a task appends to the commit graph, or objects it
+     *  deletes, per hold of the repository lock. */
+    private static final int BATCH_SIZE = 256;
+
+    private final File gitletDir;
+    private final File stateFile;
+    private final Config config;
+    private final Properties state = new Properties();
+
+    private Maintenance(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.stateFile = join(gitletDir, STATE_FILE);
+        this.config = Config.local();
+        if (stateFile.isFile()) {
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+            } catch (IOException excp) {
+                throw error("Cannot read maintenance state: %s",
+                        excp.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Starts a maintenance run in the background if a task is due and no
+     * maintenance is running. A repository seen for the first time only
+     * has its schedule started, so nothing runs right after init or clone.
+     */
+    static void autoRun() {
+        if (!Repository.GITLET_DIR.isDirectory()
+                || !Config.local().getBoolean("maintenance.auto", true)) {
+            return;
+        }
+        Maintenance m = new Maintenance(Repository.GITLET_DIR);
+        long now = System.currentTimeMillis();
+        if (m.state.isEmpty()) {
+            for (String task : TASKS) {
+                m.state.setProperty(task + ".lastRun", Long.toString(now));
+            }
+            m.save();
+            return;
+        }
+        boolean due = false;
+        for (String task : TASKS) {
+            due |= m.isDue(task, now);
+        }
+        if (!due) {
+            return;
+        }
+        try (RepoLock running = RepoLock.lock(
+                join(Repository.GITLET_DIR, LOCK_FILE), false, false)) {
+            if (running == null) {
+                return;
+            }
+        }
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command())
+                    .directory(Repository.CWD)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD);
+            builder.start().getOutputStream().close();
+        } catch (IOException excp) {
+            /* Maintenance is only ever an optimization; the command that
+             * triggered it has succeeded either way. */
+        }
+    }
+
+    /** The command line of a background run: this Java and classpath, under
+     *  nice when there is one. */
+    private static List<String> command() {
+        List<String> command = new ArrayList<>();
+        String path = System.getenv("PATH");
+        for (String dir : path == null ? new String[0]
+                : path.split(File.pathSeparator)) {
+            if (!dir.isEmpty() && new File(dir, "nice").canExecute()) {
+                command.add(new File(dir, "nice").getPath());
+                command.add("-n");
+                command.add("10");
+                break;
+            }
+        }
+        command.add(join(new File(System.getProperty("java.home")), "bin",
+                "java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        command.add("maintenance");
+        command.add("run");
+        command.add("--auto");
+        return command;
+    }
+
+    /**
+     * Runs the task ONLY, or every enabled task when ONLY is null, printing
+     * a line about each. With AUTO only tasks that are due run, and nothing
+     * is printed when another maintenance process is already at work.
+     */
+    static void run(String only, boolean auto) {
+        Maintenance m = new Maintenance(Repository.GITLET_DIR);
+        try (RepoLock running = RepoLock.lock(
+                join(Repository.GITLET_DIR, LOCK_FILE), false, false)) {
+            if (running == null) {
+                if (!auto) {
+                    System.out.println("Maintenance is already running.");
+                }
+                return;
+            }
+            long start = System.currentTimeMillis();
+            long budget = m.config.getLong("maintenance.budget", 300) * 1000;
+            for (String task : TASKS) {
+                if (only != null ? !only.equals(task)
+                        : !m.isEnabled(task)
+                        || auto && !m.isDue(task, start)) {
+                    continue;
+                }
+                if (System.currentTimeMillis() - start > budget) {
+                    System.out.println(task + ": out of time, skipped.");
+                    continue;
+                }
+                String result = m.run(task);
+                if (result == null) {
+                    result = "repository busy, skipped.";
+                } else {
+                    m.state.setProperty(task + ".lastRun",
+                            Long.toString(System.currentTimeMillis()));
+                    m.save();
+                }
+                System.out.println(task + ": " + result);
+            }
+        }
+    }
+
+    private boolean isEnabled(String task) {
+        return config.getBoolean("maintenance." + task + ".enabled", true);
+    }
+
+    /** Returns true if TASK is enabled and its interval has passed at
+     *  NOW. */
+    private boolean isDue(String task, long now) {
+        if (!isEnabled(task)) {
+            return false;
+        }
+        long interval = config.getLong("maintenance." + task + ".interval",
+                task.equals("prune") ? 86400 : 3600);
+        String last = state.getProperty(task + ".lastRun");
+        try {
+            return last == null
+                    || now - Long.parseLong(last.trim()) >= interval * 1000;
+        } catch (NumberFormatException excp) {
+            return true;
+        }
+    }
+
+    /** Runs TASK. Returns what it did, or null if the repository lock
+     *  couldn't be had. */
+    private String run(String task) {
+        switch (task) {
+            case "commit-graph":
+                return commitGraph();
+            case "pack-refs":
+                return packRefs();
+            default:
+                return prune();
+        }
+    }
+
+    private String commitGraph() {
+        CommitGraph graph = CommitGraph.load(gitletDir);
+        List<Commit> missing = Repository.missingFromGraph(graph, heads(),
+                config.getInt("maintenance.commit-graph.budget", 10000));
+        List<byte[]> records = new ArrayList<>();
+        for (Commit c : missing) {
+            records.add(CommitGraph.record(c, Repository.changedPaths(c)));
+        }
+        File file = join(gitletDir, CommitGraph.GRAPH_FILE);
+        long length = file.length();
+        int added = 0;
+        for (int from = 0; from < missing.size(); from += BATCH_SIZE) {
+            int to = Math.min(from + BATCH_SIZE, missing.size());
+            try (RepoLock lock = tryLock()) {
+                if (lock == null) {
+                    return null;
+                }
+                /* Commands append their own commits meanwhile; the graph
+                 * only needs reading again if one did. */
+                if (file.length() != length) {
+                    graph = CommitGraph.load(gitletDir);
+                }
+                List<Commit> commits = new ArrayList<>();
+                List<byte[]> batch = new ArrayList<>();
+                for (int i = from; i < to; i++) {
+                    if (!graph.contains(missing.get(i).getId())) {
+                        commits.add(missing.get(i));
+                        batch.add(records.get(i));
+                    }
+                }
+                CommitGraph.appendRecords(gitletDir, batch);
+                CommitColumns.append(gitletDir, commits);
+                length = file.length();
+                added += commits.size();
+            }
+        }
+        String result = "added " + added + " commits";
+        int size = CommitGraph.load(gitletDir).size();
+        String indexed = state.getProperty("commit-graph.bitmapsAt");
+        if (indexed == null || !indexed.equals(Integer.toString(size))) {
+            List<String> refs =
+                    new ArrayList<>(RefStore.local().all().values());
+            int bitmaps = ReachabilityIndex.write(gitletDir, refs);
+            state.setProperty("commit-graph.bitmapsAt",
+                    Integer.toString(size));
+            result += ", wrote " + bitmaps + " bitmaps";
+        }
+        /* Merging needs no lock, see CommitColumns. */
+        int tail = CommitColumns.load(gitletDir).tailRows();
+        if (tail > 0) {
+            CommitColumns.compact(gitletDir, new ArrayList<>());
+            result += ", merged " + tail + " rows into the commit columns";
+        }
+        return result + ".";
+    }
+
+    private String packRefs() {
+        int loose = RefStore.local().looseCount();
+        if (loose <= config.getInt("maintenance.pack-refs.threshold", 64)) {
+            return loose + " loose refs, nothing to do.";
+        }
+        try (RepoLock lock = tryLock()) {
+            if (lock == null) {
+                return null;
+            }
+            int packed = RefStore.local().pack(
+                    Transaction.Durability.configured());
+            return "packed " + packed + " refs.";
+        }
+    }
+
+    private String prune() {
+        if (config.get(ObjectStore.CONFIG_KEY, "loose").trim()
+                .equals("log")) {
+            return "object log, left to gc.";
+        }
+        long grace = config.getLong("gc.pruneExpire", 1209600);
+        GarbageCollector gc = new GarbageCollector(gitletDir, grace * 1000);
+        Set<String> heads = new HashSet<>();
+        Set<String> staged = new HashSet<>();
+        markNew(gc, heads, staged);
+        for (ObjectStore.Kind kind : ObjectStore.Kind.values()) {
+            List<String> candidates = gc.unmarked(kind);
+            for (int from = 0; from < candidates.size(); from += BATCH_SIZE) {
+                try (RepoLock lock = tryLock()) {
+                    if (lock == null) {
+                        return null;
+                    }
+                    /* Marks are only ever added: this just catches up with
+                     * what commands did since the last batch. */
+                    markNew(gc, heads, staged);
+                    gc.remove(kind, candidates.subList(from,
+                            Math.min(from + BATCH_SIZE, candidates.size())));
+                }
+            }
+        }
+        return "removed " + gc.removedCommits() + " commits, "
+                + gc.removedBlobs() + " blobs and " + gc.removedChunks()
+                + " chunks.";
+    }
+
+    /** Marks in GC what the branch heads, HEAD and staged blobs that aren't
+     *  in HEADS or STAGED yet reach, and adds them there. */
+    private void markNew(GarbageCollector gc, Set<String> heads,
+                         Set<String> staged) {
+        List<String> newHeads = new ArrayList<>();
+        for (String id : heads()) {
+            if (heads.add(id)) {
+                newHeads.add(id);
+            }
+        }
+        List<String> newStaged = new ArrayList<>();
+        for (String sha : Repository.stagedBlobs()) {
+            if (staged.add(sha)) {
+                newStaged.add(sha);
+            }
+        }
+        gc.mark(newHeads, newStaged);
+    }
+
+    /** Every branch head plus HEAD. */
+    private List<String> heads() {
+        List<String> heads = new ArrayList<>(RefStore.local().all().values());
+        heads.add(Repository.headId());
+        return heads;
+    }
+
+    /** The exclusive repository lock, if it can be had within a few
+     *  attempts; null otherwise. */
+    private RepoLock tryLock() {
+        for (int i = 0; i < LOCK_ATTEMPTS; i++) {
+            RepoLock lock = RepoLock.tryExclusive(gitletDir);
+            if (lock != null) {
+                return lock;
+            }
+            try {
+                Thread.sleep(LOCK_RETRY_MILLIS);
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private void save() {
+        StringWriter out = new StringWriter();
+        try {
+            state.store(out, null);
+        } catch (IOException excp) {
+            throw error("Cannot write maintenance state: %s",
+                    excp.getMessage());
+        }
+        Transaction.publish(stateFile, out.toString());
+    }
+}
@@ -0,0 +1,144 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * Objects kept in hash maps and nowhere else, for tests and benchmarks that
+ * run gitlet inside one process and want to take the file system out of the
+ * picture. Install it with ObjectStore.use() before the first command; the
+ * objects are gone when the process exits, so it can't be picked through
+ * core.objectStore. testing/MemoryStoreTest.java runs commands on it.
+ *
+ *  @author Adrian Serbanescu
+ */
+class MemoryObjectStore implements ObjectStore {
+    /** An object and when it was stored. */
+    private static class Entry {
+        private final byte[] contents;
+        private final long time;
+
+        Entry(byte[] contents, long time) {
+            this.contents = contents;
+            this.time = time;
+        }
+    }
+
+    private final EnumMap<Kind, HashMap<String, Entry>> objects =
+            new EnumMap<>(Kind.class);
+
+    MemoryObjectStore() {
+        for (Kind kind : Kind.values()) {
+            objects.put(kind, new HashMap<>());
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(Kind kind, String id) {
+        return objects.get(kind).containsKey(id);
+    }
+
+    @Override
+    public synchronized byte[] read(Kind kind, String id) {
+        Entry e = objects.get(kind).get(id);
+        if (e == null) {
+            throw error("Missing %s %s", kind.name().toLowerCase(), id);
+        }
+        return e.contents.clone();
+    }
+
+    @Override
+    public synchronized List<String> find(Kind kind, String prefix) {
+        List<String> found = new ArrayList<>();
+        for (String id : objects.get(kind).keySet()) {
+            if (id.startsWith(prefix)) {
+                found.add(id);
+            }
+        }
+        found.sort(null);
+        return found;
+    }
+
+    @Override
+    public synchronized Iterable<String> ids(Kind kind) {
+        return new ArrayList<>(objects.get(kind).keySet());
+    }
+
+    @Override
+    public Batch begin(Transaction.Durability durability) {
+        EnumMap<Kind, HashMap<String, byte[]>> pending =
+                new EnumMap<>(Kind.class);
+        return new Batch() {
+            @Override
+            public void put(Kind kind, String id, byte[] contents) {
+                if (!ObjectStore.isId(id)) {
+                    throw error("Bad object id: %s", id);
+                }
+                pending.computeIfAbsent(kind, k -> new HashMap<>())
+                        .put(id, contents.clone());
+            }
+
+            @Override
+            public void commit() {
+                long time = System.currentTimeMillis();
+                synchronized (MemoryObjectStore.this) {
+                    for (Map.Entry<Kind, HashMap<String, byte[]>> kind
+                            : pending.entrySet()) {
+                        for (Map.Entry<String, byte[]> e
+                                : kind.getValue().entrySet()) {
+                            objects.get(kind.getKey()).put(e.getKey(),
+                                    new Entry(e.getValue(), time));
+                        }
+                    }
+                }
+                pending.clear();
+            }
+
+            @Override
+            public void abort() {
+                pending.clear();
+            }
+        };
+    }
+
+    @Override
+    public synchronized int remove(Kind kind, Collection<String> ids,
+                                   long cutoff) {
+        int removed = 0;
+        for (String id : ids) {
+            Entry e = objects.get(kind).get(id);
+            if (e != null && e.time < cutoff) {
+                objects.get(kind).remove(id);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public synchronized Swept sweep(BiPredicate<Kind, String> live,
+                                    long cutoff) {
+        Swept swept = new Swept();
+        for (Kind kind : Kind.values()) {
+            Iterator<Map.Entry<String, Entry>> it =
+                    objects.get(kind).entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getValue().time < cutoff
+                        && !live.test(kind, e.getKey())) {
+                    it.remove();
+                    swept.removed[kind.ordinal()]++;
+                }
+            }
+        }
+        return swept;
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A three-way merge of the files of two commits, OURS and THEIRS, against
+ * their merge base, computed from the object store alone: nothing is read
+ * from or written to the working directory or the index. The result is the
+ * files of the merge commit plus the list of files in conflict, whose
+ * version with conflict markers is stored as a blob through the caller's
+ * transaction.
+ *
+ * merge checks the result out into the working directory and stages it;
+ * merge-tree writes the merge commit straight from it, which is what lets a
+ * server merge without a checkout, and several merges at once.
+ *
+ *  @author Adrian Serbanescu
+ */
+class MergeTree {
+    private static final byte[] OURS_MARKER =
+            "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR =
+            "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER =
+            ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** A file PATH the two sides changed in different ways since the base.
+     *  BASE, OURS and THEIRS are its blob ids there, null where it doesn't
+     *  exist; RESULT is the blob with conflict markers the merge keeps. */
+    static class Conflict {
+        final String path;
+        final String base;
+        final String ours;
+        final String theirs;
+        final String result;
+
+        Conflict(String path, String base, String ours, String theirs,
+                 String result) {
+            this.path = path;
+            this.base = base;
+            this.ours = ours;
+            this.theirs = theirs;
+            this.result = result;
+        }
+
+        /** content (both sides changed the file), add/add (both added it),
+         *  modify/delete or delete/modify (one side deleted it). */
+        String kind() {
+            if (base == null) {
+                return "add/add";
+            } else if (ours == null) {
+                return "delete/modify";
+            } else if (theirs == null) {
+                return "modify/delete";
+            }
+            return "content";
+        }
+    }
+
+    /** The files of the merge. */
+    final FileMap files;
+    /** The files in conflict, in path order. */
+    final List<Conflict> conflicts;
+
+    private MergeTree(FileMap files, List<Conflict> conflicts) {
+        this.files = files;
+        this.conflicts = Collections.unmodifiableList(conflicts);
+    }
+
+    /** Returns true if PATH is in conflict. */
+    boolean isConflicted(String path) {
+        for (Conflict c : conflicts) {
+            if (c.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merges THEIRS into OURS, BASE being the files of their merge base,
+     * and stores the blobs with conflict markers through TX.
+     *
+     * Renames are followed first: a file renamed on one side since the base
+     * is merged under its new name, against the other side's version of the
+     * old name, instead of looking like a deletion plus an unrelated new
+     * file.
+     */
+    static MergeTree merge(FileMap ours, FileMap theirs, FileMap base,
+                           Transaction tx) {
+        RenameDetector detector = RenameDetector.configured();
+        Map<String, String> renamedByOurs =
+                followRenames(detector, base, ours, theirs);
+        base = base.renamed(renamedByOurs);
+        theirs = theirs.renamed(renamedByOurs);
+        Map<String, String> renamedByTheirs =
+                followRenames(detector, base, theirs, ours);
+        base = base.renamed(renamedByTheirs);
+        ours = ours.renamed(renamedByTheirs);
+
+        Map<String, String> files = new HashMap<>(ours);
+        List<Conflict> conflicts = new ArrayList<>();
+        for (String fileName : FileMap.union(ours, theirs, base)) {
+            String aSha = ours.get(fileName);
+            String gSha = theirs.get(fileName);
+            String sSha = base.get(fileName);
+
+            /**
+             * Any files that have been modified in the given branch since the
+             * split point, but not modified in the current branch since the
+             * split point should be changed to their versions in the given
+             * branch.
+             */
+            if (aSha != null && gSha != null && sSha != null
+                && !gSha.equals(sSha) && aSha.equals(sSha)) {
+                files.put(fileName, gSha);
+            /**
+             * Any files that were not present at the split point and are
+             * present only in the given branch should be added.
+             */
+            } else if (aSha == null && sSha == null) {
+                files.put(fileName, gSha);
+            /**
+             * Any files present at the split point, unmodified in the current
+             * branch, and absent in the given branch should be removed.
+             */
+            } else if (gSha == null && aSha != null && aSha.equals(sSha)) {
+                files.remove(fileName);
+            /**
+             * Any files modified in different ways in the current and given
+             * branches are in conflict. “Modified in different ways” can
+             * mean that the contents of both are changed and different from
+             * other, or the contents of one are changed and the other file is
+             * deleted, or the file was absent at the split point and has
+             * different contents in the given and current branches. In this
+             * case, the file gets both contents between conflict markers.
+             */
+            } else if ((aSha != null && gSha != null && !aSha.equals(gSha)
+                    && !gSha.equals(sSha))
+                    || (gSha != null && sSha != null
+                    && !gSha.equals(sSha) && aSha == null)
+                    || (aSha != null && sSha != null
+                    && !aSha.equals(sSha) && gSha == null)) {
+                String result = Blobs.store(conflictContents(aSha, gSha), tx);
+                files.put(fileName, result);
+                conflicts.add(new Conflict(fileName, sSha, aSha, gSha,
+                        result));
+            }
+        }
+        return new MergeTree(FileMap.of(files), conflicts);
+    }
+
+    /** The contents of a file in conflict: blob OURS, then blob THEIRS,
+     *  each of them empty when null, between conflict markers. */
+    private static byte[] conflictContents(String ours, String theirs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(OURS_MARKER);
+        if (ours != null) {
+            out.writeBytes(Blobs.read(ours));
+        }
+        out.writeBytes(SEPARATOR);
+        if (theirs != null) {
+            out.writeBytes(Blobs.read(theirs));
+        }
+        out.writeBytes(THEIRS_MARKER);
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds the files the RENAMED side of a merge renamed since the split
+     * point SPLIT. Where the OTHER side still has such a file under its old
+     * name, and nothing under the new one, the file is to be moved to its new
+     * name in SPLIT and OTHER as well, see FileMap.renamed(). Returns the
+     * renames to follow, new name to old name.
+     */
+    private static Map<String, String> followRenames(
+            RenameDetector detector, Map<String, String> split,
+            Map<String, String> renamed, Map<String, String> other) {
+        Map<String, String> gone = new HashMap<>();
+        Map<String, String> appeared = new HashMap<>();
+        for (Map.Entry<String, String> e : split.entrySet()) {
+            if (!renamed.containsKey(e.getKey())) {
+                gone.put(e.getKey(), e.getValue());
+            }
+        }
+        for (Map.Entry<String, String> e : renamed.entrySet()) {
+            if (!split.containsKey(e.getKey())) {
+                appeared.put(e.getKey(), e.getValue());
+            }
+        }
+        Map<String, String> followed = new HashMap<>();
+        if (gone.isEmpty() || appeared.isEmpty()) {
+            return followed;
+        }
+        for (RenameDetector.Match m : detector.renames(gone, appeared)) {
+            if (other.containsKey(m.source) && !other.containsKey(m.target)) {
+                followed.put(m.target, m.source);
+            }
+        }
+        return followed;
+    }
+}
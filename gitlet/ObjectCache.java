@@ -0,0 +1,108 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded, size aware LRU cache for decoded objects (commits for now).
+ *
+ * Objects are immutable and keyed by their full id, so an entry never goes
+ * stale: a ref moving only changes which id gets looked up, never what an id
+ * decodes to. The only time an entry has to be dropped is when the object
+ * itself is deleted from the store, which is what invalidate() is for.
+ *
+ * Every entry has a weight (e.g. the number of files a commit tracks) and the
+ * least recently used entries are evicted once the total weight goes over the
+ * budget. Since the cache lives in a static field it is shared by every
+ * command run in the same process, which is what makes it pay off in daemon
+ * or embedded use. Values handed out are shared, callers must not modify
+ * them.
+ *
+ *  @author Adrian Serbanescu
+ */
+class ObjectCache<K, V> {
+    private final LinkedHashMap<K, V> map =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Long> weights = new LinkedHashMap<>();
+    private final ToLongFunction<V> weigher;
+    private final long budget;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /** A cache holding at most BUDGET worth of entries, each weighing
+     *  whatever WEIGHER says. */
+    ObjectCache(long budget, ToLongFunction<V> weigher) {
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /** Returns the value cached under KEY, computing and caching it with
+     *  LOADER on a miss. */
+    synchronized V get(K key, Function<K, V> loader) {
+        V value = map.get(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        misses++;
+        value = loader.apply(key);
+        if (value != null) {
+            put(key, value);
+        }
+        return value;
+    }
+
+    /** Returns the value cached under KEY or null, without loading. */
+    synchronized V getIfPresent(K key) {
+        V value = map.get(key);
+        if (value != null) {
+            hits++;
+        }
+        return value;
+    }
+
+    synchronized void put(K key, V value) {
+        long w = Math.max(1, weigher.applyAsLong(value));
+        if (w > budget) {
+            return;
+        }
+        invalidate(key);
+        map.put(key, value);
+        weights.put(key, w);
+        weight += w;
+        Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        while (weight > budget && it.hasNext()) {
+            K eldest = it.next().getKey();
+            it.remove();
+            weight -= weights.remove(eldest);
+            evictions++;
+        }
+    }
+
+    /** Drops KEY, for when the object it names is deleted. */
+    synchronized void invalidate(K key) {
+        if (map.remove(key) != null) {
+            weight -= weights.remove(key);
+        }
+    }
+
+    synchronized void clear() {
+        map.clear();
+        weights.clear();
+        weight = 0;
+    }
+
+    /** One line summary of the cache metrics, printed to standard error
+     *  after every command when gitlet runs with -Dgitlet.cacheStats=true
+     *  (see Main). */
+    synchronized String stats() {
+        return String.format("entries=%d weight=%d/%d hits=%d misses=%d"
+                + " evictions=%d", map.size(), weight, budget, hits, misses,
+                evictions);
+    }
+}
@@ -0,0 +1,216 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+/**
+ * Where the objects of a repository (commits, blobs, chunk manifests and
+ * chunks) are kept. Every read and write of an object goes through the store
+ * of its repository, which is picked by core.objectStore:
+ *
+ *  loose - one file per object under .gitlet, the classic layout (default);
+ *  log   - a single append-only file with an in-memory index, see
+ *          LogObjectStore.
+ *
+ * A third store, MemoryObjectStore, keeps nothing on disk at all; tests and
+ * benchmarks that embed gitlet install it with use(). In a clone made with
+ * --lazy-blobs the configured store is wrapped in a LazyObjectStore, which
+ * fetches missing blobs from core.promisor.
+ *
+ * Objects are named by their SHA-1 and never change, so a store only ever
+ * adds objects (through a Batch, which makes a group of writes visible at
+ * once) and drops them again when the garbage collector says so.
+ *
+ * Refs, the index and the side files (commit graph, bitmaps, caches) are not
+ * objects and stay plain files whatever the store.
+ *
+ *  @author Adrian Serbanescu
+ */
+interface ObjectStore {
+    /** Config key choosing the store of a repository. */
+    String CONFIG_KEY = "core.objectStore";
+
+    /** The kinds of objects; ids are only unique within a kind. */
+    enum Kind {
+        COMMIT, BLOB, MANIFEST, CHUNK
+    }
+
+    /** Writes that become visible together. */
+    interface Batch {
+        /** Adds object ID of KIND with the given CONTENTS. */
+        void put(Kind kind, String id, byte[] contents);
+
+        /** Makes every object put so far readable. */
+        void commit();
+
+        /** Throws away whatever was put and not committed. */
+        void abort();
+    }
+
+    /** What a sweep removed. */
+    class Swept {
+        /** Objects removed, by kind ordinal. */
+        final int[] removed = new int[Kind.values().length];
+        /** Leftovers of interrupted writes removed. */
+        int temporary;
+    }
+
+    boolean contains(Kind kind, String id);
+
+    /** Like contains(), but only true if the object is in this repository
+     *  and not merely available from elsewhere (see LazyObjectStore). */
+    default boolean containsLocally(Kind kind, String id) {
+        return contains(kind, id);
+    }
+
+    /** The contents of object ID of KIND; a GitletException if there is no
+     *  such object. */
+    byte[] read(Kind kind, String id);
+
+    /** The contents of object ID of KIND as a stream. */
+    default InputStream open(Kind kind, String id) {
+        return new ByteArrayInputStream(read(kind, id));
+    }
+
+    /** The size of object ID of KIND in bytes. */
+    default long size(Kind kind, String id) {
+        return read(kind, id).length;
+    }
+
+    /** Writes object ID of KIND to TARGET. Stores that keep objects in files
+     *  hand them to FileChannel.transferTo, so the bytes can go from file to
+     *  TARGET without passing through the heap. */
+    default void transferTo(Kind kind, String id, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(read(kind, id));
+        while (buf.hasRemaining()) {
+            target.write(buf);
+        }
+    }
+
+    /** The ids of the objects of KIND that start with PREFIX. */
+    List<String> find(Kind kind, String prefix);
+
+    /** The ids of all objects of KIND; may be read lazily. */
+    Iterable<String> ids(Kind kind);
+
+    /** Starts a batch of writes with the given DURABILITY. */
+    Batch begin(Transaction.Durability durability);
+
+    /**
+     * Removes every object for which LIVE answers false and that was written
+     * before CUTOFF (in milliseconds since the epoch), along with leftovers
+     * of interrupted writes older than that.
+     */
+    Swept sweep(BiPredicate<Kind, String> live, long cutoff);
+
+    /**
+     * Removes those of the objects IDS of KIND that were written before
+     * CUTOFF, and returns how many. A store that can only drop objects by
+     * sweeping sweeps, which still leaves every other object alone.
+     */
+    default int remove(Kind kind, Collection<String> ids, long cutoff) {
+        Set<String> dead = new HashSet<>(ids);
+        return sweep((k, id) -> k != kind || !dead.contains(id), cutoff)
+                .removed[kind.ordinal()];
+    }
+
+    /** Returns true if ID looks like an object id, which keeps names like
+     *  "../x" from ever being turned into paths. */
+    static boolean isId(String id) {
+        if (id == null || id.length() != Utils.UID_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Stores that have been opened in this process, by .gitlet
+     *  directory. */
+    Map<File, ObjectStore> OPEN = new HashMap<>();
+
+    /** The store of the repository in GITLETDIR. */
+    static ObjectStore of(File gitletDir) {
+        File key = gitletDir.getAbsoluteFile();
+        synchronized (OPEN) {
+            ObjectStore store = OPEN.get(key);
+            if (store == null) {
+                Config config = Config.load(gitletDir);
+                store = open(gitletDir, config.get(CONFIG_KEY, "loose"));
+                String promisor = config.get(LazyObjectStore.CONFIG_KEY);
+                if (promisor != null) {
+                    String path = config.get(Remote.key(promisor));
+                    store = new LazyObjectStore(gitletDir, store,
+                            path == null ? null : new File(path));
+                }
+                OPEN.put(key, store);
+            }
+            return store;
+        }
+    }
+
+    /** A new store of type TYPE (loose or log) for the repository in
+     *  GITLETDIR. */
+    static ObjectStore open(File gitletDir, String type) {
+        switch (type.trim()) {
+            case "loose":
+                return new LooseObjectStore(gitletDir);
+            case "log":
+                return new LogObjectStore(gitletDir);
+            default:
+                throw Utils.error("Unknown %s: %s", CONFIG_KEY, type);
+        }
+    }
+
+    /** Makes STORE the store of the repository in GITLETDIR for the rest
+     *  of this process. */
+    static void use(File gitletDir, ObjectStore store) {
+        synchronized (OPEN) {
+            OPEN.put(gitletDir.getAbsoluteFile(), store);
+        }
+    }
+
+    /** The store of the repository in the current working directory. */
+    static ObjectStore local() {
+        return of(Repository.GITLET_DIR);
+    }
+
+    /** Copies every object FROM has and TO doesn't into TO. Returns the
+     *  number of objects copied. */
+    static int copy(ObjectStore from, ObjectStore to,
+                    Transaction.Durability durability) {
+        int copied = 0;
+        Batch batch = to.begin(durability);
+        try {
+            for (Kind kind : Kind.values()) {
+                for (String id : from.ids(kind)) {
+                    if (!to.contains(kind, id)) {
+                        batch.put(kind, id, from.read(kind, id));
+                        copied++;
+                    }
+                }
+            }
+            batch.commit();
+        } catch (RuntimeException excp) {
+            batch.abort();
+            throw excp;
+        }
+        return copied;
+    }
+}
@@ -0,0 +1,110 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+
+/**
+ * Where everything gitlet prints goes.
+ *
+ * install() replaces System.out with a stream that isn't flushed on every
+ * line but only when its one large buffer fills up and when the process
+ * exits (however it exits, System.exit included), so printing a long history
+ * costs a write system call per BUFFER_SIZE bytes instead of one per line.
+ * Everything keeps printing through System.out, so output stays in order.
+ *
+ * For commands with long output, usePager() sends it through a pager
+ * (core.pager, or $PAGER) when standard output is a terminal.
+ *
+ * Dates are formatted with one shared DateTimeFormatter, which is immutable
+ * and therefore safe to share, and written straight into the stream.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Output {
+    /** Size of the output buffer. */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    /** The date format of log. */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter
+            .ofPattern("EEE MMM d HH:mm:ss yyyy Z")
+            .withZone(ZoneId.systemDefault());
+
+    private static PrintStream out;
+    private static Process pager;
+
+    /** Makes System.out buffered, flushed when the process exits. */
+    static synchronized void install() {
+        if (out != null) {
+            return;
+        }
+        out = buffered(new FileOutputStream(FileDescriptor.out));
+        System.setOut(out);
+        Runtime.getRuntime().addShutdownHook(new Thread(Output::close));
+    }
+
+    /**
+     * Sends the rest of the output through the configured pager, if there is
+     * one and standard output is a terminal.
+     */
+    static synchronized void usePager() {
+        if (out == null || pager != null || System.console() == null) {
+            return;
+        }
+        String command = Config.local().get("core.pager",
+                System.getenv("PAGER"));
+        if (command == null || command.isBlank() || command.equals("cat")) {
+            return;
+        }
+        try {
+            out.flush();
+            pager = new ProcessBuilder("sh", "-c", command)
+                    .redirectOutput(ProcessBuilder.Redirect.INHERIT)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = buffered(pager.getOutputStream());
+            System.setOut(out);
+        } catch (IOException excp) {
+            pager = null;  // no pager then, print directly
+        }
+    }
+
+    /** Returns true once whatever reads our output has gone away (the user
+     *  quit the pager), so there is no point in printing more. Flushes. */
+    static boolean closed() {
+        return System.out.checkError();
+    }
+
+    /** Writes DATE to OUT in the format of log. */
+    static void date(Date date, Appendable out) {
+        DATE_FORMAT.formatTo(date.toInstant(), out);
+    }
+
+    /** Flushes the output and waits for the pager to finish, if any. */
+    static synchronized void close() {
+        if (out == null) {
+            return;
+        }
+        out.flush();
+        if (pager != null) {
+            out.close();
+            try {
+                pager.waitFor();
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            }
+            pager = null;
+        }
+    }
+
+    private static PrintStream buffered(OutputStream stream) {
+        return new PrintStream(new BufferedOutputStream(stream, BUFFER_SIZE),
+                false);
+    }
+}
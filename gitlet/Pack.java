@@ -0,0 +1,336 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BiPredicate;
+
+import static gitlet.Utils.*;
+
+/**
+ * A pack is the single stream in which objects travel from one repository to
+ * another. It's a plain sequence of records
+ *
+ *     type (1 byte) | id (UTF) | length (int) | bytes
+ *
+ * after a short header, terminated by a record of type END. Chunks come
+ * before the manifests of the blobs made of them, blobs before commits, and
+ * commits are written parents first, so whoever reads the pack never sees an
+ * object before what it refers to.
+ *
+ * Which objects go into a pack is decided by missing(): it walks the commit
+ * graph of the sending repository from a head and stops at every commit the
+ * receiving side already has, so the size of a transfer follows the size of
+ * the delta and not the size of the history. A shallow clone stops the walk
+ * after a number of commits as well, and a clone with lazy blobs only takes
+ * the blobs of the head.
+ *
+ * Commits made by older versions are named by their files only, so a
+ * commit both sides have under one id can still be two different commits;
+ * taking one for the other would leave the wrong history behind the ref
+ * that is moved. Wherever both sides are at hand, missing() compares the
+ * commits it stops at, and read() compares every commit it receives with
+ * the one of the same id the receiving side has, if any. read() also checks
+ * that every blob and chunk hashes to its id. Either refuses the transfer
+ * with a Refused.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Pack {
+    private static final int MAGIC = 0x474c504b;  // "GLPK"
+    private static final int VERSION = 1;
+
+    static final byte END = 0;
+    static final byte COMMIT = 1;
+    static final byte BLOB = 2;
+    static final byte MANIFEST = 3;
+    static final byte CHUNK = 4;
+
+    /** A transfer that can't be made, with the reason as its message. */
+    static class Refused extends GitletException {
+        private static final long serialVersionUID = 1L;
+
+        Refused(String message) {
+            super(message);
+        }
+    }
+
+    /** The objects one repository has to send to another. */
+    static class Delta {
+        /** Missing commits, parents before children. */
+        final List<String> commits = new ArrayList<>();
+        /** Missing blobs stored whole. */
+        final Set<String> blobs = new LinkedHashSet<>();
+        /** Missing chunked blobs. */
+        final Set<String> manifests = new LinkedHashSet<>();
+        /** Chunks of those the receiving side doesn't have either. */
+        final Set<String> chunks = new LinkedHashSet<>();
+        /** Commits sent without their parents, which the receiving side
+         *  has to add to its shallow boundary. */
+        final Set<String> shallow = new LinkedHashSet<>();
+
+        boolean isEmpty() {
+            return commits.isEmpty() && blobs.isEmpty()
+                    && manifests.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the commits and blobs reachable from HEAD in the repository FROM
+     * that the repository TO doesn't have. The walk doesn't go past commits TO
+     * already has: their history is there as well.
+     */
+    static Delta missing(File from, File to, String head) {
+        return missing(from, to, head, 0, true);
+    }
+
+    /**
+     * Like missing(FROM, TO, HEAD), but only takes the commits less than
+     * DEPTH parent steps away from HEAD when DEPTH is positive, and only the
+     * blobs of HEAD itself unless ALLBLOBS. Commits the walk had to cut off
+     * from a parent TO doesn't have, because of DEPTH or because FROM is
+     * shallow itself, are listed in Delta.shallow. Throws Refused if a
+     * commit TO has is a different commit in FROM.
+     */
+    static Delta missing(File from, File to, String head, int depth,
+                         boolean allBlobs) {
+        ObjectStore fromStore = ObjectStore.of(from);
+        ObjectStore toStore = ObjectStore.of(to);
+        Set<String> compared = new HashSet<>();
+        return missing(from, (kind, id) -> {
+            if (!toStore.contains(kind, id)) {
+                return false;
+            }
+            if (kind == ObjectStore.Kind.COMMIT && compared.add(id)
+                    && fromStore.contains(kind, id)) {
+                checkSameCommit(id, fromStore.read(kind, id), toStore);
+            }
+            return true;
+        }, head, depth, allBlobs);
+    }
+
+    /**
+     * Like missing(FROM, TO, HEAD, DEPTH, ALLBLOBS) for a receiving side
+     * that isn't at hand: HAS tells whether it has an object of a kind.
+     */
+    static Delta missing(File from, BiPredicate<ObjectStore.Kind, String> has,
+                         String head, int depth, boolean allBlobs) {
+        Delta delta = new Delta();
+        ObjectStore fromStore = ObjectStore.of(from);
+        Shallow fromShallow = Shallow.of(from);
+        Set<String> within = depth > 0 ? within(from, head, depth) : null;
+        Set<String> seen = new HashSet<>();
+        Deque<String> stack = new ArrayDeque<>();
+        List<String> postOrder = new ArrayList<>();
+        stack.push(head);
+        /* Iterative depth first walk, emitting a commit once both of its
+         * parents have been emitted. */
+        Set<String> expanded = new HashSet<>();
+        while (!stack.isEmpty()) {
+            String id = stack.peek();
+            if (seen.contains(id) || has.test(ObjectStore.Kind.COMMIT, id)) {
+                stack.pop();
+                continue;
+            }
+            /* As stored, with the parents a shallow FROM hides. */
+            Commit c = deserialize(fromStore.read(ObjectStore.Kind.COMMIT,
+                    id), Commit.class);
+            if (expanded.add(id)) {
+                for (String parent
+                        : new String[] {c.getMergeParent(), c.getParent()}) {
+                    if (parent == null || seen.contains(parent)) {
+                        continue;
+                    }
+                    if (fromShallow.contains(id)
+                            || (within != null && !within.contains(parent))) {
+                        if (!has.test(ObjectStore.Kind.COMMIT, parent)) {
+                            delta.shallow.add(id);
+                        }
+                        continue;
+                    }
+                    stack.push(parent);
+                }
+                continue;
+            }
+            stack.pop();
+            seen.add(id);
+            postOrder.add(id);
+            if (!allBlobs && !id.equals(head)) {
+                continue;
+            }
+            for (String sha : c.getFiles().values()) {
+                if (has.test(ObjectStore.Kind.BLOB, sha)
+                        || has.test(ObjectStore.Kind.MANIFEST, sha)) {
+                    continue;
+                }
+                List<String> chunks = Blobs.chunks(from, sha);
+                if (chunks == null) {
+                    delta.blobs.add(sha);
+                } else if (delta.manifests.add(sha)) {
+                    for (String chunk : chunks) {
+                        if (!has.test(ObjectStore.Kind.CHUNK, chunk)) {
+                            delta.chunks.add(chunk);
+                        }
+                    }
+                }
+            }
+        }
+        delta.commits.addAll(postOrder);
+        return delta;
+    }
+
+    /** The commits of FROM less than DEPTH parent steps away from HEAD. */
+    private static Set<String> within(File from, String head, int depth) {
+        Set<String> within = new HashSet<>();
+        List<String> generation = List.of(head);
+        for (int d = 0; d < depth && !generation.isEmpty(); d++) {
+            List<String> next = new ArrayList<>();
+            for (String id : generation) {
+                if (!within.add(id)) {
+                    continue;
+                }
+                Commit c = Repository.readCommit(from, id);
+                if (c.getParent() != null) {
+                    next.add(c.getParent());
+                }
+                if (c.getMergeParent() != null) {
+                    next.add(c.getMergeParent());
+                }
+            }
+            generation = next;
+        }
+        return within;
+    }
+
+    /** Streams the objects of DELTA, read from the repository in FROM, to
+     *  OUT. Returns the number of bytes of object data written. */
+    static long write(File from, Delta delta, OutputStream out) {
+        long bytes = 0;
+        ObjectStore store = ObjectStore.of(from);
+        try {
+            DataOutputStream data = new DataOutputStream(
+                    new BufferedOutputStream(out, 1 << 16));
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (String sha : delta.chunks) {
+                bytes += writeRecord(data, CHUNK, sha,
+                        store.read(ObjectStore.Kind.CHUNK, sha));
+            }
+            for (String sha : delta.manifests) {
+                bytes += writeRecord(data, MANIFEST, sha,
+                        store.read(ObjectStore.Kind.MANIFEST, sha));
+            }
+            for (String sha : delta.blobs) {
+                bytes += writeRecord(data, BLOB, sha,
+                        store.read(ObjectStore.Kind.BLOB, sha));
+            }
+            for (String id : delta.commits) {
+                bytes += writeRecord(data, COMMIT, id,
+                        store.read(ObjectStore.Kind.COMMIT, id));
+            }
+            data.writeByte(END);
+            data.flush();
+        } catch (IOException excp) {
+            throw error("Cannot write pack: %s", excp.getMessage());
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a pack from IN and stores its objects in the repository in TO,
+     * adding the commits in SHALLOW to its shallow boundary right before
+     * they become visible. Every object lands in place before this returns,
+     * so refs may be pointed at them right after. Returns the number of
+     * objects read. Throws Refused, with nothing stored, if an object
+     * doesn't match its id or a commit is a different one than TO's commit
+     * of that id.
+     */
+    static int read(InputStream in, File to, Collection<String> shallow) {
+        int count = 0;
+        ObjectStore store = ObjectStore.of(to);
+        try (Transaction tx = new Transaction(to,
+                Transaction.Durability.configured())) {
+            DataInputStream data = new DataInputStream(
+                    new BufferedInputStream(in, 1 << 16));
+            if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+                throw error("Not a gitlet pack.");
+            }
+            for (byte type = data.readByte(); type != END;
+                 type = data.readByte()) {
+                String id = data.readUTF();
+                byte[] contents = new byte[data.readInt()];
+                data.readFully(contents);
+                if (type == BLOB) {
+                    checkHash("blob", id, contents);
+                    tx.writeObject(ObjectStore.Kind.BLOB, id, contents);
+                } else if (type == CHUNK) {
+                    checkHash("chunk", id, contents);
+                    tx.writeObject(ObjectStore.Kind.CHUNK, id, contents);
+                } else if (type == MANIFEST) {
+                    tx.writeObject(ObjectStore.Kind.MANIFEST, id, contents);
+                } else if (type == COMMIT) {
+                    if (!deserialize(contents, Commit.class).getId()
+                            .equals(id)) {
+                        throw new Refused("Corrupt pack: commit " + id
+                                + " is stored under another id.");
+                    }
+                    checkSameCommit(id, contents, store);
+                    tx.writeObject(ObjectStore.Kind.COMMIT, id, contents);
+                } else {
+                    throw error("Corrupt pack: unknown object type %d", type);
+                }
+                count++;
+            }
+            Shallow.add(to, shallow);
+            tx.commit();
+        } catch (IOException excp) {
+            throw error("Cannot read pack: %s", excp.getMessage());
+        }
+        return count;
+    }
+
+    /** Throws Refused unless CONTENTS hash to ID, KIND naming the object
+     *  for the message. */
+    private static void checkHash(String kind, String id, byte[] contents) {
+        if (!sha1(contents).equals(id)) {
+            throw new Refused("Corrupt pack: " + kind + " " + id
+                    + " doesn't match its contents.");
+        }
+    }
+
+    /** Throws Refused if STORE has a commit named ID that isn't the one
+     *  serialized in CONTENTS. */
+    private static void checkSameCommit(String id, byte[] contents,
+                                        ObjectStore store) {
+        if (store.contains(ObjectStore.Kind.COMMIT, id)
+                && !deserialize(contents, Commit.class).isSameAs(deserialize(
+                store.read(ObjectStore.Kind.COMMIT, id), Commit.class))) {
+            throw new Refused("Commit " + id.substring(0, 7)
+                    + " is a different commit on each side; an older gitlet"
+                    + " named both by their files only.");
+        }
+    }
+
+    private static int writeRecord(DataOutputStream data, byte type,
+                                   String id, byte[] contents)
+            throws IOException {
+        data.writeByte(type);
+        data.writeUTF(id);
+        data.writeInt(contents.length);
+        data.write(contents);
+        return contents.length;
+    }
+}
@@ -0,0 +1,208 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Answers ancestry questions with reachability bitmaps instead of graph
+ * walks. The bitmap of a commit has bit P set for every commit at position P
+ * of the commit graph that can be reached from it (itself included).
+ *
+ * Bitmaps of selected commits (every CHECKPOINT_INTERVAL-th commit of the
+ * graph and the branch heads at the time) are stored in .gitlet/bitmaps by
+ * commit-graph write. The bitmap of any other commit is made by walking the
+ * graph from it only until a commit with a known bitmap is hit and OR-ing
+ * that in, so a query costs a few steps of walking plus bitmap operations no
+ * matter how long the history is.
+ *
+ * Every method returns null when it can't answer from the graph (a commit
+ * that isn't in it, or history that isn't), and the caller then falls back to
+ * walking commits the old way.
+ *
+ *  @author Adrian Serbanescu
+ */
+class ReachabilityIndex {
+    /** Name of the bitmap file inside the .gitlet directory. */
+    static final String BITMAP_FILE = "bitmaps";
+    /** Every this many commits of the graph one gets a stored bitmap. */
+    static final int CHECKPOINT_INTERVAL = 64;
+
+    private static final int MAGIC = 0x4249544d;  // "BITM"
+
+    private final CommitGraph graph;
+    private final HashMap<String, EwahBitmap> known = new HashMap<>();
+
+    private ReachabilityIndex(CommitGraph graph) {
+        this.graph = graph;
+    }
+
+    /** Loads the commit graph and the stored bitmaps of the repository in
+     *  GITLETDIR. */
+    static ReachabilityIndex load(File gitletDir) {
+        ReachabilityIndex index =
+                new ReachabilityIndex(CommitGraph.load(gitletDir));
+        File file = join(gitletDir, BITMAP_FILE);
+        if (!file.isFile()) {
+            return index;
+        }
+        HashMap<String, EwahBitmap> stored = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = CommitGraph.readId(in);
+                int pos = in.readInt();
+                EwahBitmap bitmap = EwahBitmap.read(in);
+                if (index.graph.position(id) != pos) {
+                    /* The graph has been rebuilt since, positions no longer
+                     * mean what they meant. */
+                    return index;
+                }
+                stored.put(id, bitmap);
+            }
+        } catch (IOException excp) {
+            return index;
+        }
+        index.known.putAll(stored);
+        return index;
+    }
+
+    /**
+     * Stores bitmaps for every checkpoint of the graph and for the commits in
+     * HEADS into the repository in GITLETDIR, replacing whatever bitmaps were
+     * there. Returns the number of bitmaps written.
+     */
+    static int write(File gitletDir, Collection<String> heads) {
+        ReachabilityIndex index = load(gitletDir);
+        CommitGraph graph = index.graph;
+        Set<String> selected = new LinkedHashSet<>();
+        for (int pos = CHECKPOINT_INTERVAL - 1; pos < graph.size();
+             pos += CHECKPOINT_INTERVAL) {
+            selected.add(graph.id(pos));
+        }
+        selected.addAll(heads);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int count = 0;
+        try {
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (String id : selected) {
+                EwahBitmap bitmap = index.reachable(id);
+                if (bitmap != null) {
+                    CommitGraph.writeId(out, id);
+                    out.writeInt(graph.position(id));
+                    bitmap.write(out);
+                    count++;
+                }
+            }
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            DataOutputStream header = new DataOutputStream(file);
+            header.writeInt(MAGIC);
+            header.writeInt(count);
+            header.write(bytes.toByteArray());
+            Transaction.publish(join(gitletDir, BITMAP_FILE),
+                    file.toByteArray());
+        } catch (IOException excp) {
+            throw error("Cannot write bitmaps: %s", excp.getMessage());
+        }
+        return count;
+    }
+
+    /** The set of commits reachable from ID, or null if that can't be told
+     *  from the graph. */
+    private EwahBitmap reachable(String id) {
+        int start = graph.position(id);
+        if (start < 0) {
+            return null;
+        }
+        EwahBitmap cached = known.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        BitSet bits = new BitSet();
+        BitSet visited = new BitSet();
+        EwahBitmap result = null;
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (visited.get(pos)) {
+                continue;
+            }
+            visited.set(pos);
+            EwahBitmap bitmap = pos == start ? null : known.get(graph.id(pos));
+            if (bitmap != null) {
+                result = result == null ? bitmap : result.or(bitmap);
+                continue;
+            }
+            bits.set(pos);
+            for (String parent
+                    : new String[] {graph.parent(pos), graph.mergeParent(pos)}) {
+                if (parent != null) {
+                    int p = graph.position(parent);
+                    if (p < 0) {
+                        return null;
+                    }
+                    stack.push(p);
+                }
+            }
+        }
+        EwahBitmap own = EwahBitmap.of(bits);
+        result = result == null ? own : result.or(own);
+        known.put(id, result);
+        return result;
+    }
+
+    /** Whether commit ANCESTOR can be reached from commit ID. */
+    Boolean isAncestor(String ancestor, String id) {
+        int pos = graph.position(ancestor);
+        EwahBitmap reachable = reachable(id);
+        if (pos < 0 || reachable == null) {
+            return null;
+        }
+        return reachable.get(pos);
+    }
+
+    /** The latest (by date) common ancestor of commits A and B. */
+    String mergeBase(String a, String b) {
+        EwahBitmap ra = reachable(a);
+        EwahBitmap rb = reachable(b);
+        if (ra == null || rb == null) {
+            return null;
+        }
+        int[] best = {-1};
+        ra.and(rb).forEach(pos -> {
+            if (best[0] < 0 || graph.date(best[0]) < graph.date(pos)) {
+                best[0] = pos;
+            }
+        });
+        return best[0] < 0 ? null : graph.id(best[0]);
+    }
+
+    /** How many commits A has that B doesn't, and the other way around. */
+    long[] aheadBehind(String a, String b) {
+        EwahBitmap ra = reachable(a);
+        EwahBitmap rb = reachable(b);
+        if (ra == null || rb == null) {
+            return null;
+        }
+        return new long[] {ra.andNot(rb).cardinality(),
+            rb.andNot(ra).cardinality()};
+    }
+}
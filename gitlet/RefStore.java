@@ -0,0 +1,634 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * The branches of a repository, HEAD and the name of the checked out branch.
+ *
+ * A branch is either a loose file under .gitlet/branches holding the id of
+ * its head commit, or a line of .gitlet/packed-refs. packed-refs is a header
+ * line followed by one "ID NAME" line per branch, sorted by name, so a single
+ * branch is found by a binary search over the file that reads a few hundred
+ * bytes per step, and listing all branches is one sequential read merged with
+ * the loose files. Loose files override packed lines; an empty one stands for
+ * a branch that was deleted while it is still packed. Updates only ever write
+ * loose files, and once there are more than refs.maxLoose of them (or when gc
+ * runs) they are folded into a new packed-refs. Tens of thousands of
+ * branches therefore cost neither a huge directory nor a rewrite of
+ * packed-refs per command.
+ *
+ * HEAD (.gitlet/HEAD, the id of the checked out commit) and BRANCH
+ * (.gitlet/BRANCH, the name of the checked out branch) are plain files.
+ * Older repositories kept the latter in .gitlet/branches/current, which made
+ * "current" unusable as a branch name; it is moved on first use.
+ *
+ * Every change of a branch or of HEAD is appended to its reflog,
+ * .gitlet/logs/branches/NAME or .gitlet/logs/HEAD, as an "OLD NEW TIME
+ * MESSAGE" line (TIME in milliseconds since the epoch, a zero id for no
+ * commit). A branch's reflog is deleted along with the branch.
+ *
+ * Changes are grouped in an Update, which Transaction commits right after its
+ * objects. An update that touches more than one file is written to
+ * .gitlet/refs.journal first; should the process die before every file is in
+ * place, the next command to open the refs finishes the update from the
+ * journal, so no command ever sees half of it.
+ *
+ *  @author Adrian Serbanescu
+ */
+class RefStore {
+    /** Name of the packed branches file inside the .gitlet directory. */
+    static final String PACKED_FILE = "packed-refs";
+    /** Name of the file holding the checked out branch. */
+    static final String BRANCH_FILE = "BRANCH";
+    /** Name of the journal of an update in progress. */
+    static final String JOURNAL_FILE = "refs.journal";
+
+    private static final String HEADER = "# gitlet packed-refs";
+    /** The id logged for a branch that doesn't exist (yet, or anymore). */
+    private static final String NONE = "0".repeat(UID_LENGTH);
+    /** How much of packed-refs a step of the binary search reads. */
+    private static final int WINDOW = 256;
+
+    /** Stores that have been opened in this process, by .gitlet
+     *  directory. */
+    private static final Map<File, RefStore> OPEN = new HashMap<>();
+
+    private final File branches;
+    private final File packed;
+    private final File head;
+    private final File branch;
+    private final File logs;
+    private final File journal;
+    private final int maxLoose;
+
+    private RefStore(File gitletDir) {
+        branches = join(gitletDir, "branches");
+        packed = join(gitletDir, PACKED_FILE);
+        head = join(gitletDir, "HEAD");
+        branch = join(gitletDir, BRANCH_FILE);
+        logs = join(gitletDir, "logs");
+        journal = join(gitletDir, JOURNAL_FILE);
+        maxLoose = Config.load(gitletDir).getInt("refs.maxLoose", 256);
+    }
+
+    /** The refs of the repository in GITLETDIR. */
+    static RefStore of(File gitletDir) {
+        File key = gitletDir.getAbsoluteFile();
+        synchronized (OPEN) {
+            RefStore refs = OPEN.get(key);
+            if (refs == null) {
+                refs = new RefStore(gitletDir);
+                refs.recover();
+                OPEN.put(key, refs);
+            }
+            return refs;
+        }
+    }
+
+    /** The refs of the repository in the current working directory. */
+    static RefStore local() {
+        return of(Repository.GITLET_DIR);
+    }
+
+    /**
+     * Returns true if NAME can be used as a branch name: slash separated
+     * parts, none of them empty, "." or "..", none starting with the tmp-
+     * prefix of files being written, and no white space or control
+     * characters anywhere.
+     */
+    static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (String part : name.split("/", -1)) {
+            if (part.isEmpty() || part.equals(".") || part.equals("..")
+                    || part.startsWith("tmp-")) {
+                return false;
+            }
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isWhitespace(c) || Character.isISOControl(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns true if branches A and B can't both exist because one of
+     *  them would have to be a directory of the other. */
+    static boolean clash(String a, String b) {
+        return a.startsWith(b + "/") || b.startsWith(a + "/");
+    }
+
+    /** The id of the commit HEAD points at. */
+    String head() {
+        return readContentsAsString(head);
+    }
+
+    /** The name of the checked out branch. */
+    String current() {
+        return readContentsAsString(branch);
+    }
+
+    /** The head commit of branch NAME, or null if there is no such
+     *  branch or NAME is not a valid name. */
+    String get(String name) {
+        if (!isValidName(name)) {
+            return null;
+        }
+        File loose = join(branches, name);
+        if (loose.isFile()) {
+            String id = readContentsAsString(loose);
+            return id.isEmpty() ? null : id;
+        }
+        return findPacked(name);
+    }
+
+    /**
+     * Returns an existing branch that clashes with NAME, or null if there is
+     * none: one whose name is a directory of NAME, or one inside NAME taken
+     * as a directory. Such a pair could not be stored as loose files.
+     */
+    String conflicting(String name) {
+        for (int slash = name.indexOf('/'); slash >= 0;
+             slash = name.indexOf('/', slash + 1)) {
+            String prefix = name.substring(0, slash);
+            if (get(prefix) != null) {
+                return prefix;
+            }
+        }
+        String under = name + "/";
+        SortedMap<String, String> loose = new TreeMap<>();
+        readLoose(join(branches, name), under, loose);
+        if (!loose.isEmpty()) {
+            return loose.firstKey();
+        }
+        for (String[] line = ceilingPacked(under);
+             line != null && line[1].startsWith(under);
+             line = ceilingPacked(line[1] + "\0")) {
+            if (get(line[1]) != null) {
+                return line[1];
+            }
+        }
+        return null;
+    }
+
+    /** Every branch with its head commit, sorted by name. */
+    SortedMap<String, String> all() {
+        SortedMap<String, String> refs = new TreeMap<>();
+        readPacked(refs);
+        readLoose(branches, "", refs);
+        return refs;
+    }
+
+    /** The reflog of branch NAME (or of HEAD, for "HEAD"), oldest entry
+     *  first, as OLD NEW TIME MESSAGE arrays. Empty if there is none. */
+    List<String[]> reflog(String name) {
+        List<String[]> entries = new ArrayList<>();
+        if (!name.equals("HEAD") && !isValidName(name)) {
+            return entries;
+        }
+        File log = logFile(name);
+        if (!log.isFile()) {
+            return entries;
+        }
+        for (String line : readContentsAsString(log).split("\n")) {
+            if (!line.isEmpty()) {
+                entries.add(line.split(" ", 4));
+            }
+        }
+        return entries;
+    }
+
+    /** Starts a group of changes, see Transaction.refs(). */
+    Update begin() {
+        return new Update();
+    }
+
+    /** Changes of branches, HEAD and BRANCH that become visible together. */
+    class Update {
+        /** New head per branch, in order of change; null deletes it. */
+        private final Map<String, String> heads = new LinkedHashMap<>();
+        private final Map<String, String> messages = new HashMap<>();
+        private String newHead;
+        private String headMessage;
+        private String newBranch;
+
+        /** Points branch NAME at commit ID, logging MESSAGE. */
+        void set(String name, String id, String message) {
+            heads.put(name, id);
+            messages.put(name, message);
+        }
+
+        /** Deletes branch NAME along with its reflog. */
+        void delete(String name) {
+            heads.put(name, null);
+        }
+
+        /** Points HEAD at commit ID, logging MESSAGE. */
+        void head(String id, String message) {
+            newHead = id;
+            headMessage = message;
+        }
+
+        /** Makes NAME the checked out branch. */
+        void checkout(String name) {
+            newBranch = name;
+        }
+
+        boolean isEmpty() {
+            return heads.isEmpty() && newHead == null && newBranch == null;
+        }
+
+        /** Makes every change visible, syncing as DURABILITY asks. */
+        void commit(Transaction.Durability durability) {
+            if (isEmpty()) {
+                return;
+            }
+            for (Map.Entry<String, String> e : heads.entrySet()) {
+                if (e.getValue() != null && isBlocked(e.getKey())) {
+                    pack(durability);
+                    break;
+                }
+            }
+            int files = heads.size() + (newHead == null ? 0 : 1)
+                    + (newBranch == null ? 0 : 1);
+            if (files > 1) {
+                Transaction.publish(durability, List.of(Transaction.stage(
+                        durability, journal, journalText())));
+            }
+            apply(durability, true);
+            journal.delete();
+            if (!heads.isEmpty() && countLoose(branches) > maxLoose) {
+                pack(durability);
+            }
+        }
+
+        private String journalText() {
+            StringBuilder text = new StringBuilder();
+            if (newHead != null) {
+                text.append("head ").append(newHead).append('\n');
+            }
+            if (newBranch != null) {
+                text.append("checkout ").append(newBranch).append('\n');
+            }
+            for (Map.Entry<String, String> e : heads.entrySet()) {
+                if (e.getValue() == null) {
+                    text.append("delete ").append(e.getKey()).append('\n');
+                } else {
+                    text.append("set ").append(e.getValue()).append(' ')
+                            .append(e.getKey()).append('\n');
+                }
+            }
+            return text.toString();
+        }
+
+        /** Writes every file of this update, appending to the reflogs if
+         *  LOG. */
+        private void apply(Transaction.Durability durability, boolean log) {
+            Map<String, String> before = new HashMap<>();
+            List<Transaction.Pending> batch = new ArrayList<>();
+            List<File> unlink = new ArrayList<>();
+            for (Map.Entry<String, String> e : heads.entrySet()) {
+                String name = e.getKey();
+                before.put(name, get(name));
+                File loose = join(branches, name);
+                if (e.getValue() != null) {
+                    batch.add(Transaction.stage(durability, loose,
+                            e.getValue()));
+                } else if (findPacked(name) != null) {
+                    batch.add(Transaction.stage(durability, loose, ""));
+                } else {
+                    unlink.add(loose);
+                }
+            }
+            String oldHead = head.isFile() ? RefStore.this.head() : null;
+            if (newHead != null) {
+                batch.add(Transaction.stage(durability, head, newHead));
+            }
+            if (newBranch != null) {
+                batch.add(Transaction.stage(durability, branch, newBranch));
+            }
+            Transaction.publish(durability, batch);
+            for (File loose : unlink) {
+                loose.delete();
+                deleteEmptyDirs(loose.getParentFile(), branches);
+            }
+            if (!log) {
+                return;
+            }
+            for (Map.Entry<String, String> e : heads.entrySet()) {
+                String name = e.getKey();
+                if (e.getValue() == null) {
+                    logFile(name).delete();
+                    deleteEmptyDirs(logFile(name).getParentFile(), logs);
+                } else {
+                    appendLog(name, before.get(name), e.getValue(),
+                            messages.get(name), durability);
+                }
+            }
+            if (newHead != null) {
+                appendLog("HEAD", oldHead, newHead, headMessage, durability);
+            }
+        }
+    }
+
+    /**
+     * Returns true if what is left of deleted branches in the loose files
+     * stands where branch NAME has to go: the empty file of a deleted branch
+     * above it, or a directory of them at its place. Packing clears both.
+     */
+    private boolean isBlocked(String name) {
+        File loose = join(branches, name);
+        if (loose.isDirectory()) {
+            return true;
+        }
+        for (File dir = loose.getParentFile(); !dir.equals(branches);
+             dir = dir.getParentFile()) {
+            if (dir.isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** The number of branches kept in loose files. */
+    int looseCount() {
+        return countLoose(branches);
+    }
+
+    /**
+     * Writes every branch into a new packed-refs and removes the loose
+     * files. Returns the number of branches packed.
+     */
+    int pack(Transaction.Durability durability) {
+        SortedMap<String, String> refs = all();
+        StringBuilder text = new StringBuilder(HEADER).append('\n');
+        for (Map.Entry<String, String> e : refs.entrySet()) {
+            text.append(e.getValue()).append(' ').append(e.getKey())
+                    .append('\n');
+        }
+        Transaction.publish(durability, List.of(
+                Transaction.stage(durability, packed, text.toString())));
+        removeLoose(branches);
+        return refs.size();
+    }
+
+    /** Finishes an update a crash interrupted and moves the checked out
+     *  branch of an old repository to BRANCH. */
+    private void recover() {
+        Transaction.Durability durability =
+                Transaction.Durability.configured();
+        File legacy = join(branches, "current");
+        if (!branch.exists() && legacy.isFile()) {
+            Transaction.publish(durability, List.of(Transaction.stage(
+                    durability, branch, readContentsAsString(legacy))));
+            legacy.delete();
+        }
+        if (!journal.isFile()) {
+            return;
+        }
+        Update update = new Update();
+        for (String line : readContentsAsString(journal).split("\n")) {
+            String[] fields = line.split(" ", 3);
+            switch (fields[0]) {
+                case "head":
+                    update.head(fields[1], null);
+                    break;
+                case "checkout":
+                    update.checkout(fields[1]);
+                    break;
+                case "delete":
+                    update.delete(fields[1]);
+                    break;
+                case "set":
+                    update.set(fields[2], fields[1], null);
+                    break;
+                default:
+                    break;
+            }
+        }
+        update.apply(durability, false);
+        journal.delete();
+    }
+
+    private File logFile(String name) {
+        return name.equals("HEAD") ? join(logs, "HEAD")
+                : join(logs, "branches", name);
+    }
+
+    private void appendLog(String name, String from, String to,
+                           String message, Transaction.Durability durability) {
+        File log = logFile(name);
+        log.getParentFile().mkdirs();
+        String line = (from == null ? NONE : from) + " " + to + " "
+                + System.currentTimeMillis() + " " + message + "\n";
+        try (FileOutputStream out = new FileOutputStream(log, true)) {
+            out.write(line.getBytes(StandardCharsets.UTF_8));
+            if (durability == Transaction.Durability.STRICT) {
+                out.getChannel().force(true);
+            }
+        } catch (IOException excp) {
+            throw error("Cannot write reflog of %s: %s", name,
+                    excp.getMessage());
+        }
+    }
+
+    /** Adds the loose branches under DIR, named PREFIX plus their path, to
+     *  REFS, and removes the ones deleted. */
+    private static void readLoose(File dir, String prefix,
+                                  Map<String, String> refs) {
+        List<String> names = fileNamesIn(dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = join(dir, name);
+            if (file.isDirectory()) {
+                readLoose(file, prefix + name + "/", refs);
+            } else if (!name.startsWith("tmp-")) {
+                String id = readContentsAsString(file);
+                if (id.isEmpty()) {
+                    refs.remove(prefix + name);
+                } else {
+                    refs.put(prefix + name, id);
+                }
+            }
+        }
+    }
+
+    private static int countLoose(File dir) {
+        List<String> names = fileNamesIn(dir);
+        int count = 0;
+        for (String name : names == null ? Collections.<String>emptyList()
+                : names) {
+            File file = join(dir, name);
+            count += file.isDirectory() ? countLoose(file) : 1;
+        }
+        return count;
+    }
+
+    /** Deletes every loose branch under DIR, and DIR too once empty unless
+     *  it is the branches directory itself. */
+    private void removeLoose(File dir) {
+        List<String> names = fileNamesIn(dir);
+        if (names == null) {
+            return;
+        }
+        for (String name : names) {
+            File file = join(dir, name);
+            if (file.isDirectory()) {
+                removeLoose(file);
+            } else if (!name.startsWith("tmp-")) {
+                file.delete();
+            }
+        }
+        if (!dir.equals(branches)) {
+            dir.delete();
+        }
+    }
+
+    /** Deletes DIR and its parents up to (but not including) TOP for as
+     *  long as they are empty. */
+    private static void deleteEmptyDirs(File dir, File top) {
+        while (dir != null && !dir.equals(top) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+
+    /** Adds every line of packed-refs to REFS. */
+    private void readPacked(Map<String, String> refs) {
+        if (!packed.isFile()) {
+            return;
+        }
+        try (BufferedReader in = Files.newBufferedReader(packed.toPath(),
+                StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(in.readLine())) {
+                throw error("Corrupt %s", PACKED_FILE);
+            }
+            for (String line = in.readLine(); line != null;
+                 line = in.readLine()) {
+                checkLine(line);
+                refs.put(line.substring(UID_LENGTH + 1),
+                        line.substring(0, UID_LENGTH));
+            }
+        } catch (IOException excp) {
+            throw error("Cannot read %s: %s", PACKED_FILE, excp.getMessage());
+        }
+    }
+
+    /** Binary searches packed-refs for branch NAME and returns its head, or
+     *  null if it isn't packed. */
+    private String findPacked(String name) {
+        String[] line = ceilingPacked(name);
+        return line != null && line[1].equals(name) ? line[0] : null;
+    }
+
+    /** Binary searches packed-refs for the first branch named NAME or sorted
+     *  after it, and returns its head and name, or null if there is none. */
+    private String[] ceilingPacked(String name) {
+        if (!packed.isFile()) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(packed.toPath(),
+                StandardOpenOption.READ)) {
+            long lo = HEADER.length() + 1;
+            long hi = ch.size();
+            String[] after = null;
+            /* The line of NAME, if there is one, starts in [lo, hi); AFTER
+             * is the line starting at HI. */
+            while (lo < hi) {
+                long[] bounds = new long[2];
+                String line = lineAt(ch, lo + (hi - lo) / 2, lo, bounds);
+                checkLine(line);
+                String[] fields = {line.substring(0, UID_LENGTH),
+                    line.substring(UID_LENGTH + 1)};
+                int cmp = fields[1].compareTo(name);
+                if (cmp == 0) {
+                    return fields;
+                } else if (cmp < 0) {
+                    lo = bounds[1] + 1;
+                } else {
+                    after = fields;
+                    hi = bounds[0];
+                }
+            }
+            return after;
+        } catch (IOException excp) {
+            throw error("Cannot read %s: %s", PACKED_FILE, excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the line of CH that byte POS is part of, not looking back
+     * further than FLOOR, which is the start of a line. Stores the offsets
+     * of its first byte and of its newline in BOUNDS.
+     */
+    private static String lineAt(FileChannel ch, long pos, long floor,
+                                 long[] bounds) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(WINDOW);
+        long start = pos;
+        search:
+        while (start > floor) {
+            long from = Math.max(floor, start - WINDOW);
+            buf.clear().limit((int) (start - from));
+            while (buf.hasRemaining()) {
+                if (ch.read(buf, from + buf.position()) < 0) {
+                    throw error("Corrupt %s", PACKED_FILE);
+                }
+            }
+            for (int i = buf.limit() - 1; i >= 0; i--) {
+                if (buf.get(i) == '\n') {
+                    start = from + i + 1;
+                    break search;
+                }
+            }
+            start = from;
+        }
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long at = start;
+        while (true) {
+            buf.clear();
+            int n = ch.read(buf, at);
+            if (n <= 0) {
+                throw error("Corrupt %s", PACKED_FILE);
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    line.write(buf.array(), 0, i);
+                    bounds[0] = start;
+                    bounds[1] = at + i;
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+            }
+            line.write(buf.array(), 0, n);
+            at += n;
+        }
+    }
+
+    private static void checkLine(String line) {
+        if (line.length() < UID_LENGTH + 2 || line.charAt(UID_LENGTH) != ' ') {
+            throw error("Corrupt %s", PACKED_FILE);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * Remotes are other gitlet repositories on the local file system, registered
+ * in the config as remote.[name].path = [path to its .gitlet directory].
+ *
+ * fetch and push negotiate by walking the commit graph of the sending side
+ * from the branch head down to the first commits the receiving side already
+ * has (see Pack.missing), then move exactly those commits and the blobs they
+ * need in one pack. The remote repository is locked like any other: shared
+ * while we fetch from it, exclusive while we push into it.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Remote {
+
+    /** Name of the remote clone registers for the repository it clones. */
+    static final String ORIGIN = "origin";
+
+    static String key(String name) {
+        return "remote." + name + ".path";
+    }
+
+    /** Returns the .gitlet directory of remote NAME, or null if there is no
+     *  such remote. */
+    static File dir(String name) {
+        String path = Config.local().get(key(name));
+        return path == null ? null : new File(path);
+    }
+
+    static void add(String name, String path) {
+        if (dir(name) != null) {
+            System.out.println("A remote with that name already exists.");
+            System.exit(0);
+        }
+        Config.local().set(key(name), path.replace("/", File.separator));
+    }
+
+    static void remove(String name) {
+        if (dir(name) == null) {
+            System.out.println("A remote with that name does not exist.");
+            System.exit(0);
+        }
+        Config.local().set(key(name), null);
+    }
+
+    /**
+     * Copies the missing history of BRANCH in remote NAME into this repository
+     * and points the local branch [NAME]/[BRANCH] at its head.
+     */
+    static void fetch(String name, String branch) {
+        File remote = existingDir(name);
+        try (RepoLock lock = RepoLock.shared(remote)) {
+            String head = RefStore.of(remote).get(branch);
+            if (head == null) {
+                System.out.println("That remote does not have that branch.");
+                System.exit(0);
+            }
+            String other = RefStore.local().conflicting(name + "/" + branch);
+            if (other != null) {
+                System.out.println("Branch " + other + " is in the way of "
+                        + name + "/" + branch + ".");
+                System.exit(0);
+            }
+            transfer(remote, Repository.GITLET_DIR, head);
+            try (Transaction tx = new Transaction()) {
+                tx.refs().set(name + "/" + branch, head,
+                        "fetch: " + name + " " + branch);
+                tx.commit();
+            }
+        }
+    }
+
+    /**
+     * Appends the local history missing from BRANCH in remote NAME to it, as
+     * long as that branch's head is part of our history, and moves the remote
+     * branch (and the remote HEAD, if BRANCH is its current branch) to our
+     * head.
+     *
+     * Only refs move: the index and the working directory of the remote are
+     * left as they are, even when BRANCH is checked out there. Its status
+     * then shows the pushed changes as undone in its working directory, and
+     * reset to the new head (or checking out the pushed files) brings the
+     * working directory up to date.
+     */
+    static void push(String name, String branch) {
+        File remote = existingDir(name);
+        String head = Repository.headId();
+        try (RepoLock lock = RepoLock.exclusive(remote)) {
+            RefStore refs = RefStore.of(remote);
+            String remoteHead = refs.get(branch);
+            if (remoteHead != null
+                    && !Repository.isAncestor(remoteHead, head)) {
+                System.out.println("Please pull down remote changes"
+                        + " before pushing.");
+                System.exit(0);
+            }
+            transfer(Repository.GITLET_DIR, remote, head);
+            try (Transaction tx = new Transaction(remote,
+                    Transaction.Durability.configured())) {
+                tx.refs().set(branch, head, "push");
+                if (refs.current().equals(branch)) {
+                    tx.refs().head(head, "push");
+                }
+                tx.commit();
+            }
+        }
+    }
+
+    /** Sends everything reachable from HEAD in FROM that TO is missing as a
+     *  single pack. */
+    private static void transfer(File from, File to, String head) {
+        Pack.Delta delta;
+        try {
+            delta = Pack.missing(from, to, head);
+        } catch (Pack.Refused excp) {
+            refuse(excp);
+            return;
+        }
+        transfer(from, to, delta);
+    }
+
+    /** Prints why the transfer was REFUSED and exits. */
+    private static void refuse(Pack.Refused refused) {
+        System.out.println(refused.getMessage());
+        System.exit(0);
+    }
+
+    /**
+     * Sends the objects of DELTA from FROM to TO as a single pack. Commits
+     * sent without their parents go on the shallow boundary of TO before
+     * the pack's objects become visible, so TO never has a commit whose
+     * missing parents it would look for; commits of the boundary whose
+     * parents came with the pack leave it after. A pack TO refuses (see
+     * Pack) leaves TO as it was and ends the command with the reason.
+     */
+    static void transfer(File from, File to, Pack.Delta delta) {
+        if (delta.isEmpty()) {
+            return;
+        }
+        File pack = null;
+        Pack.Refused refused = null;
+        try {
+            pack = File.createTempFile("incoming-", ".pack", to);
+            try (OutputStream out = new FileOutputStream(pack)) {
+                Pack.write(from, delta, out);
+            }
+            try (InputStream in = new FileInputStream(pack)) {
+                Pack.read(in, to, delta.shallow);
+            }
+            Shallow.deepen(to);
+        } catch (Pack.Refused excp) {
+            refused = excp;
+        } catch (IOException excp) {
+            throw error("Cannot transfer objects: %s", excp.getMessage());
+        } finally {
+            if (pack != null) {
+                pack.delete();
+            }
+        }
+        if (refused != null) {
+            refuse(refused);
+        }
+    }
+
+    private static File existingDir(String name) {
+        File remote = dir(name);
+        if (remote == null) {
+            System.out.println("A remote with that name does not exist.");
+            System.exit(0);
+        }
+        if (!remote.isDirectory()) {
+            System.out.println("Remote directory not found.");
+            System.exit(0);
+        }
+        return remote;
+    }
+}
@@ -0,0 +1,233 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds files that were renamed (or copied) between two file maps.
+ *
+ * Pairs with the same blob id are matched first. What is left is compared
+ * by similarity: every blob gets a MinHash sketch of its line shingles (each
+ * pair of consecutive lines), and the fraction of equal minima of two
+ * sketches estimates how similar the two files are. Candidate pairs come
+ * from locality sensitive hashing of the sketches (bands of BAND_ROWS
+ * minima), so only pairs that share at least one band are ever compared,
+ * never every source against every target. Pairs at or above the threshold
+ * are matched best score first.
+ *
+ *  @author Adrian Serbanescu
+ */
+class RenameDetector {
+    /** Similarity, in percent, above which two files are the same file;
+     *  diff.renameThreshold overrides it. */
+    static final int DEFAULT_THRESHOLD = 50;
+
+    private static final int HASHES = 64;
+    private static final int BAND_ROWS = 2;
+    private static final long[] SEEDS = new long[HASHES];
+
+    static {
+        long x = 0x9e3779b97f4a7c15L;
+        for (int i = 0; i < HASHES; i++) {
+            x += 0x9e3779b97f4a7c15L;
+            SEEDS[i] = mix(x);
+        }
+    }
+
+    /** A file of the old map (SOURCE) found again in the new one as
+     *  TARGET, SCORE percent similar. */
+    static class Match {
+        final String source;
+        final String target;
+        final int score;
+
+        Match(String source, String target, int score) {
+            this.source = source;
+            this.target = target;
+            this.score = score;
+        }
+    }
+
+    private final int threshold;
+    private final Map<String, long[]> sketches = new HashMap<>();
+
+    RenameDetector(int threshold) {
+        this.threshold = threshold;
+    }
+
+    /** A detector using the threshold of the local repository. */
+    static RenameDetector configured() {
+        return new RenameDetector(Config.local()
+                .getInt("diff.renameThreshold", DEFAULT_THRESHOLD));
+    }
+
+    /**
+     * Pairs files that disappeared (SOURCES, name to blob id) with files
+     * that appeared (TARGETS). Each file is in at most one pair.
+     */
+    List<Match> renames(Map<String, String> sources,
+                        Map<String, String> targets) {
+        return match(sources, targets, true);
+    }
+
+    /** Like renames(), but a source may be the origin of several targets,
+     *  as the sources of a copy are still there. */
+    List<Match> copies(Map<String, String> sources,
+                       Map<String, String> targets) {
+        return match(sources, targets, false);
+    }
+
+    private List<Match> match(Map<String, String> sources,
+                              Map<String, String> targets, boolean exclusive) {
+        List<Match> result = new ArrayList<>();
+        Set<String> usedSources = new HashSet<>();
+        Set<String> usedTargets = new HashSet<>();
+
+        Map<String, List<String>> byBlob = new HashMap<>();
+        for (Map.Entry<String, String> e : sources.entrySet()) {
+            byBlob.computeIfAbsent(e.getValue(), k -> new ArrayList<>())
+                    .add(e.getKey());
+        }
+        for (String target : new TreeSet<>(targets.keySet())) {
+            List<String> same = byBlob.get(targets.get(target));
+            if (same == null) {
+                continue;
+            }
+            for (String source : same) {
+                if (!exclusive || !usedSources.contains(source)) {
+                    result.add(new Match(source, target, 100));
+                    usedSources.add(source);
+                    usedTargets.add(target);
+                    break;
+                }
+            }
+        }
+        if (threshold > 100) {
+            return result;
+        }
+
+        /* Bucket the remaining sources by band, then look targets up. */
+        Map<Long, List<String>> buckets = new HashMap<>();
+        for (Map.Entry<String, String> e : sources.entrySet()) {
+            if (exclusive && usedSources.contains(e.getKey())) {
+                continue;
+            }
+            long[] sketch = sketch(e.getValue());
+            for (int band = 0; sketch != null && band < HASHES / BAND_ROWS;
+                 band++) {
+                buckets.computeIfAbsent(bandKey(sketch, band),
+                        k -> new ArrayList<>()).add(e.getKey());
+            }
+        }
+        List<Match> candidates = new ArrayList<>();
+        for (Map.Entry<String, String> e : targets.entrySet()) {
+            if (usedTargets.contains(e.getKey())) {
+                continue;
+            }
+            long[] sketch = sketch(e.getValue());
+            Set<String> compared = new HashSet<>();
+            for (int band = 0; sketch != null && band < HASHES / BAND_ROWS;
+                 band++) {
+                List<String> bucket = buckets.get(bandKey(sketch, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (String source : bucket) {
+                    if (compared.add(source)) {
+                        int score = similarity(sketch,
+                                sketch(sources.get(source)));
+                        if (score >= threshold) {
+                            candidates.add(
+                                    new Match(source, e.getKey(), score));
+                        }
+                    }
+                }
+            }
+        }
+        candidates.sort((a, b) -> a.score != b.score ? b.score - a.score
+                : a.target.compareTo(b.target));
+        for (Match m : candidates) {
+            if (usedTargets.contains(m.target)
+                    || (exclusive && usedSources.contains(m.source))) {
+                continue;
+            }
+            usedTargets.add(m.target);
+            usedSources.add(m.source);
+            result.add(m);
+        }
+        return result;
+    }
+
+    /** Percentage of equal minima of two sketches. */
+    private static int similarity(long[] a, long[] b) {
+        int same = 0;
+        for (int i = 0; i < HASHES; i++) {
+            same += a[i] == b[i] ? 1 : 0;
+        }
+        return same * 100 / HASHES;
+    }
+
+    private static long bandKey(long[] sketch, int band) {
+        long key = band;
+        for (int i = band * BAND_ROWS; i < (band + 1) * BAND_ROWS; i++) {
+            key = mix(key * 31 + sketch[i]);
+        }
+        return key;
+    }
+
+    /** The MinHash sketch of blob SHA, or null for an empty blob. */
+    private long[] sketch(String sha) {
+        if (sketches.containsKey(sha)) {
+            return sketches.get(sha);
+        }
+        long[] mins = new long[HASHES];
+        Arrays.fill(mins, Long.MAX_VALUE);
+        int lines = 0;
+        long previous = 0;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                Blobs.open(Repository.GITLET_DIR, sha),
+                StandardCharsets.UTF_8))) {
+            for (String line = in.readLine(); line != null;
+                 line = in.readLine()) {
+                long h = mix(line.hashCode() + 0x632be59bd9b4e019L);
+                if (lines > 0) {
+                    addShingle(mins, mix(previous * 31 + h));
+                }
+                previous = h;
+                lines++;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (lines == 1) {
+            /* Too short for a pair of lines, the line is the shingle. */
+            addShingle(mins, previous);
+        }
+        long[] sketch = lines > 0 ? mins : null;
+        sketches.put(sha, sketch);
+        return sketch;
+    }
+
+    private static void addShingle(long[] mins, long shingle) {
+        for (int i = 0; i < HASHES; i++) {
+            mins[i] = Math.min(mins[i], mix(shingle ^ SEEDS[i]));
+        }
+    }
+
+    /** The splitmix64 finalizer. */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+import static gitlet.Utils.*;
+
+/**
+ * Repository wide lock used to keep several gitlet processes from doing
+ * read-modify-write on INDEX, HEAD and the branch files at the same time.
+ *
+ * The lock is an OS level lock taken with FileChannel.lock on .gitlet/lock.
+ * Commands that only read the repository take it shared so any number of them
+ * can run together, everything else takes it exclusive. Loose objects are
+ * written with create-new plus rename, so they don't need this lock at all,
+ * and the object log has its own lock for appending; commands that only add
+ * objects (merge-tree) take it shared as well. An object is named by the
+ * hash of everything in it (a blob by its contents, a commit by its files,
+ * parents, author, date and message), so one that exists already is the
+ * same object and two writers of it can't get in each other's way.
+ *
+ * Maintenance never waits for the lock: it asks with tryExclusive() and, when
+ * a command holds it, tries again later, so a command never queues up
+ * behind background work.
+ *
+ * The OS drops the lock when the process dies, so a System.exit in the middle
+ * of a command never leaves the repository locked.
+ *
+ *  @author Adrian Serbanescu
+ */
+class RepoLock implements AutoCloseable {
+    /** Name of the lock file inside the .gitlet directory. */
+    static final String LOCK_FILE = "lock";
+
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private RepoLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /** Locks LOCKFILE, shared if SHARED. Blocks until the lock is held
+     *  if WAIT, returns null if it is taken otherwise. */
+    static RepoLock lock(File lockFile, boolean shared, boolean wait) {
+        try {
+            FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            FileLock lock = wait
+                    ? channel.lock(0, Long.MAX_VALUE, shared)
+                    : channel.tryLock(0, Long.MAX_VALUE, shared);
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            return new RepoLock(channel, lock);
+        } catch (IOException excp) {
+            throw error("Cannot lock repository: %s", excp.getMessage());
+        }
+    }
+
+    /** Blocks until a shared (read) lock on the repository in GITLETDIR is
+     *  held. */
+    static RepoLock shared(File gitletDir) {
+        return lock(join(gitletDir, LOCK_FILE), true, true);
+    }
+
+    /** Blocks until an exclusive (write) lock on the repository in GITLETDIR
+     *  is held. */
+    static RepoLock exclusive(File gitletDir) {
+        return lock(join(gitletDir, LOCK_FILE), false, true);
+    }
+
+    /** Takes an exclusive lock on the repository in GITLETDIR if no one
+     *  holds the lock right now; returns null otherwise. */
+    static RepoLock tryExclusive(File gitletDir) {
+        return lock(join(gitletDir, LOCK_FILE), false, false);
+    }
+
+    @Override
+    public void close() {
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException excp) {
+            throw error("Cannot unlock repository: %s", excp.getMessage());
+        }
+    }
+}
@@ -1,7 +1,16 @@
 package gitlet;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.Serializable;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
 import java.util.*;
 
 import static gitlet.Utils.*;
@@ -15,21 +24,20 @@ import static gitlet.Utils.*;
  *  @author Adrian Serbanescu
  */
 public class Repository {
+    /** Author of new commits when user.name isn't set. */
     private static final String AUTHOR = "Adrian Serbanescu";
     /** The current working directory. */
     public static final File CWD = new File(System.getProperty("user.dir"));
     /** The .gitlet directory. */
     public static final File GITLET_DIR = join(CWD, ".gitlet");
-    /** The branches directory saves the heads of each branch we create. */
-    public static final File BRANCHES = join(GITLET_DIR, "branches");
-    /** This dir persists each commit object. */
-    public static final File COMMITS = join(GITLET_DIR, "commits");
-    /** This dir persists all versions of the repository's files. */
-    public static final File FILES = join(GITLET_DIR, "files");
-    /** This file keeps track of which commit is currently active. */
-    private static final File HEAD = join(GITLET_DIR, "HEAD");
-    private static final File ACTIVE_BRANCH = join(BRANCHES, "current");
     private static final File STAGING_AREA = join(GITLET_DIR, "INDEX");
+    /**
+     * Every commit lookup goes through this cache. A commit weighs one unit
+     * per tracked file, core.commitCacheSize caps the total.
+     */
+    static final ObjectCache<String, Commit> COMMIT_CACHE = new ObjectCache<>(
+            Config.local().getLong("core.commitCacheSize", 1 << 20),
+            c -> 1 + c.getFiles().size());
 
     /**
      * Helper class for staging. This class is in this state because I hurried
@@ -38,12 +46,22 @@ public class Repository {
      * constraints for finishing this project I decided to leave it as it is.
      *
      * Perhaps I should experiment with singleton Class!!!
+     *
+     * The map goes from file name to the id of the blob staged for it (the
+     * blob is stored by add already), or to null for a staged removal. Older
+     * versions kept the contents themselves, see upgradeIndex().
      */
 
     public static class StagingArea implements Serializable {
+        private static final long serialVersionUID = -5007109976648135242L;
+        /** What the values of map are: blob ids when it is FORMAT, and
+         *  0 in an index written before the field was there. */
+        static final int FORMAT = 1;
         private HashMap<String, String> map;
+        private int format;
         public StagingArea() {
             map = new HashMap<>();
+            format = FORMAT;
         }
     }
 
@@ -61,25 +79,86 @@ public class Repository {
             System.exit(0);
         }
         GITLET_DIR.mkdir();
-        COMMITS.mkdir();
-        BRANCHES.mkdir();
-        FILES.mkdir();
         Commit initCommit = new Commit(
                 "initial commit",
-                AUTHOR,
+                author(),
                 null,
                 null,
                 new HashMap<>());
 
-        File newCommitDir = join(COMMITS, initCommit.getId().substring(0, 4));
-        newCommitDir.mkdir();
-        File newCommit = join(newCommitDir, initCommit.getId().substring(4));
-        File branch = join(BRANCHES, "master");
-        writeObject(newCommit, initCommit);
-        writeContents(branch, initCommit.getId());
-        writeContents(HEAD, initCommit.getId());
-        writeContents(ACTIVE_BRANCH, "master");
-        writeObject(STAGING_AREA, new StagingArea());
+        String message = "commit (initial): initial commit";
+        try (Transaction tx = new Transaction()) {
+            tx.writeObject(ObjectStore.Kind.COMMIT, initCommit.getId(),
+                    serialize(initCommit));
+            tx.refs().set("master", initCommit.getId(), message);
+            tx.refs().head(initCommit.getId(), message);
+            tx.refs().checkout("master");
+            tx.writeRef(STAGING_AREA, serialize(new StagingArea()));
+            tx.commit();
+        }
+        CommitGraph.append(GITLET_DIR, initCommit, new ArrayList<>());
+        CommitColumns.append(GITLET_DIR, initCommit);
+    }
+
+    /** The author of new commits: user.name, or AUTHOR. */
+    static String author() {
+        return Config.local().get("user.name", AUTHOR).trim();
+    }
+
+    /**
+     * The clone command: makes the current directory a clone of the
+     * repository whose .gitlet directory is at PATH, registered as remote
+     * origin. Copies the history of the current branch of that repository,
+     * only its DEPTH most recent commits (counted in parent steps) when DEPTH
+     * is positive, which leaves a shallow boundary (see Shallow) behind. With
+     * LAZYBLOBS only the blobs of the head commit are copied and the rest is
+     * fetched from origin when first needed (see LazyObjectStore). Then the
+     * branch is checked out under the same name, with origin/[branch]
+     * pointing at the same commit.
+     */
+    public static void clone(String path, int depth, boolean lazyBlobs) {
+        if (GITLET_DIR.exists()) {
+            System.out.println(
+                    "A Gitlet version-control system already"
+                            + "exists in the current directory.");
+            System.exit(0);
+        }
+        File origin = new File(path);
+        if (!join(origin, "HEAD").isFile()) {
+            System.out.println("Remote directory not found.");
+            System.exit(0);
+        }
+        GITLET_DIR.mkdir();
+        Config config = Config.local();
+        config.set(Remote.key(Remote.ORIGIN), path);
+        if (lazyBlobs) {
+            config.set(LazyObjectStore.CONFIG_KEY, Remote.ORIGIN);
+        }
+        String branch;
+        String head;
+        try (RepoLock lock = RepoLock.shared(origin)) {
+            RefStore refs = RefStore.of(origin);
+            branch = refs.current();
+            head = refs.head();
+            Remote.transfer(origin, GITLET_DIR,
+                    Pack.missing(origin, GITLET_DIR, head, depth, !lazyBlobs));
+        }
+        String message = "clone: from " + path;
+        try (Transaction tx = new Transaction()) {
+            tx.refs().set(branch, head, message);
+            if (!RefStore.clash(branch, Remote.ORIGIN + "/" + branch)) {
+                tx.refs().set(Remote.ORIGIN + "/" + branch, head, message);
+            }
+            tx.refs().head(head, message);
+            tx.refs().checkout(branch);
+            tx.writeRef(STAGING_AREA, serialize(new StagingArea()));
+            tx.commit();
+        }
+        FileMap files = checkOutCommit(head).getFiles();
+        Blobs.prefetch(GITLET_DIR, files.values());
+        for (Map.Entry<String, String> e : files.entrySet()) {
+            Blobs.copyTo(e.getValue(), join(CWD, e.getKey()));
+        }
     }
 
     /**
@@ -90,17 +169,17 @@ public class Repository {
      * restored.
      */
     public static void add(String fileName) {
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
+        StagingArea stagingArea = readStagingArea();
         List<String> currentFiles = plainFilenamesIn(CWD);
-        Commit currentCommit = checkOutCommit(readContentsAsString(HEAD));
-        HashMap<String, String> commitFiles =
+        Commit currentCommit = checkOutCommit(headId());
+        FileMap commitFiles =
                 currentCommit.getFiles();
 
         if (stagingArea.map.containsKey(fileName)
                 && stagingArea.map.get(fileName) == null) {
             stagingArea.map.remove(fileName);
             checkOutFileInCommit(currentCommit.getId(), fileName);
-            writeObject(STAGING_AREA, stagingArea);
+            saveStagingArea(stagingArea);
             System.exit(0);
         }
 
@@ -113,12 +192,63 @@ public class Repository {
         }
 
         File file = join(CWD, fileName);
-        String contents = readContentsAsString(file);
-        String sha1 = sha1(contents);
-        String commitedSHA = commitFiles.get(fileName);
-        if (!sha1.equals(commitedSHA)) {
-            stagingArea.map.put(fileName, contents);
-            writeObject(STAGING_AREA, stagingArea);
+        try (Transaction tx = new Transaction()) {
+            String sha1 = Blobs.store(file, tx);
+            String commitedSHA = commitFiles.get(fileName);
+            if (!sha1.equals(commitedSHA)) {
+                stagingArea.map.put(fileName, sha1);
+                tx.writeRef(STAGING_AREA, serialize(stagingArea));
+            }
+            tx.commit();
+        }
+    }
+
+    /**
+     * add . : stages every file of the working directory that differs from
+     * the head commit and isn't staged like that already, untracked files
+     * .gitletignore ignores aside, and stages the removal of tracked files
+     * that are gone (files left out by sparse checkout don't count as gone).
+     * The index is written once at the end.
+     */
+    public static void addAll() {
+        StagingArea stagingArea = readStagingArea();
+        FileMap commitFiles =
+                checkOutCommit(headId()).getFiles();
+        SparseCheckout sparse = SparseCheckout.local();
+        Set<String> present = new HashSet<>();
+        boolean changed = false;
+        try (Transaction tx = new Transaction()) {
+            for (String fileName : WorkTreeMonitor.files()) {
+                present.add(fileName);
+                if (!commitFiles.containsKey(fileName)
+                        && !stagingArea.map.containsKey(fileName)
+                        && UntrackedCache.isIgnored(fileName)) {
+                    continue;
+                }
+                String sha = WorkTreeMonitor.hash(fileName);
+                if (sha == null || sha.equals(stagingArea.map.get(fileName))) {
+                    continue;
+                }
+                if (sha.equals(commitFiles.get(fileName))) {
+                    changed |= stagingArea.map.containsKey(fileName);
+                    stagingArea.map.remove(fileName);
+                } else {
+                    stagingArea.map.put(fileName,
+                            Blobs.store(join(CWD, fileName), tx));
+                    changed = true;
+                }
+            }
+            for (String fileName : commitFiles.keySet()) {
+                if (!present.contains(fileName) && sparse.includes(fileName)
+                        && !stagingArea.map.containsKey(fileName)) {
+                    stagingArea.map.put(fileName, null);
+                    changed = true;
+                }
+            }
+            if (changed) {
+                tx.writeRef(STAGING_AREA, serialize(stagingArea));
+            }
+            tx.commit();
         }
     }
 
@@ -141,40 +271,50 @@ public class Repository {
     }
 
     private static void commit(String message, String mergedInCommitID) {
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
+        StagingArea stagingArea = readStagingArea();
         if (stagingArea.map.isEmpty()) {
             System.out.println("No changes added to the commit.");
             System.exit(0);
         }
-        Commit parentCommit = checkOutCommit(readContentsAsString(HEAD));
-        HashMap<String, String> newCommitFiles =  parentCommit.getFiles();
+        Commit parentCommit = checkOutCommit(headId());
+        HashMap<String, String> newCommitFiles =
+                new HashMap<>(parentCommit.getFiles());
+        List<String> removed = new ArrayList<>();
         for (Map.Entry<String, String> set : stagingArea.map.entrySet()) {
-            String contents = set.getValue();
+            String sha = set.getValue();
             String fileName = set.getKey();
-            if (contents == null) {
+            if (sha == null) {
                 newCommitFiles.remove(fileName);
-                restrictedDelete(join(CWD, fileName));
+                removed.add(fileName);
             } else {
-                String sha = sha1(contents);
-                File shaFile = join(FILES, sha);
-                writeContents(shaFile, contents);
                 newCommitFiles.put(fileName, sha);
             }
         }
         Commit newCommit = new Commit(
                 message,
-                AUTHOR,
+                author(),
                 parentCommit.getId(),
                 mergedInCommitID,
                 newCommitFiles
         );
-        File commit = createCommitFile(newCommit.getId());
-        File branch = join(BRANCHES, readContentsAsString(ACTIVE_BRANCH));
-        writeObject(commit, newCommit);
-        writeContents(branch, newCommit.getId());
-        writeContents(HEAD, newCommit.getId());
-        stagingArea.map.clear();
-        writeObject(STAGING_AREA, stagingArea);
+        try (Transaction tx = new Transaction()) {
+            String logMessage = (mergedInCommitID == null
+                    ? "commit: " : "commit (merge): ") + message;
+            tx.writeObject(ObjectStore.Kind.COMMIT, newCommit.getId(),
+                    serialize(newCommit));
+            tx.refs().set(RefStore.local().current(), newCommit.getId(),
+                    logMessage);
+            tx.refs().head(newCommit.getId(), logMessage);
+            List<String> changed = new ArrayList<>(stagingArea.map.keySet());
+            stagingArea.map.clear();
+            tx.writeRef(STAGING_AREA, serialize(stagingArea));
+            tx.commit();
+            CommitGraph.append(GITLET_DIR, newCommit, changed);
+            CommitColumns.append(GITLET_DIR, newCommit);
+        }
+        for (String fileName : removed) {
+            restrictedDelete(join(CWD, fileName));
+        }
     }
 
     /**
@@ -184,8 +324,8 @@ public class Repository {
      * removal will unstage it.
      */
     public static void rm(String fileName) {
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
-        Commit activeCommit = checkOutCommit(readContentsAsString(HEAD));
+        StagingArea stagingArea = readStagingArea();
+        Commit activeCommit = checkOutCommit(headId());
         boolean untracked = !activeCommit.getFiles().containsKey(fileName);
         if (untracked) { //check if file is untracked so that we don't rm it
             if (!stagingArea.map.containsKey(fileName)) {
@@ -193,47 +333,217 @@ public class Repository {
                 System.exit(0);
             } else { //should the file had been staged for addition remove it
                 stagingArea.map.remove(fileName);
-                writeObject(STAGING_AREA, stagingArea);
+                saveStagingArea(stagingArea);
             }
         } else {
             stagingArea.map.put(fileName, null);
+            saveStagingArea(stagingArea);
             restrictedDelete(join(CWD, fileName));
-            writeObject(STAGING_AREA, stagingArea);
         }
     }
 
    /**
-    * Iterates over the parents of a commit and prints each one.
-    * See print() method in Commit class.
+    * Iterates over the parents of a commit and prints each one FILTER lets
+    * through with PRINTER, which also decides the layout and how many are
+    * printed. See print() method in Commit class.
+    * With a filter, the commit columns tell which commits match, and those
+    * that don't are stepped over through the commit graph without being
+    * loaded.
     */
-    public static void log() {
-        Commit currentCommit = checkOutCommit(readContentsAsString(HEAD));
-        log(currentCommit);
+    public static void log(CommitPrinter printer, CommitFilter filter) {
+        Output.usePager();
+        CommitGraph graph = null;
+        CommitColumns columns = null;
+        Set<String> matching = null;
+        if (!filter.isEmpty()) {
+            graph = CommitGraph.load(GITLET_DIR);
+            columns = CommitColumns.load(GITLET_DIR);
+            matching = columns.matching(filter);
+        }
+        String id = headId();
+        while (id != null && !printer.done()) {
+            if (matching != null && !matching.contains(id)
+                    && columns.contains(id)) {
+                int pos = graph.position(id);
+                if (pos >= 0) {
+                    id = graph.parent(pos);
+                    continue;
+                }
+            }
+            Commit commit = checkOutCommit(id);
+            if (filter.matches(commit)) {
+                printer.print(commit);
+            }
+            id = commit.getParent();
+        }
+    }
+
+    /**
+     * Like log(), but only prints the commits that changed FILENAME compared
+     * to their first parent. Commits whose changed-path Bloom filter in the
+     * commit graph rules FILENAME out are skipped without being loaded.
+     */
+    public static void log(String fileName, CommitPrinter printer,
+                           CommitFilter filter) {
+        Output.usePager();
+        CommitGraph graph = CommitGraph.load(GITLET_DIR);
+        String id = headId();
+        while (id != null && !printer.done()) {
+            int pos = graph.position(id);
+            if (pos >= 0 && !graph.mightHaveChanged(pos, fileName)) {
+                id = graph.parent(pos);
+                continue;
+            }
+            Commit commit = checkOutCommit(id);
+            String parentId = commit.getParent();
+            String before = parentId == null
+                    ? null
+                    : checkOutCommit(parentId).getFiles().get(fileName);
+            if (!Objects.equals(before, commit.getFiles().get(fileName))
+                    && filter.matches(commit)) {
+                printer.print(commit);
+            }
+            id = parentId;
+        }
+    }
+
+    /**
+     * Adds every commit that isn't in the commit graph yet (i.e. all commits
+     * made before it existed) to it, parents first, rewrites the bitmaps,
+     * and gives every commit a row in the commit columns.
+     */
+    public static void writeCommitGraph() {
+        CommitGraph graph = CommitGraph.load(GITLET_DIR);
+        List<Commit> commits = missingFromGraph(graph, getAllCommits(),
+                Integer.MAX_VALUE);
+        appendToGraph(commits);
+        System.out.println("Added " + commits.size()
+                + " commits to the commit graph.");
+        List<String> heads = new ArrayList<>(RefStore.local().all().values());
+        int bitmaps = ReachabilityIndex.write(GITLET_DIR, heads);
+        System.out.println("Wrote " + bitmaps + " reachability bitmaps.");
+        CommitColumns columns = CommitColumns.load(GITLET_DIR);
+        List<Commit> unindexed = new ArrayList<>();
+        for (String id : getAllCommits()) {
+            if (!columns.contains(id)) {
+                unindexed.add(checkOutCommit(id));
+            }
+        }
+        int rows = CommitColumns.compact(GITLET_DIR, unindexed);
+        System.out.println("Indexed " + rows + " commits for log queries.");
+    }
+
+    /**
+     * Returns the commits reachable from those in STARTS that GRAPH doesn't
+     * have, parents first, stopping once there are LIMIT of them.
+     */
+    static List<Commit> missingFromGraph(CommitGraph graph,
+                                         Iterable<String> starts, int limit) {
+        List<Commit> commits = new ArrayList<>();
+        HashSet<String> done = new HashSet<>();
+        for (String id : starts) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(id);
+            while (!stack.isEmpty() && commits.size() < limit) {
+                String top = stack.peek();
+                if (top == null || graph.contains(top) || done.contains(top)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit c = checkOutCommit(top);
+                String p1 = c.getParent();
+                String p2 = c.getMergeParent();
+                if (p1 != null && !graph.contains(p1) && !done.contains(p1)) {
+                    stack.push(p1);
+                } else if (p2 != null && !graph.contains(p2)
+                        && !done.contains(p2)) {
+                    stack.push(p2);
+                } else {
+                    stack.pop();
+                    done.add(top);
+                    commits.add(c);
+                }
+            }
+        }
+        return commits;
+    }
+
+    /** Appends COMMITS, parents first, to the commit graph, and their rows
+     *  to the commit columns. */
+    static void appendToGraph(List<Commit> commits) {
+        List<List<String>> changed = new ArrayList<>();
+        for (Commit c : commits) {
+            changed.add(changedPaths(c));
+        }
+        CommitGraph.append(GITLET_DIR, commits, changed);
+        CommitColumns.append(GITLET_DIR, commits);
+    }
+
+    /**
+     * Prints whether commit ANCESTOR can be reached from commit ID.
+     */
+    public static void isAncestorCommand(String ancestor, String id) {
+        System.out.println(isAncestor(resolve(ancestor), resolve(id)));
+    }
+
+    /**
+     * Returns the full id of the commit NAME designates: a branch name or a
+     * (possibly abbreviated) commit id.
+     */
+    private static String resolve(String name) {
+        String id = RefStore.local().get(name);
+        if (id != null) {
+            return id;
+        }
+        return checkOutCommit(name).getId();
     }
 
     /**
-     * Takes a Commit object as argument, traverses all the parents and at each
-     * step prints it. (Does not traverse the branch of the tree which belongs
-     * to the merged in branch, should any of the commits be a merge commit).
+     * Returns the files commit C added, removed or modified compared to its
+     * first parent.
      */
-    private static void log(Commit commit) {
-        commit.print();
-        String parentId = commit.getParent();
-        if (parentId != null) {
-            Commit parent = checkOutCommit(parentId);
-            log(parent);
+    static List<String> changedPaths(Commit c) {
+        FileMap before = c.getParent() == null
+                ? FileMap.EMPTY
+                : checkOutCommit(c.getParent()).getFiles();
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : c.getFiles().entrySet()) {
+            if (!entry.getValue().equals(before.get(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        for (String fileName : before.keySet()) {
+            if (!c.getFiles().containsKey(fileName)) {
+                changed.add(fileName);
+            }
         }
+        return changed;
     }
 
    /**
     * Similar to log() but for the entire list of commits without relation
     * between them considered.
     */
-    public static void globalLog() {
-        HashSet<String> commits = getAllCommits();
-        for (String commit: commits) {
-            Commit com = checkOutCommit(commit);
-            com.print();
+    public static void globalLog(CommitPrinter printer, CommitFilter filter) {
+        Output.usePager();
+        CommitColumns columns = null;
+        Set<String> matching = null;
+        if (!filter.isEmpty()) {
+            columns = CommitColumns.load(GITLET_DIR);
+            matching = columns.matching(filter);
+        }
+        for (String commit : ObjectStore.local().ids(ObjectStore.Kind.COMMIT)) {
+            if (printer.done()) {
+                break;
+            }
+            if (matching != null && !matching.contains(commit)
+                    && columns.contains(commit)) {
+                continue;
+            }
+            Commit c = checkOutCommit(commit);
+            if (filter.matches(c)) {
+                printer.print(c);
+            }
         }
     }
 
@@ -241,9 +551,8 @@ public class Repository {
      * Finds a commit that has the log message given as argument.
      */
     public static void find(String message) {
-        HashSet<String> commits = getAllCommits();
         int found = 0;
-        for (String commit : commits) {
+        for (String commit : ObjectStore.local().ids(ObjectStore.Kind.COMMIT)) {
             Commit com = checkOutCommit(commit);
             if (message.equals(com.getMessage())) {
                 System.out.println(commit);
@@ -264,69 +573,219 @@ public class Repository {
      * builds a string to be fit into it's section of the overall structure.
      */
     public static void status() {
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
-        Commit currentCommit = checkOutCommit(readContentsAsString(HEAD));
-        HashMap<String, String> commitedFiles = currentCommit.getFiles();
-        List<String> branches = plainFilenamesIn(BRANCHES);
-        String currentBranch = readContentsAsString(join(BRANCHES, "current"));
-        List<String> currentFiles = plainFilenamesIn(CWD);
+        StagingArea stagingArea = readStagingArea();
+        Commit currentCommit = checkOutCommit(headId());
+        FileMap commitedFiles = currentCommit.getFiles();
+        RefStore refs = RefStore.local();
+        SortedMap<String, String> branches = refs.all();
+        String currentBranch = refs.current();
+        PrintStream out = System.out;
 
-        StringBuilder stagedFiles = new StringBuilder();
-        StringBuilder removedFiles = new StringBuilder();
-        StringBuilder modificationsNotStaged = new StringBuilder();
-        StringBuilder untrackedFiles = new StringBuilder();
-        StringBuilder branchFiles = new StringBuilder();
-
-        assert branches != null;
-        for (String branch : branches) {
-            if (!branch.equals("current")) {
-                if (branch.equals(currentBranch)) {
-                    branchFiles.append("*").append(branch).append("\n");
-                } else {
-                    branchFiles.append(branch).append("\n");
+        out.append("=== Branches ===\n");
+        for (String branch : branches.keySet()) {
+            if (branch.equals(currentBranch)) {
+                out.append('*');
+            }
+            out.append(branch).append('\n');
+        }
+        out.append('\n');
+        if (Config.local().getBoolean("status.aheadBehind", false)) {
+            out.append("=== Ahead/Behind ===\n");
+            printAheadBehind(branches, currentBranch, out);
+            out.append('\n');
+        }
+
+        Map<String, String> removedShas = new HashMap<>();
+        Map<String, String> addedShas = new HashMap<>();
+        out.append("=== Staged Files ===\n");
+        for (Map.Entry<String, String> set : stagingArea.map.entrySet()) {
+            String fileName = set.getKey();
+            if (set.getValue() != null) {
+                out.append(fileName).append('\n');
+                if (!commitedFiles.containsKey(fileName)) {
+                    addedShas.put(fileName, set.getValue());
                 }
             }
         }
+        out.append("\n=== Removed Files ===\n");
+        for (Map.Entry<String, String> set : stagingArea.map.entrySet()) {
+            String fileName = set.getKey();
+            if (set.getValue() == null) {
+                out.append(fileName).append('\n');
+                if (commitedFiles.containsKey(fileName)) {
+                    removedShas.put(fileName, commitedFiles.get(fileName));
+                }
+            }
+        }
+        out.append('\n');
+        if (Config.local().getBoolean("status.renames", false)) {
+            out.append("=== Renamed Files ===\n");
+            for (RenameDetector.Match m : RenameDetector.configured()
+                    .renames(removedShas, addedShas)) {
+                out.append(m.source).append(" -> ").append(m.target)
+                        .append('\n');
+            }
+            out.append('\n');
+        }
+
+        out.append("=== Modifications Not Staged For Commit ===\n");
+        SparseCheckout sparse = SparseCheckout.local();
         for (Map.Entry<String, String> set : commitedFiles.entrySet()) {
             String fileName = set.getKey();
             String commitedSha = set.getValue();
-            if ((currentFiles == null || !currentFiles.contains(fileName))
-                    && !stagingArea.map.containsKey(fileName)) {
-                modificationsNotStaged.append(fileName)
-                        .append(" (deleted)").append("\n");
-            } else if (currentFiles != null
-                    && currentFiles.contains(fileName)
-                    && !stagingArea.map.containsKey(fileName)
-                    && !commitedSha.equals(
-                    sha1(readContentsAsString(join(CWD, fileName)))
-            )) {
-                modificationsNotStaged.append(fileName)
-                        .append(" (modified)").append("\n");
+            if (!sparse.includes(fileName)
+                    || stagingArea.map.containsKey(fileName)) {
+                continue;
+            }
+            String sha = WorkTreeMonitor.hash(fileName);
+            if (sha == null) {
+                out.append(fileName).append(" (deleted)\n");
+            } else if (!commitedSha.equals(sha)) {
+                out.append(fileName).append(" (modified)\n");
             }
         }
-        HashSet<String> untracked = checkUntracked();
-        for (String file : untracked) {
-            untrackedFiles.append(file).append("\n");
+        out.append("\n=== Untracked Files ===\n");
+        for (String file : checkUntracked()) {
+            out.append(file).append('\n');
         }
+        out.append('\n');
+    }
 
-        for (Map.Entry<String, String> set: stagingArea.map.entrySet()) {
-            String fileName = set.getKey();
-            if (set.getValue() == null) {
-                removedFiles.append(fileName).append("\n");
+    /**
+     * Writes the files of commit (or branch) NAME as an archive in FORMAT,
+     * tar or zip, to file OUTPUT, or to standard output when OUTPUT is null.
+     * Blobs go from the object store into the archive; the working directory
+     * and the index aren't touched. See Archive.
+     */
+    public static void archive(String name, String format, String output) {
+        Commit commit = checkOutCommit(resolve(name));
+        try {
+            if (output == null) {
+                System.out.flush();
+                /* Not closed: it is standard output. */
+                Archive.write(GITLET_DIR, commit, format,
+                        new FileOutputStream(FileDescriptor.out).getChannel());
             } else {
-                stagedFiles.append(fileName).append("\n");
+                try (FileChannel out = FileChannel.open(
+                        new File(output).toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.WRITE)) {
+                    Archive.write(GITLET_DIR, commit, format, out);
+                }
+            }
+        } catch (IOException excp) {
+            throw error("Cannot write archive: %s", excp.getMessage());
+        }
+    }
+
+    /**
+     * The diff command: lists, one per line and sorted by name, the files
+     * that differ between commits (or branches) FROM and TO, TO being the
+     * head commit when null. Each line is a status letter and the name: A
+     * added, D deleted, M modified, and R or C followed by the similarity
+     * in percent for a file renamed or copied from the first name to the
+     * second one.
+     */
+    public static void diff(String from, String to) {
+        FileMap before = checkOutCommit(resolve(from))
+                .getFiles();
+        FileMap after = checkOutCommit(
+                to == null ? headId() : resolve(to)).getFiles();
+        Map<String, String> deleted = new HashMap<>();
+        Map<String, String> added = new HashMap<>();
+        TreeMap<String, String> lines = new TreeMap<>();
+        for (Map.Entry<String, String> e : before.entrySet()) {
+            String sha = after.get(e.getKey());
+            if (sha == null) {
+                deleted.put(e.getKey(), e.getValue());
+            } else if (!sha.equals(e.getValue())) {
+                lines.put(e.getKey(), "M\t" + e.getKey());
+            }
+        }
+        for (Map.Entry<String, String> e : after.entrySet()) {
+            if (!before.containsKey(e.getKey())) {
+                added.put(e.getKey(), e.getValue());
+            }
+        }
+        RenameDetector detector = RenameDetector.configured();
+        for (RenameDetector.Match m : detector.renames(deleted, added)) {
+            deleted.remove(m.source);
+            added.remove(m.target);
+            lines.put(m.target, "R" + m.score + "\t" + m.source + "\t"
+                    + m.target);
+        }
+        for (RenameDetector.Match m : detector.copies(before, added)) {
+            added.remove(m.target);
+            lines.put(m.target, "C" + m.score + "\t" + m.source + "\t"
+                    + m.target);
+        }
+        for (String fileName : deleted.keySet()) {
+            lines.put(fileName, "D\t" + fileName);
+        }
+        for (String fileName : added.keySet()) {
+            lines.put(fileName, "A\t" + fileName);
+        }
+        for (String line : lines.values()) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * The blame command: prints every line of FILENAME as it is in the head
+     * commit, each one preceded by the abbreviated id and the date of the
+     * commit that introduced it and by its line number.
+     */
+    public static void blame(String fileName) {
+        Blame blame = new Blame(GITLET_DIR, fileName);
+        String head = headId();
+        Blame.Origin[] origins = blame.run(head);
+        if (origins == null) {
+            System.out.println("File does not exist in that commit.");
+            System.exit(0);
+        }
+        String[] lines = blame.lines(checkOutCommit(head).getFiles()
+                .get(fileName));
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss Z");
+        int width = String.valueOf(lines.length).length();
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            Commit origin = checkOutCommit(origins[i].commit);
+            out.append(origin.getId(), 0, 8).append(" (")
+                    .append(format.format(origin.getDate())).append(' ')
+                    .append(String.format("%" + width + "d", i + 1))
+                    .append(") ").append(lines[i]).append('\n');
+        }
+        System.out.print(out);
+    }
+
+    /**
+     * Builds the optional Ahead/Behind section of status: for every other
+     * branch, how many commits the current branch has that it doesn't and
+     * the other way around. Counted with reachability bitmaps when the
+     * commit graph covers both branches, by walking them otherwise.
+     */
+    private static void printAheadBehind(Map<String, String> branches,
+                                         String current, PrintStream out) {
+        ReachabilityIndex index = ReachabilityIndex.load(GITLET_DIR);
+        String head = headId();
+        for (Map.Entry<String, String> e : branches.entrySet()) {
+            String branch = e.getKey();
+            if (branch.equals(current)) {
+                continue;
             }
+            String other = e.getValue();
+            long[] counts = index.aheadBehind(head, other);
+            if (counts == null) {
+                Set<String> mine = ancestors(head, new HashMap<>()).keySet();
+                Set<String> theirs = ancestors(other, new HashMap<>()).keySet();
+                counts = new long[] {
+                    mine.stream().filter(c -> !theirs.contains(c)).count(),
+                    theirs.stream().filter(c -> !mine.contains(c)).count()};
+            }
+            out.append(branch).append(": ahead ")
+                    .append(String.valueOf(counts[0])).append(", behind ")
+                    .append(String.valueOf(counts[1])).append('\n');
         }
-        System.out.println("=== Branches ===");
-        System.out.println(branchFiles);
-        System.out.println("=== Staged Files ===");
-        System.out.println(stagedFiles);
-        System.out.println("=== Removed Files ===");
-        System.out.println(removedFiles);
-        System.out.println("=== Modifications Not Staged For Commit ===");
-        System.out.println(modificationsNotStaged);
-        System.out.println("=== Untracked Files ===");
-        System.out.println(untrackedFiles);
     }
 
     /**
@@ -336,17 +795,15 @@ public class Repository {
      * first two.
      */
     public static void checkOutFileInHead(String fileName) {
-        String headCommit = readContentsAsString(HEAD);
+        String headCommit = headId();
         checkOutFileInCommit(headCommit, fileName);
     }
 
     public static void checkOutFileInCommit(String sha1, String fileName) {
-        HashMap<String, String> commitFiles =
+        FileMap commitFiles =
                 checkOutCommit(sha1).getFiles();
         if (commitFiles.containsKey(fileName)) {
-            File file = join(CWD, fileName);
-            File commitedFile = join(FILES, commitFiles.get(fileName));
-            writeContents(file, readContentsAsString(commitedFile));
+            Blobs.copyTo(commitFiles.get(fileName), join(CWD, fileName));
         } else {
             System.out.println("File does not exist in that commit.");
             System.exit(0);
@@ -354,16 +811,20 @@ public class Repository {
     }
 
     public static void checkOutBranch(String branchName) {
-        if (readContentsAsString(ACTIVE_BRANCH).equals(branchName)) {
+        String currentBranch = RefStore.local().current();
+        if (currentBranch.equals(branchName)) {
             System.out.println("No need to checkout the current branch");
             System.exit(0);
         }
-        File branch = join(BRANCHES, branchName);
-        if (branch.exists()) {
-            String branchID = readContentsAsString(branch);
+        String branchID = RefStore.local().get(branchName);
+        if (branchID != null) {
             checkUntrackedFile(branchID);
-            switchActiveCommit(branchID);
-            writeContents(join(BRANCHES, "current"), branchName);
+            try (Transaction tx = new Transaction()) {
+                tx.refs().head(branchID, "checkout: moving from "
+                        + currentBranch + " to " + branchName);
+                tx.refs().checkout(branchName);
+                switchActiveCommit(branchID, tx);
+            }
         } else {
             System.out.println("No such branch exists.");
             System.exit(0);
@@ -371,26 +832,39 @@ public class Repository {
     }
 
     /**
-     * This method creates a branch file and writes the head id in it.
+     * This method creates a branch pointing at the head commit.
      */
     public static void branch(String branchName) {
-        File branch = join(BRANCHES, branchName);
-        if (branch.exists()) {
+        if (!RefStore.isValidName(branchName)) {
+            System.out.println("Invalid branch name.");
+            System.exit(0);
+        }
+        if (RefStore.local().get(branchName) != null) {
             System.out.println("A branch with that name already exists.");
             System.exit(0);
         }
-        writeContents(branch, readContentsAsString(HEAD));
+        String other = RefStore.local().conflicting(branchName);
+        if (other != null) {
+            System.out.println("That name clashes with branch " + other + ".");
+            System.exit(0);
+        }
+        try (Transaction tx = new Transaction()) {
+            tx.refs().set(branchName, headId(), "branch: Created from HEAD");
+            tx.commit();
+        }
     }
 
     public static void rmBranch(String branchName) {
-        String currentBranch = readContentsAsString(ACTIVE_BRANCH);
+        String currentBranch = RefStore.local().current();
         if (currentBranch.equals(branchName)) {
             System.out.println("Cannot remove the current branch.");
             System.exit(0);
         }
-        File branch = join(BRANCHES, branchName);
-        if (branch.exists()) {
-            branch.delete();
+        if (RefStore.local().get(branchName) != null) {
+            try (Transaction tx = new Transaction()) {
+                tx.refs().delete(branchName);
+                tx.commit();
+            }
         } else {
             System.out.println("A branch with that"
                     + " name does not exist.");
@@ -399,16 +873,79 @@ public class Repository {
     }
 
     /**
-     * Resets the state of the repo to the given commit id.
+     * Resets the state of the repo to the given commit id. Everything is
+     * checked before anything changes; the cleared index is published with
+     * the refs, and the working directory follows once they are in place.
      */
     public static void reset(String commitId) {
-        StagingArea sa = readObject(STAGING_AREA, StagingArea.class);
-        sa.map.clear();
-        writeObject(STAGING_AREA, sa);
-        checkUntrackedFile(commitId);
-        switchActiveCommit(commitId);
-        File activeBranch = join(BRANCHES, readContentsAsString(ACTIVE_BRANCH));
-        writeContents(activeBranch, commitId);
+        String id = checkOutCommit(commitId).getId();
+        StagingArea sa = new StagingArea();
+        checkUntrackedFile(id, sa);
+        String message = "reset: moving to " + id;
+        try (Transaction tx = new Transaction()) {
+            tx.writeRef(STAGING_AREA, serialize(sa));
+            tx.refs().head(id, message);
+            tx.refs().set(RefStore.local().current(), id, message);
+            switchActiveCommit(id, tx);
+        }
+    }
+
+    /**
+     * The fast-import command: reads a history from IN (see FastImport for
+     * the format) and stores it, then points the branches it names at their
+     * new tips. If that moves the current branch, its files are checked out
+     * the way reset does.
+     */
+    public static void fastImport(InputStream in) {
+        FastImport imported = FastImport.read(GITLET_DIR, in);
+        String current = RefStore.local().current();
+        String newHead = imported.branches().get(current);
+        if (newHead != null && newHead.equals(headId())) {
+            newHead = null;
+        }
+        if (newHead != null) {
+            checkUntrackedFile(newHead, new StagingArea());
+        }
+        int updated = 0;
+        try (Transaction tx = new Transaction()) {
+            for (Map.Entry<String, String> e
+                    : imported.branches().entrySet()) {
+                if (!e.getValue().equals(RefStore.local().get(e.getKey()))) {
+                    tx.refs().set(e.getKey(), e.getValue(), "fast-import");
+                    updated++;
+                }
+            }
+            if (newHead != null) {
+                tx.writeRef(STAGING_AREA, serialize(new StagingArea()));
+                tx.refs().head(newHead, "fast-import");
+                switchActiveCommit(newHead, tx);
+            } else {
+                tx.commit();
+            }
+        }
+        System.out.println("Imported " + imported.blobs() + " blobs and "
+                + imported.commits() + " commits, updated " + updated
+                + " branches.");
+    }
+
+    /**
+     * Prints the reflog of branch NAME, or of HEAD if NAME is null: every
+     * commit it pointed at, newest first, with what moved it there.
+     */
+    public static void reflog(String name) {
+        String ref = name == null ? "HEAD" : name;
+        if (!ref.equals("HEAD") && RefStore.local().get(ref) == null) {
+            System.out.println("A branch with that name does not exist.");
+            System.exit(0);
+        }
+        List<String[]> entries = RefStore.local().reflog(ref);
+        PrintStream out = System.out;
+        for (int i = entries.size() - 1, n = 0; i >= 0; i--, n++) {
+            String[] entry = entries.get(i);
+            out.append(entry[1], 0, 7).append(' ').append(ref).append("@{")
+                    .append(String.valueOf(n)).append("}: ")
+                    .append(entry.length > 3 ? entry[3] : "").append('\n');
+        }
     }
 
     /**
@@ -418,28 +955,32 @@ public class Repository {
      * for the actual merge.
      */
     public static void merge(String branchName) {
-        String currentBranch = readContentsAsString(ACTIVE_BRANCH);
-        String currentBranchID = readContentsAsString(HEAD);
+        String currentBranch = RefStore.local().current();
+        String currentBranchID = headId();
 
         if (branchName.equals(currentBranch)) {
             System.out.println("Cannot merge a branch with itself.");
             System.exit(0);
         }
-        File branch = join(BRANCHES, branchName);
-        if (!branch.exists()) {
+        String branchID = RefStore.local().get(branchName);
+        if (branchID == null) {
             System.out.println("A branch with that"
                     + " name does not exist.");
             System.exit(0);
         }
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
+        StagingArea stagingArea = readStagingArea();
         if (!stagingArea.map.isEmpty()) {
             System.out.println("You have uncommitted changes.");
             System.exit(0);
         }
 
-        String branchID = readContentsAsString(branch);
         checkUntrackedFile(branchID);
-        String splitPointID = splitPointID(branchID);
+        String splitPointID = mergeBase(currentBranchID, branchID);
+        if (splitPointID == null) {
+            System.out.println("Given branch has no common ancestor"
+                    + " with the current branch.");
+            System.exit(0);
+        }
 
         if (branchID.equals(splitPointID)) {
             System.out.println("Given branch is an ancestor"
@@ -447,10 +988,12 @@ public class Repository {
             System.exit(0);
         }
         if (splitPointID.equals(currentBranchID)) {
-            checkOutBranch(branchName);
-            writeContents(join(BRANCHES, "current"), currentBranch);
-            writeContents(join(BRANCHES, currentBranch), splitPointID);
-            join(BRANCHES, branchName).delete();
+            String message = "merge " + branchName + ": Fast-forward";
+            try (Transaction tx = new Transaction()) {
+                tx.refs().set(currentBranch, branchID, message);
+                tx.refs().head(branchID, message);
+                switchActiveCommit(branchID, tx);
+            }
             System.out.println("Current branch fast-forwarded.");
             System.exit(0);
         }
@@ -464,104 +1007,119 @@ public class Repository {
     }
 
     /**
-     * Helper method for merge. This is the meat of this command. Takes all
-     * three commits in discussion, split, current and given, iterates over
-     * the entire list of files from the combined three commits and checks for
-     * all the particular cases.
+     * Helper method for merge. Merges commit GIVEN into ACTIVE, SPLIT being
+     * their split point, see MergeTree, and then brings the working
+     * directory and the staging area in line with the result: files the
+     * merge changes are checked out (conflicts with their markers) and
+     * staged, files it removes are staged for removal. Returns true if there
+     * was a conflict.
      */
     private static boolean merge(String active, String given, String split) {
-        boolean conflict = false;
-        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
-        HashMap<String, String> activeF = checkOutCommit(active).getFiles();
-        HashMap<String, String> givenF = checkOutCommit(given).getFiles();
-        HashMap<String, String> splitF = checkOutCommit(split).getFiles();
-        HashSet<String> allFiles = new HashSet<>();
-        allFiles.addAll(activeF.keySet());
-        allFiles.addAll(givenF.keySet());
-        allFiles.addAll(splitF.keySet());
-        for (String fileName: allFiles) {
-            String aSha = activeF.get(fileName);
-            String gSha = givenF.get(fileName);
-            String sSha = splitF.get(fileName);
-            String aC = aSha != null
-                    ? readContentsAsString(join(FILES, aSha))
-                    : "";
-            String gC = gSha != null
-                    ? readContentsAsString(join(FILES, gSha))
-                    : "";
-            String cC = "<<<<<<< HEAD\n" + aC + "=======\n" + gC + ">>>>>>>\n";
-
-            /**
-             * Any files that have been modified in the given branch since the
-             * split point, but not modified in the current branch since the
-             * split point should be changed to their versions in the given
-             * branch.
-             */
-            if (aSha != null && gSha != null && sSha != null
-                && !gSha.equals(sSha) && aSha.equals(sSha)) {
-                checkOutFileInCommit(given, fileName);
-                stagingArea.map.put(fileName, gC);
-            /**
-             * Any files that were not present at the split point and are
-             * present only in the given branch should be checked out and
-             * staged.
-             */
-            } else if (aSha == null && sSha == null) {
-                checkOutFileInCommit(given, fileName);
-                stagingArea.map.put(fileName, gC);
-            /**
-             * Any files present at the split point, unmodified in the current
-             * branch, and absent in the given branch should be removed.
-             */
-            } else if (gSha == null && aSha != null && aSha.equals(sSha)) {
+        FileMap activeF = checkOutCommit(active).getFiles();
+        MergeTree merged;
+        try (Transaction tx = new Transaction()) {
+            merged = MergeTree.merge(activeF, checkOutCommit(given).getFiles(),
+                    checkOutCommit(split).getFiles(), tx);
+            tx.commit();
+        }
+        StagingArea stagingArea = readStagingArea();
+        FileMap result = merged.files;
+        for (String fileName : FileMap.union(activeF, result)) {
+            String sha = result.get(fileName);
+            if (sha == null) {
                 stagingArea.map.put(fileName, null);
-            /**
-             * Any files modified in different ways in the current and given
-             * branches are in conflict. “Modified in different ways” can
-             * mean that the contents of both are changed and different from
-             * other, or the contents of one are changed and the other file is
-             * deleted, or the file was absent at the split point and has
-             * different contents in the given and current branches. In this
-             * case, replace the contents of the conflicted file with
-             * cC (conflict content).
-             */
-            } else if ((aSha != null && gSha != null && !aSha.equals(gSha)
-                    && !gSha.equals(sSha))
-                    || (gSha != null && sSha != null
-                    && !gSha.equals(sSha) && aSha == null)
-                    || (aSha != null && sSha != null
-                    && !aSha.equals(sSha) && gSha == null)) {
-                writeContents(join(CWD, fileName), cC);
-                stagingArea.map.put(fileName, cC);
-                conflict = true;
+            } else if (!sha.equals(activeF.get(fileName))) {
+                if (merged.isConflicted(fileName)) {
+                    Blobs.copyTo(sha, join(CWD, fileName));
+                } else {
+                    writeIfSparse(sha, fileName);
+                }
+                stagingArea.map.put(fileName, sha);
             }
         }
+        saveStagingArea(stagingArea);
+        return !merged.conflicts.isEmpty();
+    }
 
-        writeObject(STAGING_AREA, stagingArea);
-        return conflict;
+    /**
+     * The merge-tree command: merges commit (or branch) THEIRS into OURS
+     * without a working directory. The merge commit, with message MESSAGE
+     * or a merge message of the usual form when null, and the blobs it
+     * needs are written to the object store directly; no branch, HEAD, index
+     * or working directory file changes. Prints the id of the merge commit
+     * (of OURS or THEIRS when one already contains the other, as there is
+     * nothing to merge then) and then a line per file in conflict:
+     *
+     *     KIND BASE OURS THEIRS PATH
+     *
+     * KIND as in MergeTree.Conflict.kind() and the blob ids, - where the file
+     * doesn't exist. The merge commit keeps such files with conflict
+     * markers, as merge does.
+     */
+    public static void mergeTree(String ours, String theirs, String message) {
+        String oursID = resolve(ours);
+        String theirsID = resolve(theirs);
+        String base = mergeBase(oursID, theirsID);
+        if (theirsID.equals(base)) {
+            System.out.println(oursID);
+            return;
+        }
+        if (oursID.equals(base)) {
+            System.out.println(theirsID);
+            return;
+        }
+        FileMap baseF = base == null
+                ? FileMap.EMPTY : checkOutCommit(base).getFiles();
+        MergeTree merged;
+        Commit mergeCommit;
+        try (Transaction tx = new Transaction()) {
+            merged = MergeTree.merge(checkOutCommit(oursID).getFiles(),
+                    checkOutCommit(theirsID).getFiles(), baseF, tx);
+            mergeCommit = new Commit(
+                    message != null ? message
+                            : "Merged " + theirs + " into " + ours + ".",
+                    author(),
+                    oursID,
+                    theirsID,
+                    new HashMap<>(merged.files)
+            );
+            tx.writeObject(ObjectStore.Kind.COMMIT, mergeCommit.getId(),
+                    serialize(mergeCommit));
+            tx.commit();
+        }
+        PrintStream out = System.out;
+        out.println(mergeCommit.getId());
+        for (MergeTree.Conflict c : merged.conflicts) {
+            out.append(c.kind()).append(' ')
+                    .append(c.base == null ? "-" : c.base).append(' ')
+                    .append(c.ours == null ? "-" : c.ours).append(' ')
+                    .append(c.theirs == null ? "-" : c.theirs).append(' ')
+                    .append(c.path).append('\n');
+        }
     }
 
     /**
      * This method together with the next one have the purpose to traverse the
-     * graph, that the entire list of commits has become, starting from the
-     * current head and the head of the given branch, at the same time, in order
-     * to find the latest common ancestor, ancestor judged to be the latest
-     * based on the commit date.
+     * graph, that the entire list of commits has become, starting from
+     * commits HEAD and COMMITID at the same time, in order to find the latest
+     * common ancestor, ancestor judged to be the latest based on the commit
+     * date.
      */
-    private static String splitPointID(String commitID) {
-        String head = readContentsAsString(HEAD);
+    private static String mergeBase(String head, String commitID) {
+        String base = ReachabilityIndex.load(GITLET_DIR)
+                .mergeBase(head, commitID);
+        if (base != null) {
+            return base;
+        }
         HashMap<String, Date> hAnces = ancestors(head, new HashMap<>());
         HashMap<String, Date> gAnces = ancestors(commitID, new HashMap<>());
         String cAnces = null;
+        Date cDate = null;
         for (Map.Entry<String, Date> entry: hAnces.entrySet()) {
             if (gAnces.containsKey(entry.getKey())) {
-                if (cAnces == null) {
+                if (cAnces == null || cDate.compareTo(entry.getValue()) < 0) {
                     cAnces = entry.getKey();
-                } else {
-                    Commit c = checkOutCommit(cAnces);
-                    if (c.getDate().compareTo(entry.getValue()) < 0) {
-                        cAnces = entry.getKey();
-                    }
+                    cDate = entry.getValue();
                 }
             }
         }
@@ -588,6 +1146,200 @@ public class Repository {
         return map1;
     }
 
+    /**
+     * The sparse-checkout command. list prints the patterns, set replaces them
+     * with PATTERNS and disable turns sparse checkout off. After set and
+     * disable the working directory is brought in line with the new sparse
+     * set: tracked files that are now in it and missing are checked out of
+     * the head commit, and unmodified files that left it are removed.
+     */
+    public static void sparseCheckout(String command, List<String> patterns) {
+        if (command.equals("list") && patterns.isEmpty()) {
+            for (String pattern : SparseCheckout.local().patterns()) {
+                System.out.println(pattern);
+            }
+            return;
+        } else if (command.equals("set") && !patterns.isEmpty()) {
+            SparseCheckout.save(GITLET_DIR, patterns);
+        } else if (command.equals("disable") && patterns.isEmpty()) {
+            SparseCheckout.save(GITLET_DIR, null);
+        } else {
+            System.out.println("Incorrect operands.");
+            System.exit(0);
+        }
+        SparseCheckout sparse = SparseCheckout.local();
+        StagingArea stagingArea = readStagingArea();
+        for (Map.Entry<String, String> set
+                : checkOutCommit(headId()).getFiles().entrySet()) {
+            String fileName = set.getKey();
+            File file = join(CWD, fileName);
+            if (sparse.includes(fileName)) {
+                if (!file.exists() && !stagingArea.map.containsKey(fileName)) {
+                    Blobs.copyTo(set.getValue(), file);
+                }
+            } else if (file.isFile()
+                    && !stagingArea.map.containsKey(fileName)
+                    && Blobs.hash(file).equals(set.getValue())) {
+                restrictedDelete(file);
+            }
+        }
+    }
+
+    /**
+     * Prints the value of the given config key or, when a value is given,
+     * sets it (an empty value removes the key).
+     */
+    public static void config(String key, String value) {
+        Config config = Config.local();
+        if (value == null) {
+            String current = config.get(key);
+            if (current != null) {
+                System.out.println(current);
+            }
+        } else if (key.equals(ObjectStore.CONFIG_KEY)) {
+            switchObjectStore(value.isEmpty() ? "loose" : value);
+        } else {
+            config.set(key, value.isEmpty() ? null : value);
+        }
+    }
+
+    /**
+     * Moves every object into a store of type TYPE and makes it the store of
+     * this repository. The objects are copied before the config is changed
+     * and removed from the old store only after, so a crash at any point
+     * leaves them all readable through whichever store is configured.
+     */
+    private static void switchObjectStore(String type) {
+        if (!type.equals("loose") && !type.equals("log")) {
+            System.out.println("Unknown object store.");
+            System.exit(0);
+        }
+        Config config = Config.local();
+        if (type.equals(config.get(ObjectStore.CONFIG_KEY, "loose"))) {
+            return;
+        }
+        ObjectStore from = ObjectStore.local();
+        ObjectStore to = ObjectStore.open(GITLET_DIR, type);
+        ObjectStore.copy(from, to, Transaction.Durability.configured());
+        config.set(ObjectStore.CONFIG_KEY, type);
+        ObjectStore.use(GITLET_DIR, to);
+        from.sweep((kind, id) -> false, Long.MAX_VALUE);
+    }
+
+    /**
+     * Remote commands. Remotes are other repositories on this file system,
+     * see the Remote class for how objects get moved between them.
+     */
+    public static void addRemote(String name, String path) {
+        Remote.add(name, path);
+    }
+
+    public static void rmRemote(String name) {
+        Remote.remove(name);
+    }
+
+    public static void fetch(String remote, String branch) {
+        Remote.fetch(remote, branch);
+    }
+
+    public static void push(String remote, String branch) {
+        Remote.push(remote, branch);
+    }
+
+    /**
+     * Fetches the remote branch and merges [remote]/[branch] into the
+     * current branch.
+     */
+    public static void pull(String remote, String branch) {
+        Remote.fetch(remote, branch);
+        merge(remote + "/" + branch);
+    }
+
+    /**
+     * Deletes commits and blobs that can't be reached from any branch, HEAD or
+     * the staging area, provided they are older than the grace period: PRUNE
+     * seconds, "now", or gc.pruneExpire from the config (two weeks) when
+     * PRUNE is null.
+     */
+    public static void gc(String prune) {
+        long grace;
+        if (prune == null) {
+            grace = Config.local().getLong("gc.pruneExpire", 1209600);
+        } else if (prune.equals("now")) {
+            grace = 0;
+        } else {
+            try {
+                grace = Long.parseLong(prune);
+            } catch (NumberFormatException excp) {
+                System.out.println("Incorrect operands.");
+                System.exit(0);
+                return;
+            }
+        }
+        GarbageCollector gc = new GarbageCollector(GITLET_DIR, grace * 1000);
+        markLive(gc);
+        gc.sweep();
+        RefStore.local().pack(Transaction.Durability.configured());
+        System.out.println("Removed " + gc.removedCommits() + " commits, "
+                + gc.removedBlobs() + " blobs, " + gc.removedChunks()
+                + " chunks and " + gc.removedTmp() + " temporary files.");
+    }
+
+    /** Marks everything live in GC: what every branch, HEAD and the index
+     *  refer to. */
+    static void markLive(GarbageCollector gc) {
+        List<String> heads = new ArrayList<>(RefStore.local().all().values());
+        heads.add(headId());
+        gc.mark(heads, stagedBlobs());
+    }
+
+    /** The blobs the index has staged. */
+    static List<String> stagedBlobs() {
+        List<String> staged = new ArrayList<>();
+        for (String sha : readStagingArea().map.values()) {
+            if (sha != null) {
+                staged.add(sha);
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Checks every object against its id and every link between objects,
+     * branches, HEAD and the index, and prints what is corrupt, missing or
+     * dangling. RATE caps the bytes read per second (fsck.maxBytesPerSecond
+     * from the config when null, no cap by default); fsck.threads sets how
+     * many objects are checked at once.
+     */
+    public static void fsck(String rate) {
+        long bytesPerSecond;
+        try {
+            bytesPerSecond = rate == null
+                    ? Config.local().getLong("fsck.maxBytesPerSecond", 0)
+                    : Long.parseLong(rate);
+        } catch (NumberFormatException excp) {
+            System.out.println("Incorrect operands.");
+            System.exit(0);
+            return;
+        }
+        Map<String, String> refs = new HashMap<>();
+        for (Map.Entry<String, String> e : RefStore.local().all().entrySet()) {
+            refs.put("branch " + e.getKey(), e.getValue());
+        }
+        refs.put("HEAD", headId());
+        List<String> staged = stagedBlobs();
+        Fsck fsck = new Fsck(GITLET_DIR, Config.local().getInt("fsck.threads",
+                Runtime.getRuntime().availableProcessors()), bytesPerSecond);
+        for (String problem : fsck.run(refs, staged)) {
+            System.out.println(problem);
+        }
+        System.out.println("Checked "
+                + fsck.checked(ObjectStore.Kind.COMMIT) + " commits, "
+                + (fsck.checked(ObjectStore.Kind.BLOB)
+                + fsck.checked(ObjectStore.Kind.MANIFEST)) + " blobs and "
+                + fsck.checked(ObjectStore.Kind.CHUNK) + " chunks.");
+    }
+
 //----------------------------------------------------------------------------//
    /**
     * All methods under this section are private utility methods that do not fit
@@ -599,84 +1351,99 @@ public class Repository {
 
     /**
      * Helper method to check out a commit.
-     * It just loads a commit into memory from a file it has been serialized to.
+     * It just loads a commit into memory from the object store it has been
+     * serialized to, or takes it from COMMIT_CACHE if it has been loaded
+     * before. The returned commit is shared, so it must not be modified.
      */
-    private static Commit checkOutCommit(String sha1) {
+    static Commit checkOutCommit(String sha1) {
         if (sha1 == null) {
             return null;
         }
+        if (sha1.length() == UID_LENGTH) {
+            Commit cached = COMMIT_CACHE.getIfPresent(sha1);
+            if (cached != null) {
+                return cached;
+            }
+        }
         if (sha1.length() < 4) {
             System.out.println("Commit id is too short.");
             System.exit(0);
         }
-        File commitDir = join(COMMITS, sha1.substring(0, 4));
-        File commitFile = join(commitDir, sha1.substring(4));
-        if (sha1.length() < 40) {
-            if (!commitDir.exists()) {
-                System.out.println("No commit with that id exists.");
-                System.exit(0);
-            }
-            List<String> commits = plainFilenamesIn(commitDir);
-            assert commits != null;
-            for (String sha : commits) {
-                if (sha.startsWith(sha1.substring(4))) {
-                    commitFile = join(commitDir, sha);
-                }
-            }
+        ObjectStore store = ObjectStore.local();
+        String id = sha1;
+        if (sha1.length() < UID_LENGTH) {
+            List<String> found = store.find(ObjectStore.Kind.COMMIT, sha1);
+            id = found.isEmpty() ? null : found.get(0);
         }
-        if (!commitFile.exists()) {
+        if (id == null || !store.contains(ObjectStore.Kind.COMMIT, id)) {
             System.out.println("No commit with that id exists.");
             System.exit(0);
         }
-        return readObject(commitFile, Commit.class);
-    }
-
-    /**
-     * This method has the purpose of creating the commit file on the FS.
-     * We use a separate method so that we split the id into first four
-     * characters (which represent a directory that will contain the files
-     * with name the remaining  characters of the commit's sha1) and it returns
-     * the final commit File (which is the last 36 chars of the sha1)
-     * With this I'm trying to imitate somehow the original git!!!
-     */
-    private static File createCommitFile(String sha1) {
-        File commitDir = join(COMMITS, sha1.substring(0, 4));
-        if (!commitDir.exists()) {
-            commitDir.mkdir();
-        }
-        return join(commitDir, sha1.substring(4));
+        return COMMIT_CACHE.get(id, k -> Shallow.of(GITLET_DIR).graft(
+                deserialize(store.read(ObjectStore.Kind.COMMIT, k),
+                        Commit.class)));
     }
 
     /**
-     * Helper method that replaces active CWD files with the version
-     * of files in the provided commit.
+     * Helper method that commits TX, which moves HEAD to the provided commit,
+     * and then replaces active CWD files with the version of files in it.
      */
-    private static void switchActiveCommit(String commitID) {
-        HashMap<String, String> activeCommitFiles =
-                checkOutCommit(readContentsAsString(HEAD)).getFiles();
-        HashMap<String, String> replaceFiles =
+    private static void switchActiveCommit(String commitID, Transaction tx) {
+        FileMap activeCommitFiles =
+                checkOutCommit(headId()).getFiles();
+        FileMap replaceFiles =
                 checkOutCommit(commitID).getFiles();
-        writeContents(HEAD, commitID);
+        SparseCheckout sparse = SparseCheckout.local();
+        List<String> blobs = new ArrayList<>();
+        for (Map.Entry<String, String> set : replaceFiles.entrySet()) {
+            if (sparse.includes(set.getKey())) {
+                blobs.add(set.getValue());
+            }
+        }
+        Blobs.prefetch(GITLET_DIR, blobs);
+        tx.commit();
         for (Map.Entry<String, String> set : replaceFiles.entrySet()) {
-            File file = join(CWD, set.getKey());
-            File blob = join(FILES, set.getValue());
-            writeContents(file, readContentsAsString(blob));
+            if (sparse.includes(set.getKey())) {
+                Blobs.copyTo(set.getValue(), join(CWD, set.getKey()));
+            }
         }
         for (Map.Entry<String, String> set: activeCommitFiles.entrySet()) {
-            if (!replaceFiles.containsKey(set.getKey())) {
+            if (!replaceFiles.containsKey(set.getKey())
+                    && sparse.includes(set.getKey())) {
                 restrictedDelete(join(CWD, set.getKey()));
             }
         }
     }
 
+    /**
+     * Writes blob SHA to working directory file FILENAME, unless the file is
+     * left out of the working directory by sparse checkout.
+     */
+    private static void writeIfSparse(String sha, String fileName) {
+        if (SparseCheckout.local().includes(fileName)) {
+            Blobs.copyTo(sha, join(CWD, fileName));
+        }
+    }
+
     /**
      * Helper method that only prints out an error to the terminal and exits
      * should there be any untracked files.
      */
     private static void checkUntrackedFile(String commitID) {
-        HashMap<String, String> files = checkOutCommit(commitID).getFiles();
-        for (String file : checkUntracked()) {
-            String shaCurrent = sha1(readContentsAsString(join(CWD, file)));
+        checkUntrackedFile(commitID, readStagingArea());
+    }
+
+    /** Same as checkUntrackedFile(COMMITID), with STAGINGAREA as the index
+     *  the files are checked against. */
+    private static void checkUntrackedFile(String commitID,
+                                           StagingArea stagingArea) {
+        FileMap files = checkOutCommit(commitID).getFiles();
+        SparseCheckout sparse = SparseCheckout.local();
+        for (String file : checkUntracked(stagingArea)) {
+            if (!sparse.includes(file)) {
+                continue;
+            }
+            String shaCurrent = WorkTreeMonitor.hash(file);
             String shaGiven = files.get(file);
             if (shaGiven != null && !shaCurrent.equals(shaGiven)) {
                 System.out.println("There is an untracked file in the"
@@ -687,24 +1454,109 @@ public class Repository {
     }
 
     /**
-     * Helper method that returns a set of untracked files, based on current
-     * active commit.
+     * Helper method that returns the untracked files, sorted, based on
+     * current active commit.
+     */
+    private static TreeSet<String> checkUntracked() {
+        return checkUntracked(readStagingArea());
+    }
+
+    private static TreeSet<String> checkUntracked(StagingArea stagingArea) {
+        FileMap activeCommitFiles =
+                checkOutCommit(headId()).getFiles();
+        TreeSet<String> set = new TreeSet<>();
+        for (String file : UntrackedCache.files()) {
+            if (!activeCommitFiles.containsKey(file)
+                    && !stagingArea.map.containsKey(file)) {
+                set.add(file);
+            }
+        }
+        return set;
+    }
+
+    /**
+     * Returns the id of the commit HEAD points at.
+     */
+    static String headId() {
+        return RefStore.local().head();
+    }
+
+    /**
+     * Returns true if commit ANCESTOR is reachable from commit ID (a commit
+     * counts as its own ancestor).
+     */
+    static boolean isAncestor(String ancestor, String id) {
+        Boolean known = ReachabilityIndex.load(GITLET_DIR)
+                .isAncestor(ancestor, id);
+        if (known != null) {
+            return known;
+        }
+        return ancestors(id, new HashMap<>()).containsKey(ancestor);
+    }
+
+    /**
+     * Reads commit ID of the repository in GITLETDIR. Bypasses COMMIT_CACHE,
+     * which only holds commits of this repository. Commits on the shallow
+     * boundary of the repository come without parents, see Shallow.
+     */
+    static Commit readCommit(File gitletDir, String id) {
+        return Shallow.of(gitletDir).graft(deserialize(ObjectStore.of(
+                gitletDir).read(ObjectStore.Kind.COMMIT, id), Commit.class));
+    }
+
+    /**
+     * Reads the INDEX file, which upgradeIndex() has brought to the current
+     * format.
+     */
+    private static StagingArea readStagingArea() {
+        StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
+        if (stagingArea.format != StagingArea.FORMAT) {
+            throw error("INDEX has format %d", stagingArea.format);
+        }
+        return stagingArea;
+    }
+
+    /** Returns true if INDEX has to go through upgradeIndex() before it can
+     *  be read. */
+    static boolean indexNeedsUpgrade() {
+        return STAGING_AREA.isFile() && readObject(STAGING_AREA,
+                StagingArea.class).format != StagingArea.FORMAT;
+    }
+
+    /**
+     * Rewrites an INDEX written before the staging area recorded its format.
+     * The first versions staged the contents of files, later ones the ids of
+     * blobs stored by add, and the two can't be told apart by the index
+     * alone: a value is taken for a blob id if it looks like one and the
+     * store has that blob, and is stored as a blob otherwise. Main runs this
+     * once, under the exclusive lock, before the command that finds such an
+     * index; what it writes records StagingArea.FORMAT.
      */
-    private static HashSet<String> checkUntracked() {
-        HashMap<String, String> activeCommitFiles =
-                checkOutCommit(readContentsAsString(HEAD)).getFiles();
+    static void upgradeIndex() {
         StagingArea stagingArea = readObject(STAGING_AREA, StagingArea.class);
-        HashSet<String> set = new HashSet<>();
-        List<String> currentFiles = plainFilenamesIn(CWD);
-        if (currentFiles != null) {
-            for (String file : currentFiles) {
-                if (!activeCommitFiles.containsKey(file)
-                        && !stagingArea.map.containsKey(file)) {
-                    set.add(file);
+        if (stagingArea.format == StagingArea.FORMAT) {
+            return;
+        }
+        try (Transaction tx = new Transaction()) {
+            for (Map.Entry<String, String> set : stagingArea.map.entrySet()) {
+                String value = set.getValue();
+                if (value != null && !(ObjectStore.isId(value)
+                        && Blobs.exists(GITLET_DIR, value))) {
+                    set.setValue(Blobs.storeAny(
+                            value.getBytes(StandardCharsets.UTF_8), tx));
                 }
             }
+            stagingArea.format = StagingArea.FORMAT;
+            tx.writeRef(STAGING_AREA, serialize(stagingArea));
+            tx.commit();
         }
-        return set;
+    }
+
+    /**
+     * Atomically replaces the INDEX file with the given staging area.
+     */
+    private static void saveStagingArea(StagingArea stagingArea) {
+        Transaction.publish(STAGING_AREA, serialize(stagingArea));
     }
 
     /**
@@ -712,15 +1564,8 @@ public class Repository {
      */
     private static HashSet<String> getAllCommits() {
         HashSet<String> set = new HashSet<>();
-        List<String> commitDirs = fileNamesIn(COMMITS);
-        assert commitDirs != null;
-        for (String commitDir : commitDirs) {
-            File dir = join(COMMITS, commitDir);
-            List<String> commits = plainFilenamesIn(dir);
-            assert commits != null;
-            for (String commit: commits) {
-                set.add(commitDir + commit);
-            }
+        for (String id : ObjectStore.local().ids(ObjectStore.Kind.COMMIT)) {
+            set.add(id);
         }
         return set;
     }
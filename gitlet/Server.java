@@ -0,0 +1,511 @@
+package gitlet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static gitlet.Utils.*;
+
+/**
+ * Read-only HTTP access to every repository under a root directory, each
+ * subdirectory NAME holding a NAME/.gitlet, from one long running process:
+ *
+ *  GET /                          names of the repositories, one per line
+ *  GET /NAME/refs                 "ID HEAD", then "ID BRANCH" per branch
+ *  GET /NAME/commits/REV          the metadata of a commit
+ *  GET /NAME/tree/REV             "BLOB FILE" for every file of a commit
+ *  GET /NAME/files/REV/FILE       the contents of a file at a commit
+ *  GET /NAME/log/REV?skip=N&max=M a page of history, "ID TIME MESSAGE"
+ *  GET /NAME/fetch?want=REV&have=ID...&depth=N
+ *                                 the pack a clone or fetch of REV needs
+ *  GET /NAME/changed?since=TOKEN  with --watch only: what changed in the
+ *                                 working directory, see WorkTreeMonitor
+ *
+ * REV is a branch, HEAD, or a commit id of at least four digits. TIME is in
+ * milliseconds since the epoch. The pack holds what Pack.missing() finds
+ * from REV down to the commits in the haves: the receiving side is taken to
+ * have those commits, their history and the files of the commits themselves,
+ * so a blob that the haves don't have, or that only older history has,
+ * is sent. Commits cut off by DEPTH are listed in the X-Gitlet-Shallow
+ * header.
+ *
+ * Requests run on virtual threads where the JDK has them and on a fixed
+ * pool of platform threads otherwise. Blobs of up to SMALL_BLOB bytes are
+ * kept in a cache shared by all repositories: a blob is named by its
+ * contents, so one a hundred forks share is read and cached once. Commits
+ * made by older versions are named by their files only, and two
+ * repositories can hold different such commits with the same id, so
+ * commits are cached per repository, as stored, and grafted for the
+ * shallow boundary of the repository asking, which is read once per
+ * process. Misses are loaded outside the cache's lock, so a slow disk read
+ * never holds up a hit.
+ *
+ * With --watch the server is also the long running process commands of a
+ * repository with core.monitor set ask about its working directory. It
+ * starts watching a working directory the first time it is asked about it,
+ * so repositories that don't opt in aren't watched.
+ *
+ * Nothing takes the repository lock: objects never change, and refs and
+ * side files are replaced by rename, so every read sees either the old or
+ * the new version. Java file locks are per process, so one shared lock per
+ * request couldn't be taken by two requests at once anyway.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Server {
+    /** Blobs up to this many bytes go through the blob cache. */
+    private static final int SMALL_BLOB = 1 << 16;
+    /** Longest page log hands out. */
+    private static final int MAX_PAGE = 1000;
+    private static final String TEXT = "text/plain; charset=utf-8";
+
+    private final File root;
+    private final HttpServer http;
+    /** Commits by repository directory and id, see commitKey(). */
+    private final ObjectCache<String, Commit> commits =
+            new ObjectCache<>(1 << 22, c -> 1 + c.getFiles().size());
+    private final ObjectCache<String, byte[]> blobs;
+    /** Null unless working directories are watched; the monitors by
+     *  .gitlet directory otherwise. */
+    private final Map<File, WorkTreeMonitor> monitors;
+
+    /** A request that can't be answered, with its STATUS and a message. */
+    private static class Failure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        Failure(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private Server(File root, int port, long cacheBytes, boolean watch)
+            throws IOException {
+        this.root = root;
+        this.blobs = new ObjectCache<>(cacheBytes, b -> b.length);
+        this.monitors = watch ? new HashMap<>() : null;
+        http = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/", this::handle);
+        http.setExecutor(executor());
+    }
+
+    /**
+     * Serves the repositories under ROOT on PORT of the loopback interface
+     * (any free port when 0), with CACHEBYTES for the blob cache, until the
+     * process is killed. With WATCH it answers questions about working
+     * directories too. Prints the address it listens on first.
+     */
+    static void serve(File root, int port, long cacheBytes, boolean watch) {
+        if (!root.isDirectory()) {
+            System.out.println("Not a directory: " + root);
+            System.exit(0);
+        }
+        Server server;
+        try {
+            server = start(root, port, cacheBytes, watch);
+        } catch (IOException excp) {
+            System.out.println("Cannot listen on port " + port + ": "
+                    + excp.getMessage());
+            System.exit(0);
+            return;
+        }
+        System.out.println("Serving " + root + " on http://127.0.0.1:"
+                + server.port() + "/");
+        System.out.flush();
+    }
+
+    /** Starts serving, as serve() does, and returns the server. */
+    static Server start(File root, int port, long cacheBytes, boolean watch)
+            throws IOException {
+        Server server = new Server(root.getAbsoluteFile(), port, cacheBytes,
+                watch);
+        server.http.start();
+        return server;
+    }
+
+    /** The port this server listens on. */
+    int port() {
+        return http.getAddress().getPort();
+    }
+
+    /** Stops serving and watching. */
+    void stop() {
+        http.stop(0);
+        if (monitors != null) {
+            synchronized (monitors) {
+                for (WorkTreeMonitor monitor : monitors.values()) {
+                    monitor.close();
+                }
+                monitors.clear();
+            }
+        }
+    }
+
+    /** A virtual thread per request if the JDK has them (21 and later),
+     *  otherwise a pool of platform threads. */
+    private static ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException excp) {
+            return Executors.newFixedThreadPool(
+                    Math.max(16, 8 * Runtime.getRuntime()
+                            .availableProcessors()));
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                throw new Failure(405, "Only GET is supported.");
+            }
+            String path = exchange.getRequestURI().getPath();
+            String[] parts = path.substring(1).split("/", 3);
+            if (parts[0].isEmpty()) {
+                send(exchange, 200, TEXT, repositories());
+                return;
+            }
+            File dir = repository(parts[0]);
+            String action = parts.length > 1 ? parts[1] : "";
+            String rest = parts.length > 2 ? parts[2] : "";
+            switch (action) {
+                case "refs":
+                    send(exchange, 200, TEXT, refs(dir));
+                    break;
+                case "commits":
+                    send(exchange, 200, TEXT, describe(commit(dir,
+                            resolve(dir, rest))));
+                    break;
+                case "tree":
+                    send(exchange, 200, TEXT, tree(commit(dir,
+                            resolve(dir, rest))));
+                    break;
+                case "files":
+                    file(exchange, dir, rest);
+                    break;
+                case "log":
+                    send(exchange, 200, TEXT, log(dir, resolve(dir, rest),
+                            query(exchange)));
+                    break;
+                case "fetch":
+                    fetch(exchange, dir, query(exchange));
+                    break;
+                case "changed":
+                    send(exchange, 200, TEXT, changed(dir, query(exchange)));
+                    break;
+                default:
+                    throw new Failure(404, "No such endpoint.");
+            }
+        } catch (Failure excp) {
+            send(exchange, excp.status, TEXT, excp.getMessage() + "\n");
+        } catch (RuntimeException excp) {
+            send(exchange, 500, TEXT, excp + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private String repositories() {
+        TreeSet<String> names = new TreeSet<>();
+        String[] entries = root.list();
+        for (String name : entries == null ? new String[0] : entries) {
+            if (!name.startsWith(".")
+                    && join(root, name, ".gitlet").isDirectory()) {
+                names.add(name);
+            }
+        }
+        StringBuilder out = new StringBuilder();
+        for (String name : names) {
+            out.append(name).append('\n');
+        }
+        return out.toString();
+    }
+
+    /** The .gitlet directory of repository NAME. */
+    private File repository(String name) {
+        File dir = join(root, name, ".gitlet");
+        if (name.startsWith(".") || !dir.isDirectory()) {
+            throw new Failure(404, "No such repository.");
+        }
+        return dir;
+    }
+
+    private static String refs(File dir) {
+        RefStore refs = RefStore.of(dir);
+        StringBuilder out = new StringBuilder();
+        out.append(refs.head()).append(" HEAD\n");
+        for (Map.Entry<String, String> e : refs.all().entrySet()) {
+            out.append(e.getValue()).append(' ').append(e.getKey())
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    /** The id of the commit REV names in the repository in DIR. */
+    private static String resolve(File dir, String rev) {
+        if (rev.equals("HEAD")) {
+            return RefStore.of(dir).head();
+        }
+        if (RefStore.isValidName(rev)) {
+            String id = RefStore.of(dir).get(rev);
+            if (id != null) {
+                return id;
+            }
+        }
+        if (rev.length() >= 4 && rev.length() <= UID_LENGTH
+                && rev.matches("[0-9a-f]+")) {
+            ObjectStore store = ObjectStore.of(dir);
+            if (rev.length() == UID_LENGTH
+                    && store.contains(ObjectStore.Kind.COMMIT, rev)) {
+                return rev;
+            }
+            List<String> found = store.find(ObjectStore.Kind.COMMIT, rev);
+            if (found.size() == 1) {
+                return found.get(0);
+            }
+        }
+        throw new Failure(404, "No such commit.");
+    }
+
+    /** Commit ID of the repository in DIR, through the commit cache. */
+    private Commit commit(File dir, String id) {
+        String key = commitKey(dir, id);
+        Commit c = commits.getIfPresent(key);
+        if (c == null) {
+            c = deserialize(ObjectStore.of(dir).read(ObjectStore.Kind.COMMIT,
+                    id), Commit.class);
+            commits.put(key, c);
+        }
+        return Shallow.of(dir).graft(c);
+    }
+
+    /** The key of commit ID of the repository in DIR in the commit cache.
+     *  DIR is a .gitlet directory, whose path has no NUL in it. */
+    private static String commitKey(File dir, String id) {
+        return dir.getPath() + '\0' + id;
+    }
+
+    private static String describe(Commit c) {
+        StringBuilder out = new StringBuilder();
+        out.append("commit ").append(c.getId()).append('\n');
+        if (c.getParent() != null) {
+            out.append("parent ").append(c.getParent()).append('\n');
+        }
+        if (c.getMergeParent() != null) {
+            out.append("parent ").append(c.getMergeParent()).append('\n');
+        }
+        out.append("date ").append(c.getDate().getTime()).append('\n');
+        out.append("files ").append(c.getFiles().size()).append("\n\n");
+        out.append(c.getMessage()).append('\n');
+        return out.toString();
+    }
+
+    private static String tree(Commit c) {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, String> e : c.getFiles().entrySet()) {
+            out.append(e.getValue()).append(' ').append(e.getKey())
+                    .append('\n');
+        }
+        return out.toString();
+    }
+
+    /** Sends file FILE of commit REV, REVANDFILE being "REV/FILE". Files
+     *  have no slashes in their names, branches may. */
+    private void file(HttpExchange exchange, File dir, String revAndFile)
+            throws IOException {
+        int slash = revAndFile.lastIndexOf('/');
+        if (slash <= 0) {
+            throw new Failure(404, "No such file.");
+        }
+        Commit c = commit(dir, resolve(dir, revAndFile.substring(0, slash)));
+        String sha = c.getFiles().get(revAndFile.substring(slash + 1));
+        if (sha == null) {
+            throw new Failure(404, "No such file.");
+        }
+        String type = "application/octet-stream";
+        byte[] cached = blobs.getIfPresent(sha);
+        if (cached != null) {
+            send(exchange, 200, type, cached);
+            return;
+        }
+        long size = Blobs.size(dir, sha);
+        if (size <= SMALL_BLOB) {
+            byte[] contents;
+            try (InputStream in = Blobs.open(dir, sha)) {
+                contents = in.readAllBytes();
+            }
+            blobs.put(sha, contents);
+            send(exchange, 200, type, contents);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, size);
+        try (InputStream in = Blobs.open(dir, sha);
+             OutputStream out = exchange.getResponseBody()) {
+            in.transferTo(out);
+        }
+    }
+
+    /** A page of the first parent history of commit ID: QUERY's skip
+     *  commits are left out, and at most its max are listed. */
+    private String log(File dir, String id, Map<String, List<String>> query) {
+        int skip = number(query, "skip", 0);
+        int max = Math.min(number(query, "max", 100), MAX_PAGE);
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; id != null && i < skip + max; i++) {
+            Commit c = commit(dir, id);
+            if (i >= skip) {
+                out.append(c.getId()).append(' ')
+                        .append(c.getDate().getTime()).append(' ')
+                        .append(c.getMessage().replace('\n', ' '))
+                        .append('\n');
+            }
+            id = c.getParent();
+        }
+        return out.toString();
+    }
+
+    private void fetch(HttpExchange exchange, File dir,
+                      Map<String, List<String>> query) throws IOException {
+        List<String> wants = query.getOrDefault("want", List.of());
+        if (wants.size() != 1) {
+            throw new Failure(400, "Give exactly one want.");
+        }
+        String want = resolve(dir, wants.get(0));
+        Set<String> haveCommits = new HashSet<>();
+        Set<String> haveBlobs = new HashSet<>();
+        ObjectStore store = ObjectStore.of(dir);
+        Deque<String> stack = new ArrayDeque<>();
+        for (String have : query.getOrDefault("have", List.of())) {
+            if (ObjectStore.isId(have)
+                    && store.contains(ObjectStore.Kind.COMMIT, have)) {
+                haveBlobs.addAll(commit(dir, have).getFiles().values());
+                stack.push(have);
+            }
+        }
+        while (!stack.isEmpty()) {
+            String id = stack.pop();
+            if (haveCommits.add(id)) {
+                Commit c = commit(dir, id);
+                for (String parent
+                        : new String[] {c.getParent(), c.getMergeParent()}) {
+                    if (parent != null) {
+                        stack.push(parent);
+                    }
+                }
+            }
+        }
+        Pack.Delta delta = Pack.missing(dir, (kind, id) ->
+                kind == ObjectStore.Kind.COMMIT ? haveCommits.contains(id)
+                        : kind != ObjectStore.Kind.CHUNK
+                        && haveBlobs.contains(id),
+                want, number(query, "depth", 0), true);
+        if (!delta.shallow.isEmpty()) {
+            exchange.getResponseHeaders().set("X-Gitlet-Shallow",
+                    String.join(",", delta.shallow));
+        }
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/x-gitlet-pack");
+        exchange.sendResponseHeaders(200, 0);
+        try (OutputStream out = exchange.getResponseBody()) {
+            Pack.write(dir, delta, out);
+        }
+    }
+
+    /** What changed in the working directory of the repository in DIR since
+     *  QUERY's token, as WorkTreeMonitor.changedSince() tells. */
+    private String changed(File dir, Map<String, List<String>> query) {
+        if (monitors == null) {
+            throw new Failure(404, "Working directories aren't watched.");
+        }
+        WorkTreeMonitor monitor;
+        synchronized (monitors) {
+            monitor = monitors.get(dir);
+            if (monitor == null) {
+                try {
+                    monitor = WorkTreeMonitor.start(dir.getParentFile(), dir);
+                } catch (IOException excp) {
+                    throw new Failure(500, "Cannot watch working directory: "
+                            + excp.getMessage());
+                }
+                monitors.put(dir, monitor);
+            }
+        }
+        List<String> since = query.getOrDefault("since", List.of());
+        return monitor.changedSince(since.isEmpty() ? "" : since.get(0));
+    }
+
+    /** The parameters of the query of EXCHANGE, by name. */
+    private static Map<String, List<String>> query(HttpExchange exchange) {
+        Map<String, List<String>> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw == null) {
+            return params;
+        }
+        for (String pair : raw.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair
+                    : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(
+                    pair.substring(eq + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static int number(Map<String, List<String>> query, String name,
+                              int def) {
+        List<String> values = query.get(name);
+        if (values == null) {
+            return def;
+        }
+        try {
+            int n = Integer.parseInt(values.get(0));
+            if (n < 0) {
+                throw new NumberFormatException();
+            }
+            return n;
+        } catch (NumberFormatException excp) {
+            throw new Failure(400, "Bad " + name + ".");
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String type,
+                             String body) throws IOException {
+        send(exchange, status, type, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String type,
+                             byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1
+                : body.length);
+        if (body.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package gitlet;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * The shallow boundary of a repository cloned with --depth: the commits whose
+ * parents were left behind, one id per line in .gitlet/shallow.
+ *
+ * Commits are loaded through graft(), which hands out a boundary commit
+ * without its parents, so every walk over history (log, the split point of
+ * merge, gc, fsck, the commit graph, packs) ends at the boundary as if it
+ * were an initial commit. The commit object itself is left as it is.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Shallow {
+    /** Name of the boundary file inside the .gitlet directory. */
+    static final String SHALLOW_FILE = "shallow";
+
+    /** Boundaries read in this process, by .gitlet directory. */
+    private static final Map<File, Shallow> LOADED = new HashMap<>();
+
+    private final TreeSet<String> ids;
+
+    private Shallow(TreeSet<String> ids) {
+        this.ids = ids;
+    }
+
+    /** The boundary of the repository in GITLETDIR, read only once per
+     *  process. */
+    static Shallow of(File gitletDir) {
+        File key = gitletDir.getAbsoluteFile();
+        synchronized (LOADED) {
+            Shallow shallow = LOADED.get(key);
+            if (shallow == null) {
+                TreeSet<String> ids = new TreeSet<>();
+                File file = join(gitletDir, SHALLOW_FILE);
+                if (file.isFile()) {
+                    for (String line : readContentsAsString(file)
+                            .split("\n")) {
+                        if (ObjectStore.isId(line.trim())) {
+                            ids.add(line.trim());
+                        }
+                    }
+                }
+                shallow = new Shallow(ids);
+                LOADED.put(key, shallow);
+            }
+            return shallow;
+        }
+    }
+
+    /** Adds the commits in IDS to the boundary of the repository in
+     *  GITLETDIR. */
+    static void add(File gitletDir, Collection<String> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        TreeSet<String> all = new TreeSet<>(of(gitletDir).ids);
+        all.addAll(ids);
+        save(gitletDir, all);
+    }
+
+    /**
+     * Takes the commits whose parents have all been fetched since off the
+     * boundary of the repository in GITLETDIR. The commit graph may have
+     * recorded them without parents, so then it is dropped along with its
+     * bitmaps; commit-graph write builds it again.
+     */
+    static void deepen(File gitletDir) {
+        Shallow shallow = of(gitletDir);
+        if (shallow.isEmpty()) {
+            return;
+        }
+        ObjectStore store = ObjectStore.of(gitletDir);
+        TreeSet<String> left = new TreeSet<>();
+        for (String id : shallow.ids) {
+            Commit c = deserialize(store.read(ObjectStore.Kind.COMMIT, id),
+                    Commit.class);
+            if (!hasCommit(store, c.getParent())
+                    || !hasCommit(store, c.getMergeParent())) {
+                left.add(id);
+            }
+        }
+        if (left.size() == shallow.ids.size()) {
+            return;
+        }
+        save(gitletDir, left);
+        CommitGraph graph = CommitGraph.load(gitletDir);
+        for (String id : shallow.ids) {
+            if (!left.contains(id) && graph.contains(id)) {
+                join(gitletDir, CommitGraph.GRAPH_FILE).delete();
+                join(gitletDir, ReachabilityIndex.BITMAP_FILE).delete();
+                break;
+            }
+        }
+        Repository.COMMIT_CACHE.clear();
+    }
+
+    private static boolean hasCommit(ObjectStore store, String id) {
+        return id == null || store.contains(ObjectStore.Kind.COMMIT, id);
+    }
+
+    /** Makes IDS the boundary of the repository in GITLETDIR. */
+    private static void save(File gitletDir, TreeSet<String> ids) {
+        File file = join(gitletDir, SHALLOW_FILE);
+        if (ids.isEmpty()) {
+            file.delete();
+        } else {
+            StringBuilder contents = new StringBuilder();
+            for (String id : ids) {
+                contents.append(id).append('\n');
+            }
+            Transaction.publish(file, contents.toString());
+        }
+        synchronized (LOADED) {
+            LOADED.put(gitletDir.getAbsoluteFile(), new Shallow(ids));
+        }
+    }
+
+    boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    /** Returns true if commit ID is on the boundary. */
+    boolean contains(String id) {
+        return ids.contains(id);
+    }
+
+    /** C as history should see it: without parents if it is on the
+     *  boundary, C itself otherwise. */
+    Commit graft(Commit c) {
+        if (c == null || !ids.contains(c.getId())) {
+            return c;
+        }
+        return c.withoutParents();
+    }
+}
@@ -0,0 +1,101 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * Sparse checkout: the set of tracked files that are actually written to the
+ * working directory. It's a list of glob patterns (*, ?, [abc], {a,b}) over
+ * file names kept one per line in .gitlet/sparse-checkout; a file is in the
+ * sparse set if any pattern matches its name. Without that file every file
+ * is in it, which is the usual non sparse checkout.
+ *
+ * Commits always carry the whole file map. Only what gets materialized in
+ * the working directory, and what status looks at there, is limited to the
+ * sparse set.
+ *
+ *  @author Adrian Serbanescu
+ */
+class SparseCheckout {
+    /** Name of the pattern file inside the .gitlet directory. */
+    static final String SPARSE_FILE = "sparse-checkout";
+
+    /** Sparse set of the repository in the current working directory. */
+    private static SparseCheckout local;
+
+    private final List<String> patterns;
+    private final List<PathMatcher> matchers = new ArrayList<>();
+
+    private SparseCheckout(List<String> patterns) {
+        this.patterns = patterns;
+        for (String pattern : patterns) {
+            matchers.add(FileSystems.getDefault()
+                    .getPathMatcher("glob:" + pattern));
+        }
+    }
+
+    /** Returns the sparse set of the repository in GITLETDIR. */
+    static SparseCheckout load(File gitletDir) {
+        File file = join(gitletDir, SPARSE_FILE);
+        if (!file.isFile()) {
+            return new SparseCheckout(Collections.emptyList());
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line : readContentsAsString(file).split("\n")) {
+            if (!line.trim().isEmpty()) {
+                patterns.add(line.trim());
+            }
+        }
+        return new SparseCheckout(patterns);
+    }
+
+    /** Returns the sparse set of the repository in the current working
+     *  directory, reading it only once per process. */
+    static SparseCheckout local() {
+        if (local == null) {
+            local = load(Repository.GITLET_DIR);
+        }
+        return local;
+    }
+
+    /** Replaces the patterns of the repository in GITLETDIR with PATTERNS,
+     *  or turns sparse checkout off when PATTERNS is null. */
+    static void save(File gitletDir, List<String> patterns) {
+        File file = join(gitletDir, SPARSE_FILE);
+        if (patterns == null) {
+            file.delete();
+        } else {
+            Transaction.publish(file, String.join("\n", patterns) + "\n");
+        }
+        local = null;
+    }
+
+    boolean isEnabled() {
+        return !matchers.isEmpty();
+    }
+
+    List<String> patterns() {
+        return patterns;
+    }
+
+    /** True if file NAME belongs in the working directory. */
+    boolean includes(String name) {
+        if (matchers.isEmpty()) {
+            return true;
+        }
+        Path path = Path.of(name);
+        for (PathMatcher matcher : matchers) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,231 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * Write-ahead transaction used for everything that has to survive a crash in
+ * the middle of a command.
+ *
+ * Nothing is ever rewritten in place. Objects (blobs and commits) go into a
+ * batch of the repository's ObjectStore as soon as they are added; the loose
+ * store writes them to temporary files next to their final location, the log
+ * store appends them past the end of its log. On commit() the batch is made
+ * durable and visible, and only after that are the refs (see RefStore) and
+ * then the index published, through temp file plus atomic rename. A crash at
+ * any point therefore leaves either the old refs pointing at old, complete
+ * objects or the new refs pointing at new, complete ones, plus at most a few
+ * stray tmp- files or an uncommitted tail of the log.
+ *
+ * How hard we try to get the data onto the disk is set by core.durability:
+ *  none    - only the atomic renames, no fsync at all;
+ *  batched - all objects are fsynced together right before they are renamed,
+ *            then every touched directory once, then the same for the refs
+ *            (default);
+ *  strict  - every file and its directory is fsynced as soon as it is
+ *            written.
+ *
+ *  @author Adrian Serbanescu
+ */
+class Transaction implements AutoCloseable {
+
+    enum Durability {
+        NONE, BATCHED, STRICT;
+
+        /** Durability of the repository in the current working
+         *  directory. */
+        static Durability configured() {
+            String mode = Config.local().get("core.durability", "batched");
+            try {
+                return valueOf(mode.trim().toUpperCase());
+            } catch (IllegalArgumentException excp) {
+                throw error("Unknown core.durability: %s", mode);
+            }
+        }
+    }
+
+    /** A file waiting to be renamed over TARGET. */
+    static class Pending {
+        final File tmp;
+        final File target;
+
+        Pending(File tmp, File target) {
+            this.tmp = tmp;
+            this.target = target;
+        }
+    }
+
+    private final File gitletDir;
+    private final Durability durability;
+    private ObjectStore.Batch objects;
+    private final List<Pending> files = new ArrayList<>();
+    private RefStore.Update refs;
+    private final Set<String> pendingObjects = new HashSet<>();
+    private boolean done;
+
+    /** A transaction on the objects of the repository in GITLETDIR. */
+    Transaction(File gitletDir, Durability durability) {
+        this.gitletDir = gitletDir;
+        this.durability = durability;
+    }
+
+    Transaction(Durability durability) {
+        this(Repository.GITLET_DIR, durability);
+    }
+
+    Transaction() {
+        this(Durability.configured());
+    }
+
+    /** Adds object ID of KIND with the given CONTENTS. Does nothing if the
+     *  store already has it or it is pending in this transaction. */
+    void writeObject(ObjectStore.Kind kind, String id, byte[] contents) {
+        ObjectStore store = ObjectStore.of(gitletDir);
+        if (!pendingObjects.add(kind + id) || store.contains(kind, id)) {
+            return;
+        }
+        if (objects == null) {
+            objects = store.begin(durability);
+        }
+        objects.put(kind, id, contents);
+    }
+
+    /** Schedules TARGET (the index or a side file) to be replaced with
+     *  CONTENTS once all objects and refs of this transaction are in
+     *  place. */
+    void writeRef(File target, Object... contents) {
+        files.add(stage(durability, target, contents));
+    }
+
+    /** The changes to branches and HEAD this transaction makes, visible
+     *  together right after its objects. */
+    RefStore.Update refs() {
+        if (refs == null) {
+            refs = RefStore.of(gitletDir).begin();
+        }
+        return refs;
+    }
+
+    /** Makes every write of this transaction visible, objects first. */
+    void commit() {
+        if (objects != null) {
+            objects.commit();
+        }
+        if (refs != null) {
+            refs.commit(durability);
+        }
+        publish(durability, files);
+        done = true;
+    }
+
+    /** Throws away whatever has not been committed yet. */
+    @Override
+    public void close() {
+        if (!done) {
+            if (objects != null) {
+                objects.abort();
+            }
+            for (Pending p : files) {
+                p.tmp.delete();
+            }
+            done = true;
+        }
+    }
+
+    /** Atomically replaces FILE with CONTENTS in a transaction of its own,
+     *  using the configured durability. */
+    static void publish(File file, Object... contents) {
+        publish(Durability.configured(), file, contents);
+    }
+
+    /** Same as publish(FILE, CONTENTS) but with the given DURABILITY. */
+    static void publish(Durability durability, File file,
+                        Object... contents) {
+        try (Transaction tx = new Transaction(durability)) {
+            tx.writeRef(file, contents);
+            tx.commit();
+        }
+    }
+
+    /** Writes CONTENTS to a temporary file next to TARGET, to be renamed
+     *  over it by publish(). */
+    static Pending stage(Durability durability, File target,
+                         Object... contents) {
+        try {
+            File dir = target.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            File tmp = File.createTempFile("tmp-", null, dir);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                for (Object obj : contents) {
+                    if (obj instanceof byte[]) {
+                        out.write((byte[]) obj);
+                    } else {
+                        out.write(((String) obj)
+                                .getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                if (durability == Durability.STRICT) {
+                    out.getChannel().force(true);
+                }
+            }
+            return new Pending(tmp, target);
+        } catch (IOException | ClassCastException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Renames every file of BATCH into place, syncing as DURABILITY
+     *  asks. */
+    static void publish(Durability durability, List<Pending> batch) {
+        if (durability == Durability.BATCHED) {
+            for (Pending p : batch) {
+                sync(p.tmp, StandardOpenOption.WRITE);
+            }
+        }
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Pending p : batch) {
+            try {
+                Files.move(p.tmp.toPath(), p.target.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            File dir = p.target.getAbsoluteFile().getParentFile();
+            if (durability == Durability.STRICT) {
+                sync(dir, StandardOpenOption.READ);
+            } else {
+                dirs.add(dir);
+            }
+        }
+        if (durability == Durability.BATCHED) {
+            for (File dir : dirs) {
+                sync(dir, StandardOpenOption.READ);
+            }
+        }
+    }
+
+    /** Fsyncs FILE, opened with MODE. Directories can't be opened at all on
+     *  some platforms, in which case the rename is the best we can do. */
+    static void sync(File file, StandardOpenOption mode) {
+        try (FileChannel ch = FileChannel.open(file.toPath(), mode)) {
+            ch.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
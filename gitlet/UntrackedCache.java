@@ -0,0 +1,137 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * The files of the working directory that untracked files are looked for
+ * among: every plain file .gitletignore doesn't ignore.
+ *
+ * Listing the working directory takes a stat per entry to tell files from
+ * directories, and what it finds is mostly the same untracked build output
+ * every time. So the listing, with ignored files already left out, is kept
+ * in .gitlet/untracked together with the modification time of the working
+ * directory and of .gitletignore it was taken at. As long as neither has
+ * changed (no entry was created, deleted or renamed, and the rules are the
+ * same) the names come from that file and the directory isn't listed at
+ * all. Writing to a file doesn't change the directory's time, but it
+ * doesn't matter here either: whether a file is tracked depends on its name
+ * only.
+ *
+ * A modification time tells apart only changes at least one tick of the
+ * file system clock apart, so a listing taken less than RACY_MILLIS after
+ * the last change isn't saved: a file created right after it could leave
+ * the time as it was. The next command lists again.
+ *
+ * .gitletignore holds glob patterns (*, ?, [abc], {a,b}) over file names,
+ * one per line; blank lines and lines starting with # don't count. Ignored
+ * files are never reported as untracked and add . leaves them out; as in
+ * git, they don't keep a checkout from overwriting them. A file that is
+ * tracked is never ignored.
+ *
+ * core.untrackedCache false turns the cache off. With core.monitor set,
+ * the listing WorkTreeMonitor keeps is used instead.
+ *
+ *  @author Adrian Serbanescu
+ */
+class UntrackedCache {
+    /** Name of the cache file inside the .gitlet directory. */
+    static final String CACHE_FILE = "untracked";
+    /** Name of the ignore file in the working directory. */
+    static final String IGNORE_FILE = ".gitletignore";
+
+    private static final String HEADER = "# gitlet untracked cache";
+    /** A listing taken less than this long after the last change to the
+     *  working directory isn't trusted later; see above. */
+    private static final long RACY_MILLIS = 1000;
+
+    /** Ignore rules of the working directory, read once per process. */
+    private static List<PathMatcher> ignored;
+
+    /** The names of the plain files in the working directory that aren't
+     *  ignored, sorted. */
+    static List<String> files() {
+        if (WorkTreeMonitor.isActive()
+                || !Config.local().getBoolean("core.untrackedCache", true)) {
+            return notIgnored(WorkTreeMonitor.files());
+        }
+        File cache = join(Repository.GITLET_DIR, CACHE_FILE);
+        long now = System.currentTimeMillis();
+        String stamp = stamp();
+        if (cache.isFile()) {
+            List<String> lines =
+                    Arrays.asList(readContentsAsString(cache).split("\n"));
+            if (lines.size() >= 2 && lines.get(0).equals(HEADER)
+                    && lines.get(1).equals(stamp)) {
+                return new ArrayList<>(lines.subList(2, lines.size()));
+            }
+        }
+        List<String> files = notIgnored(plainFilenamesIn(Repository.CWD));
+        File ignoreFile = join(Repository.CWD, IGNORE_FILE);
+        if (now - Repository.CWD.lastModified() >= RACY_MILLIS
+                && now - ignoreFile.lastModified() >= RACY_MILLIS
+                && stamp.equals(stamp())) {
+            StringBuilder text = new StringBuilder(HEADER).append('\n')
+                    .append(stamp).append('\n');
+            for (String name : files) {
+                if (name.indexOf('\n') >= 0) {
+                    return files;
+                }
+                text.append(name).append('\n');
+            }
+            /* A cache: losing it in a crash costs one listing. */
+            Transaction.publish(Transaction.Durability.NONE, cache,
+                    text.toString());
+        }
+        return files;
+    }
+
+    /** True if file NAME matches a pattern of .gitletignore. */
+    static boolean isIgnored(String name) {
+        if (ignored == null) {
+            ignored = new ArrayList<>();
+            File file = join(Repository.CWD, IGNORE_FILE);
+            if (file.isFile()) {
+                for (String line : readContentsAsString(file).split("\n")) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        ignored.add(FileSystems.getDefault()
+                                .getPathMatcher("glob:" + line));
+                    }
+                }
+            }
+        }
+        Path path = Path.of(name);
+        for (PathMatcher matcher : ignored) {
+            if (matcher.matches(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<String> notIgnored(List<String> names) {
+        List<String> files = new ArrayList<>();
+        for (String name : names) {
+            if (!isIgnored(name)) {
+                files.add(name);
+            }
+        }
+        return files;
+    }
+
+    /** What a listing is only good for as long as it doesn't change: the
+     *  times of the working directory and of the ignore file. */
+    private static String stamp() {
+        File ignoreFile = join(Repository.CWD, IGNORE_FILE);
+        return Repository.CWD.lastModified() + " " + ignoreFile.lastModified()
+                + " " + ignoreFile.length();
+    }
+}
@@ -1,6 +1,7 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,7 +16,6 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -47,11 +47,7 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return toHex(md.digest());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -63,6 +59,43 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /* HEXADECIMAL NUMERALS */
+
+    private static final byte[] HEX_DIGITS =
+            "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /** Returns BYTES as a lower case hexadecimal numeral. */
+    static String toHex(byte[] bytes) {
+        return toHex(bytes, 0, bytes.length);
+    }
+
+    /** Returns the LENGTH bytes of BYTES from OFFSET on as a lower case
+     *  hexadecimal numeral. */
+    static String toHex(byte[] bytes, int offset, int length) {
+        byte[] hex = new byte[2 * length];
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xff;
+            hex[2 * i] = HEX_DIGITS[b >>> 4];
+            hex[2 * i + 1] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(hex, StandardCharsets.US_ASCII);
+    }
+
+    /** Stores the hexadecimal numeral HEX, of even length, as
+     *  HEX.length() / 2 bytes of OUT from OFFSET on. Returns false, with
+     *  OUT partly written, if HEX has a character that isn't a digit. */
+    static boolean fromHex(String hex, byte[] out, int offset) {
+        for (int i = 0; i < hex.length() / 2; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            out[offset + i] = (byte) (hi << 4 | lo);
+        }
+        return true;
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -234,6 +267,19 @@ class Utils {
 
 
 
+    /** Return the object of type T serialized in BYTES, casting it to
+     *  EXPECTEDCLASS. Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try (ObjectInputStream in =
+                 new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as
@@ -0,0 +1,394 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static gitlet.Utils.*;
+
+/**
+ * Keeps track of what changed in the working directory, so that status,
+ * add . and the untracked file checks don't have to list and hash all of it
+ * every time.
+ *
+ * A command lives no longer than itself, so the watching is left to a
+ * process that does: gitlet serve --watch starts a monitor for a repository
+ * the first time it is asked GET /NAME/changed?since=TOKEN (see Server). A
+ * monitor registers a WatchService on the working directory and numbers the
+ * events it gets. It answers with a new token, "changed" and the names of
+ * the files that changed since TOKEN, or with "full" when it can't tell:
+ * TOKEN is another monitor's (the server restarted) or events may have been
+ * lost since, because the watch service overflowed or dropped its watch.
+ *
+ * Events are delivered asynchronously, so before answering a monitor writes
+ * a cookie file into .gitlet (which it watches too) and waits for its event:
+ * everything that happened before the question has been seen by then. If the
+ * cookie doesn't show up in time, the answer is "full" as well.
+ *
+ * A repository opts in by setting core.monitor to its URL on the server,
+ * http://127.0.0.1:PORT/NAME. Its commands then keep the token they got and
+ * the blob ids of the files they hashed in .gitlet/monitor, ask once per
+ * command what changed since, and list and hash again only what the answer
+ * names. With "full", or with no answer at all (no server, an error, a
+ * timeout), they scan the whole working directory, exactly what happens
+ * without a monitor.
+ *
+ * Repository code doesn't talk to the monitor directly, it calls files() and
+ * hash(), which ask it when core.monitor is set.
+ *
+ *  @author Adrian Serbanescu
+ */
+class WorkTreeMonitor implements AutoCloseable {
+    /** Config key of the URL of the repository on a serve --watch. */
+    static final String CONFIG_KEY = "core.monitor";
+    /** Name of the file commands keep their token and hashes in. */
+    static final String STATE_FILE = "monitor";
+
+    /** How long a question waits for its cookie before giving up on the
+     *  events and answering "full". */
+    private static final long COOKIE_TIMEOUT_MILLIS = 2000;
+    private static final String COOKIE_PREFIX = "monitor-cookie-";
+    /** How long a command waits for the server before it scans. */
+    private static final int ASK_TIMEOUT_MILLIS = 5000;
+
+    private final File dir;
+    private final File gitletDir;
+    private final WatchService watcher;
+    private final Thread thread;
+    /** Tells the tokens of this monitor from those of any other. */
+    private final String instance =
+            Long.toHexString(ThreadLocalRandom.current().nextLong());
+
+    /** Number of the last event seen. */
+    private long events;
+    /** Events up to this number may have been missed. */
+    private long lostUpTo;
+    /** The number of the last event of every file that had one. */
+    private final Map<String, Long> changed = new HashMap<>();
+    private final Set<String> cookiesSeen = new HashSet<>();
+    private int cookies;
+
+    /* What this command learnt through the monitor: the token, the files of
+     * the working directory and the blob ids of those hashed so far. LISTING
+     * is null until the monitor has been asked. */
+    private static String token;
+    private static TreeSet<String> listing;
+    private static Map<String, String> hashes;
+    private static long fullScans;
+    private static long filesHashed;
+
+    private WorkTreeMonitor(File dir, File gitletDir) throws IOException {
+        this.dir = dir;
+        this.gitletDir = gitletDir;
+        watcher = FileSystems.getDefault().newWatchService();
+        register();
+        thread = new Thread(this::watch, "gitlet-monitor");
+        thread.setDaemon(true);
+    }
+
+    /** Starts watching working directory DIR of the repository in
+     *  GITLETDIR. */
+    static WorkTreeMonitor start(File dir, File gitletDir) throws IOException {
+        WorkTreeMonitor monitor = new WorkTreeMonitor(dir, gitletDir);
+        monitor.thread.start();
+        return monitor;
+    }
+
+    /**
+     * The answer to a command holding TOKEN: a new token followed by
+     * " changed" and the names of the files that changed since, one per
+     * line, or by " full" if this monitor can't tell.
+     */
+    synchronized String changedSince(String token) {
+        waitForCookie();
+        long since = -1;
+        int dash = token.indexOf('-');
+        if (dash > 0 && token.substring(0, dash).equals(instance)) {
+            try {
+                since = Long.parseLong(token.substring(dash + 1));
+            } catch (NumberFormatException excp) {
+                since = -1;
+            }
+        }
+        StringBuilder out = new StringBuilder(instance).append('-')
+                .append(events);
+        if (since < lostUpTo || since > events) {
+            return out.append(" full\n").toString();
+        }
+        out.append(" changed\n");
+        for (Map.Entry<String, Long> e : changed.entrySet()) {
+            if (e.getValue() > since) {
+                if (e.getKey().indexOf('\n') >= 0) {
+                    return instance + "-" + events + " full\n";
+                }
+                out.append(e.getKey()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException excp) {
+            /* Nothing left to clean up. */
+        }
+    }
+
+    /** Takes note that events up to now may have been missed. Called with
+     *  the monitor's lock held. */
+    private void lose() {
+        lostUpTo = ++events;
+        changed.clear();
+    }
+
+    /** Drops a cookie into the .gitlet directory and waits for the watcher
+     *  to report it. Called with the monitor's lock held. */
+    private void waitForCookie() {
+        String name = COOKIE_PREFIX + (cookies++);
+        File cookie = join(gitletDir, name);
+        try {
+            writeContents(cookie, "");
+            long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT_MILLIS;
+            while (!cookiesSeen.remove(name)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    lose();
+                    break;
+                }
+                wait(left);
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            lose();
+        } finally {
+            cookie.delete();
+        }
+    }
+
+    private void register() throws IOException {
+        WatchEvent.Kind<?>[] kinds = {StandardWatchEventKinds.ENTRY_CREATE,
+            StandardWatchEventKinds.ENTRY_DELETE,
+            StandardWatchEventKinds.ENTRY_MODIFY};
+        dir.toPath().register(watcher, kinds);
+        gitletDir.toPath().register(watcher, kinds);
+    }
+
+    /** Body of the watcher thread. */
+    private void watch() {
+        Path gitletPath = gitletDir.toPath();
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean inGitlet = key.watchable().equals(gitletPath);
+                synchronized (this) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            lose();
+                            continue;
+                        }
+                        String name = event.context().toString();
+                        if (!inGitlet) {
+                            changed.put(name, ++events);
+                        } else if (name.startsWith(COOKIE_PREFIX)
+                                && event.kind()
+                                == StandardWatchEventKinds.ENTRY_CREATE) {
+                            cookiesSeen.add(name);
+                        }
+                    }
+                    if (!key.reset()) {
+                        /* The watch is gone; try to get it back, and don't
+                         * vouch for anything that happened meanwhile. */
+                        lose();
+                        try {
+                            register();
+                        } catch (IOException excp) {
+                            close();
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException excp) {
+            synchronized (this) {
+                lose();
+                notifyAll();
+            }
+        }
+    }
+
+    /** Returns true if core.monitor is set for this repository. */
+    static boolean isActive() {
+        return Config.local().get(CONFIG_KEY) != null;
+    }
+
+    /** The names of the plain files in the working directory, sorted. */
+    static List<String> files() {
+        if (!sync()) {
+            List<String> names = plainFilenamesIn(Repository.CWD);
+            return names == null ? new ArrayList<>() : names;
+        }
+        return new ArrayList<>(listing);
+    }
+
+    /** The blob id of working directory file NAME, or null if there is no
+     *  such file. */
+    static String hash(String name) {
+        File file = join(Repository.CWD, name);
+        if (!sync()) {
+            filesHashed++;
+            return file.isFile() ? Blobs.hash(file) : null;
+        }
+        if (!listing.contains(name)) {
+            return null;
+        }
+        String sha = hashes.get(name);
+        if (sha == null) {
+            if (!file.isFile()) {
+                return null;
+            }
+            filesHashed++;
+            sha = Blobs.hash(file);
+            hashes.put(name, sha);
+        }
+        return sha;
+    }
+
+    /** Number of full scans of the working directory done in this
+     *  process on the monitor's behalf. */
+    static long fullScans() {
+        return fullScans;
+    }
+
+    /** Number of working directory files hashed in this process. */
+    static long filesHashed() {
+        return filesHashed;
+    }
+
+    /**
+     * Keeps what this command learnt through the monitor in .gitlet/monitor
+     * for the next one, and forgets it. Called once the command is done,
+     * with the repository lock still held. A command the monitor didn't
+     * answer leaves the file as it was: its token still holds.
+     */
+    static void save() {
+        if (listing == null) {
+            return;
+        }
+        if (token != null) {
+            StringBuilder text = new StringBuilder(token).append('\n');
+            boolean savable = true;
+            for (String name : listing) {
+                savable &= name.indexOf('\n') < 0;
+                String sha = hashes.get(name);
+                text.append(sha == null ? "-" : sha).append(' ').append(name)
+                        .append('\n');
+            }
+            File file = join(Repository.GITLET_DIR, STATE_FILE);
+            if (savable) {
+                /* A cache: losing it in a crash costs one scan. */
+                Transaction.publish(Transaction.Durability.NONE, file,
+                        text.toString());
+            } else {
+                file.delete();
+            }
+        }
+        token = null;
+        listing = null;
+        hashes = null;
+    }
+
+    /** Asks the monitor, once per command, what changed since the token in
+     *  .gitlet/monitor. Returns false if the repository has none. */
+    private static boolean sync() {
+        if (listing != null) {
+            return true;
+        }
+        String url = Config.local().get(CONFIG_KEY);
+        if (url == null) {
+            return false;
+        }
+        File file = join(Repository.GITLET_DIR, STATE_FILE);
+        String[] state = file.isFile()
+                ? readContentsAsString(file).split("\n") : new String[0];
+        String[] answer = ask(url, state.length > 0 ? state[0] : "none");
+        listing = new TreeSet<>();
+        hashes = new HashMap<>();
+        String[] header = answer == null || answer[0].isEmpty()
+                ? new String[0] : answer[0].split(" ");
+        token = header.length == 2 ? header[0] : null;
+        if (token == null || !header[1].equals("changed")
+                || state.length == 0) {
+            List<String> names = plainFilenamesIn(Repository.CWD);
+            if (names != null) {
+                listing.addAll(names);
+            }
+            fullScans++;
+            return true;
+        }
+        for (int i = 1; i < state.length; i++) {
+            int space = state[i].indexOf(' ');
+            if (space > 0) {
+                String name = state[i].substring(space + 1);
+                listing.add(name);
+                if (space == UID_LENGTH) {
+                    hashes.put(name, state[i].substring(0, space));
+                }
+            }
+        }
+        for (int i = 1; i < answer.length; i++) {
+            String name = answer[i];
+            hashes.remove(name);
+            if (join(Repository.CWD, name).isFile()) {
+                listing.add(name);
+            } else {
+                listing.remove(name);
+            }
+        }
+        return true;
+    }
+
+    /** The lines of the monitor's answer at URL to a command holding TOKEN,
+     *  or null if there is none. */
+    private static String[] ask(String url, String token) {
+        try {
+            HttpURLConnection connection = (HttpURLConnection) URI.create(
+                    url.replaceAll("/+$", "") + "/changed?since=" + token)
+                    .toURL().openConnection();
+            connection.setConnectTimeout(ASK_TIMEOUT_MILLIS);
+            connection.setReadTimeout(ASK_TIMEOUT_MILLIS);
+            try {
+                if (connection.getResponseCode() != 200) {
+                    return null;
+                }
+                try (InputStream in = connection.getInputStream()) {
+                    return new String(in.readAllBytes(),
+                            StandardCharsets.UTF_8).split("\n");
+                }
+            } finally {
+                connection.disconnect();
+            }
+        } catch (IOException | IllegalArgumentException excp) {
+            return null;
+        }
+    }
+}
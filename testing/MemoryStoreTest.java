@@ -0,0 +1,78 @@
+package gitlet;
+
+import java.io.File;
+
+import static gitlet.Utils.*;
+
+/**
+ * Runs gitlet commands inside this process on a MemoryObjectStore, the way
+ * a test or benchmark that embeds gitlet would, and checks that they work
+ * and that no object ends up on disk. Run by memory_store_test.py in an
+ * empty directory; exits with status 1 at the first check that fails.
+ *
+ *  @author Adrian Serbanescu
+ */
+class MemoryStoreTest {
+    public static void main(String[] args) {
+        MemoryObjectStore store = new MemoryObjectStore();
+        ObjectStore.use(Repository.GITLET_DIR, store);
+        run("init");
+        run("config", "maintenance.auto", "false");
+        write("wug.txt", "wug\n");
+        run("add", "wug.txt");
+        run("commit", "one");
+        run("branch", "other");
+        write("wug.txt", "not wug\n");
+        write("g.txt", "g\n");
+        run("add", ".");
+        run("commit", "two");
+        run("checkout", "other");
+        check(read("wug.txt").equals("wug\n"), "checkout other: wug.txt");
+        check(!file("g.txt").exists(), "checkout other: g.txt");
+        run("checkout", "master");
+        check(read("wug.txt").equals("not wug\n"), "checkout master");
+        run("rm", "g.txt");
+        run("commit", "three");
+        check(!file("g.txt").exists(), "rm g.txt");
+        run("reset", RefStore.local().get("other"));
+        check(read("wug.txt").equals("wug\n"), "reset");
+        check(count(store, ObjectStore.Kind.COMMIT) == 4, "commits stored");
+        check(count(store, ObjectStore.Kind.BLOB) == 3, "blobs stored");
+        for (String dir : new String[] {"commits", "files", "objects.log"}) {
+            check(!join(Repository.GITLET_DIR, dir).exists(),
+                    dir + " on disk");
+        }
+        System.out.println("memory store: OK");
+    }
+
+    private static void run(String... args) {
+        Main.main(args);
+    }
+
+    private static File file(String name) {
+        return join(Repository.CWD, name);
+    }
+
+    private static void write(String name, String contents) {
+        writeContents(file(name), contents);
+    }
+
+    private static String read(String name) {
+        return readContentsAsString(file(name));
+    }
+
+    private static int count(ObjectStore store, ObjectStore.Kind kind) {
+        int n = 0;
+        for (String id : store.ids(kind)) {
+            n++;
+        }
+        return n;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAIL: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+
+import static gitlet.Utils.*;
+
+/**
+ * Runs add . with core.monitor pointing at a serve --watch started in this
+ * process, and checks that it goes by what the monitor says changed, that
+ * it scans the whole working directory when the server is gone or is a
+ * new one, and that it stages the right files either way. Run by
+ * monitor_test.py in an empty directory; exits with status 1 at the first
+ * check that fails.
+ *
+ *  @author Adrian Serbanescu
+ */
+class MonitorTest {
+    public static void main(String[] args) throws IOException {
+        run("init");
+        run("config", "maintenance.auto", "false");
+        Server server = watch();
+        write("a.txt", "a\n");
+        write("b.txt", "b\n");
+        run("add", ".");
+        check(WorkTreeMonitor.fullScans() == 1, "first add . scans");
+        run("commit", "one");
+        checkHead("a.txt", "b.txt");
+
+        long hashed = WorkTreeMonitor.filesHashed();
+        write("a.txt", "a2\n");
+        file("b.txt").delete();
+        write("c.txt", "c\n");
+        run("add", ".");
+        check(WorkTreeMonitor.fullScans() == 1, "add . asks the monitor");
+        check(WorkTreeMonitor.filesHashed() - hashed == 2,
+                "add . hashes the changed files only");
+        run("commit", "two");
+        checkHead("a.txt", "c.txt");
+
+        hashed = WorkTreeMonitor.filesHashed();
+        run("add", ".");
+        check(WorkTreeMonitor.filesHashed() == hashed,
+                "add . without changes hashes nothing");
+
+        server.stop();
+        write("a.txt", "a3\n");
+        run("add", ".");
+        check(WorkTreeMonitor.fullScans() == 2, "no server: add . scans");
+        run("commit", "three");
+        checkHead("a.txt", "c.txt");
+
+        server = watch();
+        write("c.txt", "c2\n");
+        run("add", ".");
+        check(WorkTreeMonitor.fullScans() == 3, "new server: add . scans");
+        run("commit", "four");
+        checkHead("a.txt", "c.txt");
+        write("a.txt", "a4\n");
+        run("add", ".");
+        check(WorkTreeMonitor.fullScans() == 3,
+                "new server: add . asks the monitor again");
+        run("commit", "five");
+        checkHead("a.txt", "c.txt");
+        server.stop();
+        System.out.println("monitor: OK");
+        System.exit(0);
+    }
+
+    /** Starts a server watching the repository, the parent of the working
+     *  directory as its root, and points core.monitor at it. */
+    private static Server watch() throws IOException {
+        Server server = Server.start(Repository.CWD.getParentFile(), 0,
+                1 << 20, true);
+        run("config", WorkTreeMonitor.CONFIG_KEY, "http://127.0.0.1:"
+                + server.port() + "/" + Repository.CWD.getName());
+        return server;
+    }
+
+    /** Checks that the head commit has exactly the files NAMES, as they are
+     *  in the working directory. */
+    private static void checkHead(String... names) {
+        FileMap files = Repository.checkOutCommit(RefStore.local().head())
+                .getFiles();
+        check(files.size() == names.length, "files in head");
+        for (String name : names) {
+            check(sha1(readContents(file(name))).equals(files.get(name)),
+                    name + " in head");
+        }
+    }
+
+    private static void run(String... args) {
+        Main.main(args);
+    }
+
+    private static File file(String name) {
+        return join(Repository.CWD, name);
+    }
+
+    private static void write(String name, String contents) {
+        writeContents(file(name), contents);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok) {
+            System.out.println("FAIL: " + what);
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+"""Runs MemoryStoreTest, which drives gitlet commands on a MemoryObjectStore
+inside one process, as the .in tests, one process per command, can't.
+
+Usage: python3 memory_store_test.py [--progdir=DIR]
+"""
+
+import sys
+from getopt import getopt
+from os import mkdir
+from os.path import abspath, join
+from shutil import rmtree
+from subprocess import call
+from tempfile import mkdtemp
+
+JAVA_COMMAND = ["java", "-ea"]
+
+
+def main(progdir):
+    root = mkdtemp(prefix="memory-store-test")
+    try:
+        classes = join(root, "classes")
+        repo = join(root, "repo")
+        mkdir(classes)
+        mkdir(repo)
+        if call(["javac", "-cp", progdir, "-d", classes,
+                 "MemoryStoreTest.java"]) != 0:
+            return 1
+        return call(JAVA_COMMAND + ["-cp", classes + ":" + progdir,
+                                    "gitlet.MemoryStoreTest"], cwd=repo)
+    finally:
+        rmtree(root)
+
+
+if __name__ == "__main__":
+    opts, _ = getopt(sys.argv[1:], "", ["progdir="])
+    progdir = abspath(dict(opts).get("--progdir", ".."))
+    sys.exit(main(progdir))
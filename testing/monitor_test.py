@@ -0,0 +1,42 @@
+"""Runs MonitorTest, which drives gitlet commands against a serve --watch
+inside one process, as the .in tests, one process per command, can't.
+
+Usage: python3 monitor_test.py [--progdir=DIR]
+"""
+
+import sys
+from getopt import getopt
+from os import mkdir
+from os.path import abspath, join
+from shutil import rmtree
+from subprocess import PIPE, call, run
+from tempfile import mkdtemp
+
+JAVA_COMMAND = ["java", "-ea"]
+
+
+def main(progdir):
+    root = mkdtemp(prefix="monitor-test")
+    try:
+        classes = join(root, "classes")
+        repo = join(root, "repo")
+        mkdir(classes)
+        mkdir(repo)
+        if call(["javac", "-cp", progdir, "-d", classes,
+                 "MonitorTest.java"]) != 0:
+            return 1
+        # A command that gives up exits with status 0 too, so only the
+        # closing line counts.
+        result = run(JAVA_COMMAND + ["-cp", classes + ":" + progdir,
+                                     "gitlet.MonitorTest"], cwd=repo,
+                     stdout=PIPE, universal_newlines=True, timeout=120)
+        print(result.stdout, end="")
+        return 0 if result.stdout.endswith("monitor: OK\n") else 1
+    finally:
+        rmtree(root)
+
+
+if __name__ == "__main__":
+    opts, _ = getopt(sys.argv[1:], "", ["progdir="])
+    progdir = abspath(dict(opts).get("--progdir", ".."))
+    sys.exit(main(progdir))
@@ -0,0 +1,90 @@
+"""Checks gitlet serve over HTTP, which the .in tests can't reach.
+
+Usage: python3 serve_test.py [--progdir=DIR]
+
+Two repositories under one root hold different commits under the same
+id, as older versions of gitlet, which named commits by their files only,
+left them. Each repository has to answer with its own.
+"""
+
+import sys
+from getopt import getopt
+from os import makedirs, mkdir, rename
+from os.path import abspath, dirname, join
+from shutil import copyfile, rmtree
+from subprocess import PIPE, Popen, check_output
+from tempfile import mkdtemp
+from urllib.request import urlopen
+
+JAVA_COMMAND = ["java", "-ea"]
+GITLET_CLASS = "gitlet.Main"
+
+
+def gitlet(progdir, cwd, *args):
+    return check_output(JAVA_COMMAND + ["-cp", progdir, GITLET_CLASS]
+                        + list(args), cwd=cwd, universal_newlines=True)
+
+
+def get(base, path):
+    with urlopen(base + path, timeout=10) as response:
+        return response.read().decode("utf-8")
+
+
+def message(description):
+    """The message of a commit as GET /NAME/commits/REV describes it."""
+    return description.split("\n\n", 1)[1].rstrip("\n")
+
+
+def commit_file(repo, commit_id):
+    """Where the loose store of REPO keeps commit COMMIT_ID."""
+    return join(repo, ".gitlet", "commits", commit_id[:4], commit_id[4:])
+
+
+def take_id(repo, commit_id):
+    """Moves the head commit of REPO to COMMIT_ID, as if it had been named
+    that, and points HEAD and master at it."""
+    gitlet_dir = join(repo, ".gitlet")
+    with open(join(gitlet_dir, "HEAD")) as head:
+        old_id = head.read().strip()
+    makedirs(dirname(commit_file(repo, commit_id)), exist_ok=True)
+    rename(commit_file(repo, old_id), commit_file(repo, commit_id))
+    for ref in "HEAD", join("branches", "master"):
+        with open(join(gitlet_dir, ref), "w") as out:
+            out.write(commit_id)
+
+
+def main(progdir):
+    root = mkdtemp(prefix="serve-test")
+    server = None
+    try:
+        for name in "a", "b":
+            repo = join(root, name)
+            mkdir(repo)
+            gitlet(progdir, repo, "init")
+            copyfile(join("src", "wug.txt"), join(repo, "wug.txt"))
+            gitlet(progdir, repo, "add", "wug.txt")
+            gitlet(progdir, repo, "commit", "from " + name)
+        with open(join(root, "a", ".gitlet", "HEAD")) as head:
+            take_id(join(root, "b"), head.read().strip())
+        server = Popen(JAVA_COMMAND + ["-cp", progdir, GITLET_CLASS, "serve",
+                                       "--root", root, "--port", "0"],
+                       stdout=PIPE, universal_newlines=True)
+        base = server.stdout.readline().split(" on ")[-1].strip()
+        for name in "a", "b", "a":
+            description = get(base, name + "/commits/HEAD")
+            if message(description) != "from " + name:
+                print("FAIL: %s/commits/HEAD is %r" % (name, description))
+                return 1
+        print("serve: OK")
+        return 0
+    finally:
+        if server is not None:
+            server.kill()
+            server.wait()
+        rmtree(root)
+
+
+if __name__ == "__main__":
+    opts, _ = getopt(sys.argv[1:], "", ["progdir="])
+    progdir = abspath(dict(opts).get("--progdir", ".."))
+    sys.exit(main(progdir))